@@ -18,6 +18,7 @@ import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 
+import org.eclipse.concierge.wiring.ExportIndex;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleReference;
@@ -42,8 +43,22 @@ final class PackageAdminImpl implements PackageAdmin {
 
 	private final BundleContext context;
 
+	/**
+	 * the export index of the framework, or null if the framework does not
+	 * maintain one.
+	 */
+	private final IndexedExports exportIndex;
+
 	PackageAdminImpl(final BundleContext context) {
 		this.context = context;
+		IndexedExports exports;
+		try {
+			exports = IndexedExports.get(context);
+		} catch (final NoClassDefFoundError e) {
+			// the optional import of the index is not wired
+			exports = null;
+		}
+		this.exportIndex = exports;
 	}
 
 	/**
@@ -67,10 +82,17 @@ final class PackageAdminImpl implements PackageAdmin {
 	 * @see org.osgi.service.packageadmin.PackageAdmin#getExportedPackages(java.lang.String)
 	 */
 	public ExportedPackage[] getExportedPackages(final String name) {
-		final Bundle[] bundles = context.getBundles();
-
 		final ArrayList<ExportedPackage> result = new ArrayList<ExportedPackage>();
 
+		if (exportIndex != null) {
+			for (final BundleCapability cap : exportIndex.getExports(name)) {
+				result.add(new ExportedPackageImpl(cap));
+			}
+			return toArrayOrNull(result, ExportedPackage.class);
+		}
+
+		final Bundle[] bundles = context.getBundles();
+
 		for (final Bundle bundle : bundles) {
 			getExportedPackages0(bundle, name, result);
 		}
@@ -161,6 +183,12 @@ final class PackageAdminImpl implements PackageAdmin {
 	 * @see org.osgi.service.packageadmin.PackageAdmin#getExportedPackage(java.lang.String)
 	 */
 	public ExportedPackage getExportedPackage(final String name) {
+		if (exportIndex != null && name != null) {
+			// already sorted by preference
+			final List<BundleCapability> caps = exportIndex.getExports(name);
+			return caps.isEmpty() ? null : new ExportedPackageImpl(caps.get(0));
+		}
+
 		final Bundle[] bundles = context.getBundles();
 
 		final ArrayList<ExportedPackage> result = new ArrayList<ExportedPackage>();
@@ -504,4 +532,28 @@ final class PackageAdminImpl implements PackageAdmin {
 		}
 	}
 
+	/**
+	 * the access to the export index of the framework. Only this class refers
+	 * to the index, so that it fails alone if the package of the index is
+	 * not available.
+	 */
+	private static final class IndexedExports {
+
+		private final ExportIndex index;
+
+		private IndexedExports(final ExportIndex index) {
+			this.index = index;
+		}
+
+		static IndexedExports get(final BundleContext context) {
+			final ExportIndex index = context.getBundle(0).adapt(
+					ExportIndex.class);
+			return index == null ? null : new IndexedExports(index);
+		}
+
+		List<BundleCapability> getExports(final String pkg) {
+			return index.getExports(pkg);
+		}
+	}
+
 }
@@ -0,0 +1,496 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Jan S. Rellermeyer, IBM Research - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.concierge;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.osgi.framework.namespace.BundleNamespace;
+import org.osgi.framework.namespace.HostNamespace;
+import org.osgi.framework.namespace.PackageNamespace;
+import org.osgi.resource.Capability;
+import org.osgi.resource.Namespace;
+import org.osgi.resource.Requirement;
+import org.osgi.resource.Resource;
+import org.osgi.resource.Wire;
+import org.osgi.resource.Wiring;
+import org.osgi.service.resolver.HostedCapability;
+import org.osgi.service.resolver.ResolveContext;
+
+/**
+ * A search strategy for the resolver. Before the resources are wired, it
+ * assigns a candidate to every requirement of the resources to resolve and
+ * of the unresolved providers that they need. After every assignment, the
+ * uses constraints of the package spaces are checked and the search
+ * backtracks on a conflict. The resolver then tries the planned candidate
+ * of a requirement first.
+ */
+class BacktrackingResolver {
+
+	/**
+	 * the resolve context.
+	 */
+	private final ResolveContext context;
+
+	/**
+	 * the existing wirings.
+	 */
+	private final Map<Resource, Wiring> wirings;
+
+	/**
+	 * the time at which the search is given up.
+	 */
+	private final long deadline;
+
+	/**
+	 * requirement -> the assigned candidate, or null for an optional
+	 * requirement that is left unresolved.
+	 */
+	private final HashMap<Requirement, Capability> assignment = new HashMap<Requirement, Capability>();
+
+	/**
+	 * provider -> the planned resources with a requirement assigned to one of
+	 * its capabilities, once per requirement.
+	 */
+	private final HashMap<Resource, List<Resource>> requirers = new HashMap<Resource, List<Resource>>();
+
+	/**
+	 * the unresolved resources that are planned to be resolved.
+	 */
+	private final HashSet<Resource> active = new HashSet<Resource>();
+
+	/**
+	 * the requirements to assign in the current search.
+	 */
+	private final ArrayList<Requirement> agenda = new ArrayList<Requirement>();
+
+	/**
+	 * requirement -> candidates.
+	 */
+	private final HashMap<Requirement, List<Capability>> candidates = new HashMap<Requirement, List<Capability>>();
+
+	/**
+	 * resource -> whether every mandatory requirement has a candidate that
+	 * is resolved or satisfiable itself.
+	 */
+	private final HashMap<Resource, Boolean> satisfiable = new HashMap<Resource, Boolean>();
+
+	/**
+	 * the number of candidates that were tried.
+	 */
+	int steps;
+
+	/**
+	 * true if the time budget was used up.
+	 */
+	boolean timedOut;
+
+	/**
+	 * create a new search.
+	 *
+	 * @param context
+	 *            the resolve context.
+	 * @param budget
+	 *            the time budget in milliseconds.
+	 */
+	BacktrackingResolver(final ResolveContext context, final long budget) {
+		this.context = context;
+		this.wirings = context.getWirings();
+		this.deadline = System.currentTimeMillis() + budget;
+	}
+
+	/**
+	 * filter the candidates of a requirement, e.g., through the resolver
+	 * hooks.
+	 *
+	 * @param requirement
+	 *            the requirement.
+	 * @param caps
+	 *            the candidates, to be modified.
+	 */
+	protected void filter(final Requirement requirement,
+			final Collection<Capability> caps) {
+	}
+
+	/**
+	 * plan the resolution of a resource. If no consistent assignment is
+	 * found within the time budget, the plan is left unchanged.
+	 *
+	 * @param resource
+	 *            the resource.
+	 * @return true if the resource is planned to be resolved.
+	 */
+	boolean plan(final Resource resource) {
+		if (wirings.get(resource) != null || active.contains(resource)) {
+			return true;
+		}
+		if (timedOut || !isSatisfiable(resource)) {
+			return false;
+		}
+
+		agenda.clear();
+		activate(resource);
+		if (search(0)) {
+			return true;
+		}
+
+		active.remove(resource);
+		return false;
+	}
+
+	/**
+	 * wrap a resolve context so that the planned candidates come first.
+	 *
+	 * @return the resolve context.
+	 */
+	ResolveContext getPlannedContext() {
+		return new ResolveContext() {
+
+			public Collection<Resource> getMandatoryResources() {
+				return context.getMandatoryResources();
+			}
+
+			public Collection<Resource> getOptionalResources() {
+				return context.getOptionalResources();
+			}
+
+			public List<Capability> findProviders(final Requirement requirement) {
+				final List<Capability> providers = new ArrayList<Capability>(
+						context.findProviders(requirement));
+				if (!assignment.containsKey(requirement)) {
+					return providers;
+				}
+				final Capability planned = assignment.get(requirement);
+				if (planned == null) {
+					// left unresolved to avoid a conflict
+					providers.clear();
+				} else if (providers.remove(planned)) {
+					providers.add(0, planned);
+				}
+				return providers;
+			}
+
+			public int insertHostedCapability(
+					final List<Capability> capabilities,
+					final HostedCapability hostedCapability) {
+				return context.insertHostedCapability(capabilities,
+						hostedCapability);
+			}
+
+			public boolean isEffective(final Requirement requirement) {
+				return context.isEffective(requirement);
+			}
+
+			public Map<Resource, Wiring> getWirings() {
+				return wirings;
+			}
+
+		};
+	}
+
+	private boolean search(final int index) {
+		if (index == agenda.size()) {
+			return true;
+		}
+		if (System.currentTimeMillis() > deadline) {
+			timedOut = true;
+			return false;
+		}
+
+		final Requirement requirement = agenda.get(index);
+		final int size = agenda.size();
+
+		for (final Capability cap : getCandidates(requirement)) {
+			final Resource provider = cap.getResource();
+			final boolean activated = wirings.get(provider) == null
+					&& !active.contains(provider);
+			if (activated) {
+				if (!isSatisfiable(provider)) {
+					continue;
+				}
+				activate(provider);
+			}
+
+			assign(requirement, cap);
+			steps++;
+			if (isConsistent(requirement.getResource())
+					&& search(index + 1)) {
+				return true;
+			}
+
+			unassign(requirement);
+			if (activated) {
+				active.remove(provider);
+				for (int i = agenda.size() - 1; i >= size; i--) {
+					agenda.remove(i);
+				}
+			}
+			if (timedOut) {
+				return false;
+			}
+		}
+
+		if (Namespace.RESOLUTION_OPTIONAL.equals(requirement.getDirectives()
+				.get(Namespace.REQUIREMENT_RESOLUTION_DIRECTIVE))) {
+			assignment.put(requirement, null);
+			if (search(index + 1)) {
+				return true;
+			}
+			assignment.remove(requirement);
+		}
+
+		return false;
+	}
+
+	private void assign(final Requirement requirement, final Capability cap) {
+		assignment.put(requirement, cap);
+		List<Resource> list = requirers.get(cap.getResource());
+		if (list == null) {
+			list = new ArrayList<Resource>();
+			requirers.put(cap.getResource(), list);
+		}
+		list.add(requirement.getResource());
+	}
+
+	private void unassign(final Requirement requirement) {
+		final Capability cap = assignment.remove(requirement);
+		final List<Resource> list = requirers.get(cap.getResource());
+		list.remove(requirement.getResource());
+		if (list.isEmpty()) {
+			requirers.remove(cap.getResource());
+		}
+	}
+
+	private void activate(final Resource resource) {
+		active.add(resource);
+		agenda.addAll(getRequirements(resource));
+	}
+
+	/**
+	 * get the requirements that are planned. The requirements of fragments
+	 * and the requirements with multiple cardinality are left to the
+	 * resolver.
+	 */
+	private List<Requirement> getRequirements(final Resource resource) {
+		final List<Requirement> result = new ArrayList<Requirement>();
+		if (!resource.getRequirements(HostNamespace.HOST_NAMESPACE).isEmpty()) {
+			return result;
+		}
+		for (final Requirement requirement : resource.getRequirements(null)) {
+			final Map<String, String> directives = requirement
+					.getDirectives();
+			if (context.isEffective(requirement)
+					&& !PackageNamespace.RESOLUTION_DYNAMIC.equals(directives
+							.get(Namespace.REQUIREMENT_RESOLUTION_DIRECTIVE))
+					&& !Namespace.CARDINALITY_MULTIPLE.equals(directives
+							.get(Namespace.REQUIREMENT_CARDINALITY_DIRECTIVE))) {
+				result.add(requirement);
+			}
+		}
+		return result;
+	}
+
+	private List<Capability> getCandidates(final Requirement requirement) {
+		List<Capability> caps = candidates.get(requirement);
+		if (caps == null) {
+			caps = new ArrayList<Capability>(
+					context.findProviders(requirement));
+			filter(requirement, caps);
+			candidates.put(requirement, caps);
+		}
+		return caps;
+	}
+
+	/**
+	 * check if a resource could be resolved at all, only considering the
+	 * existence of candidates. Candidates of unsatisfiable resources are
+	 * pruned from the search.
+	 */
+	private boolean isSatisfiable(final Resource resource) {
+		final Boolean known = satisfiable.get(resource);
+		if (known != null) {
+			return known.booleanValue();
+		}
+
+		// cycles are assumed to be satisfiable
+		satisfiable.put(resource, Boolean.TRUE);
+		for (final Requirement requirement : getRequirements(resource)) {
+			if (Namespace.RESOLUTION_OPTIONAL.equals(requirement
+					.getDirectives().get(
+							Namespace.REQUIREMENT_RESOLUTION_DIRECTIVE))) {
+				continue;
+			}
+			boolean found = false;
+			for (final Capability cap : getCandidates(requirement)) {
+				final Resource provider = cap.getResource();
+				if (wirings.get(provider) != null || isSatisfiable(provider)) {
+					found = true;
+					break;
+				}
+			}
+			if (!found) {
+				satisfiable.put(resource, Boolean.FALSE);
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * check the uses constraints of the package spaces that an assignment
+	 * can affect: the space of the requiring resource and of the planned
+	 * resources that, transitively, require one of its capabilities.
+	 */
+	private boolean isConsistent(final Resource changed) {
+		final HashMap<Resource, Map<String, Capability>> spaces = new HashMap<Resource, Map<String, Capability>>();
+		final HashSet<Resource> affected = new HashSet<Resource>();
+		final ArrayList<Resource> queue = new ArrayList<Resource>();
+		queue.add(changed);
+		while (!queue.isEmpty()) {
+			final Resource resource = queue.remove(queue.size() - 1);
+			if (!affected.add(resource)) {
+				continue;
+			}
+			final List<Resource> list = requirers.get(resource);
+			if (list != null) {
+				queue.addAll(list);
+			}
+
+			final Map<String, Capability> space = getPackageSpace(resource,
+					spaces);
+			for (final Capability cap : space.values()) {
+				if (cap.getResource() == resource) {
+					continue;
+				}
+				final HashMap<String, Capability> constraints = new HashMap<String, Capability>();
+				if (!addUses(cap, constraints, spaces)) {
+					return false;
+				}
+				for (final Map.Entry<String, Capability> constraint : constraints
+						.entrySet()) {
+					final Capability seen = space.get(constraint.getKey());
+					if (seen != null && seen != constraint.getValue()) {
+						return false;
+					}
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * collect the sources of the packages that an exported package uses,
+	 * transitively.
+	 *
+	 * @return false if the uses constraints contradict each other.
+	 */
+	private boolean addUses(final Capability cap,
+			final Map<String, Capability> constraints,
+			final Map<Resource, Map<String, Capability>> spaces) {
+		final String uses = cap.getDirectives().get(
+				Namespace.CAPABILITY_USES_DIRECTIVE);
+		if (uses == null) {
+			return true;
+		}
+
+		final Map<String, Capability> space = getPackageSpace(
+				cap.getResource(), spaces);
+		for (final String pkg : Utils.splitString(uses, ',')) {
+			final Capability source = space.get(pkg);
+			if (source == null) {
+				continue;
+			}
+			final Capability existing = constraints.put(pkg, source);
+			if (existing == null) {
+				if (!addUses(source, constraints, spaces)) {
+					return false;
+				}
+			} else if (existing != source) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * get the package space of a resource: the imported packages, the
+	 * packages of required bundles and the own exports, as planned or as
+	 * wired.
+	 */
+	private Map<String, Capability> getPackageSpace(final Resource resource,
+			final Map<Resource, Map<String, Capability>> spaces) {
+		Map<String, Capability> space = spaces.get(resource);
+		if (space != null) {
+			return space;
+		}
+
+		space = new HashMap<String, Capability>();
+		final Wiring wiring = wirings.get(resource);
+		if (wiring != null) {
+			final List<Wire> wires = wiring
+					.getRequiredResourceWires(PackageNamespace.PACKAGE_NAMESPACE);
+			if (wires != null) {
+				for (final Wire wire : wires) {
+					addPackage(space, wire.getCapability());
+				}
+			}
+			final List<Capability> exports = wiring
+					.getResourceCapabilities(PackageNamespace.PACKAGE_NAMESPACE);
+			if (exports != null) {
+				for (final Capability export : exports) {
+					addPackage(space, export);
+				}
+			}
+		} else {
+			final List<Capability> required = new ArrayList<Capability>();
+			for (final Requirement requirement : resource.getRequirements(null)) {
+				final Capability cap = assignment.get(requirement);
+				if (cap == null) {
+					continue;
+				}
+				if (PackageNamespace.PACKAGE_NAMESPACE.equals(cap
+						.getNamespace())) {
+					addPackage(space, cap);
+				} else if (BundleNamespace.BUNDLE_NAMESPACE.equals(cap
+						.getNamespace())) {
+					required.add(cap);
+				}
+			}
+			// imports take precedence over required bundles
+			for (final Capability cap : required) {
+				for (final Capability export : cap.getResource()
+						.getCapabilities(PackageNamespace.PACKAGE_NAMESPACE)) {
+					addPackage(space, export);
+				}
+			}
+			for (final Capability export : resource
+					.getCapabilities(PackageNamespace.PACKAGE_NAMESPACE)) {
+				addPackage(space, export);
+			}
+		}
+		spaces.put(resource, space);
+		return space;
+	}
+
+	private static void addPackage(final Map<String, Capability> space,
+			final Capability cap) {
+		final Object pkg = cap.getAttributes().get(
+				PackageNamespace.PACKAGE_NAMESPACE);
+		if (pkg instanceof String && !space.containsKey(pkg)) {
+			space.put((String) pkg, cap);
+		}
+	}
+
+}
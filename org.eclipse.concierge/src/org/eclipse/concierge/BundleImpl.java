@@ -13,8 +13,11 @@
 package org.eclipse.concierge;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
 import java.io.DataInputStream;
+import java.io.DataOutput;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -25,7 +28,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Method;
 import java.net.MalformedURLException;
-import java.net.URISyntaxException;
 import java.net.URL;
 import java.security.CodeSource;
 import java.security.PermissionCollection;
@@ -50,6 +52,8 @@ import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.Vector;
 import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.jar.Attributes;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
@@ -67,6 +71,7 @@ import org.eclipse.concierge.Resources.BundleCapabilityImpl;
 import org.eclipse.concierge.Resources.BundleRequirementImpl;
 import org.eclipse.concierge.Resources.ConciergeBundleWire;
 import org.eclipse.concierge.Resources.ConciergeBundleWiring;
+import org.eclipse.concierge.Resources.GenericReqCap;
 import org.eclipse.concierge.compat.LegacyBundleProcessing;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleActivator;
@@ -131,11 +136,40 @@ public class BundleImpl extends AbstractBundle implements BundleStartLevel {
 		dexFileLoader = fileloader;
 	}
 
+	/*
+	 * Parallel capable class loaders, Java 7 and later. The methods are
+	 * protected and invoked by the bundle class loaders.
+	 */
+	static final Method registerAsParallelCapable;
+	static final Method getClassLoadingLock;
+
+	static {
+		Method register;
+		Method lock;
+		try {
+			register = ClassLoader.class
+					.getDeclaredMethod("registerAsParallelCapable");
+			lock = ClassLoader.class.getDeclaredMethod("getClassLoadingLock",
+					new Class[] { String.class });
+		} catch (final Throwable ignore) {
+			register = null;
+			lock = null;
+		}
+		registerAsParallelCapable = register;
+		getClassLoadingLock = lock;
+	}
+
 	protected static final Pattern DIRECTIVE_LIST = Pattern
 			.compile("\\s*([^:]*)\\s*:=\\s*\"\\s*(.+)*?\\s*\"\\s*");
 
 	private static final int TIMEOUT = 10000;
 
+	/**
+	 * true if the registration of the bundle class loaders as parallel
+	 * capable has been attempted.
+	 */
+	private static volatile boolean parallelCapable;
+
 	/**
 	 * the default name of stored bundles.
 	 */
@@ -147,6 +181,22 @@ public class BundleImpl extends AbstractBundle implements BundleStartLevel {
 	 */
 	private static final String CONTENT_DIRECTORY_NAME = "content";
 
+	/**
+	 * the name of the directory for the extracted embedded jars of bundles
+	 * that are kept packed.
+	 */
+	private static final String EMBEDDED_DIRECTORY_NAME = "embedded";
+
+	/**
+	 * the name of the stored requirements and capabilities of a revision.
+	 */
+	private static final String RESOURCES_FILE_NAME = "resources";
+
+	/**
+	 * the version of the format of the stored requirements and capabilities.
+	 */
+	private static final int RESOURCES_FORMAT = 1;
+
 	private static final short FRAGMENT_ATTACHMENT_NEVER = -1;
 
 	private static final short FRAGMENT_ATTACHMENT_RESOLVETIME = 1;
@@ -238,15 +288,45 @@ public class BundleImpl extends AbstractBundle implements BundleStartLevel {
 			throws IOException, BundleException {
 		this.framework = framework;
 
-		// this.content = new JarBundle(new JarFile(file));
 		final DataInputStream in = new DataInputStream(new FileInputStream(
 				metadata));
+		try {
+			restore(in, false);
+		} finally {
+			in.close();
+		}
+	}
+
+	// framework restart case, from a record of the framework index
+	BundleImpl(final Concierge framework, final DataInput index)
+			throws IOException, BundleException {
+		this.framework = framework;
+		restore(index, true);
+	}
+
+	private void restore(final DataInput in, final boolean indexed)
+			throws IOException, BundleException {
 		// read current revision from metadata
 		this.currentRevisionNumber = in.readInt();
 
 		this.bundleId = in.readLong();
 		this.location = in.readUTF();
 
+		final int level = in.readInt();
+		final short start = in.readShort();
+		final boolean lazy = in.readBoolean();
+		final long modified = in.readLong();
+
+		// the index also holds the manifest headers
+		Manifest manifest = null;
+		if (indexed) {
+			manifest = new Manifest();
+			final Attributes attrs = manifest.getMainAttributes();
+			for (int i = in.readInt(); i > 0; i--) {
+				attrs.putValue(in.readUTF(), readString(in));
+			}
+		}
+
 		this.storageLocation = framework.STORAGE_LOCATION + bundleId
 				+ File.separatorChar;
 
@@ -257,17 +337,27 @@ public class BundleImpl extends AbstractBundle implements BundleStartLevel {
 				+ CONTENT_DIRECTORY_NAME + currentRevisionNumber);
 
 		if (file.exists() && file.isFile()) {
-			final JarFile jarFile = new JarFile(file);
-			final Manifest manifest = jarFile.getManifest();
-			final String[] classpathStrings = readProperties(
-					manifest.getMainAttributes(), Constants.BUNDLE_CLASSPATH,
-					new String[] { "." });
-
-			this.currentRevision = new JarBundleRevision(currentRevisionNumber,
-					jarFile, manifest, classpathStrings);
+			if (manifest == null) {
+				final JarFile jarFile = new JarFile(file);
+				manifest = jarFile.getManifest();
+				this.currentRevision = new JarBundleRevision(
+						currentRevisionNumber, jarFile, manifest,
+						readProperties(manifest.getMainAttributes(),
+								Constants.BUNDLE_CLASSPATH,
+								new String[] { "." }));
+			} else {
+				// the jar file is opened when it is first accessed
+				this.currentRevision = new JarBundleRevision(
+						currentRevisionNumber, file, manifest,
+						readProperties(manifest.getMainAttributes(),
+								Constants.BUNDLE_CLASSPATH,
+								new String[] { "." }));
+			}
 		} else if (contentDir.exists() && contentDir.isDirectory()) {
-			final Manifest manifest = new Manifest(new FileInputStream(
-					new File(contentDir, JarFile.MANIFEST_NAME)));
+			if (manifest == null) {
+				manifest = new Manifest(new FileInputStream(new File(
+						contentDir, JarFile.MANIFEST_NAME)));
+			}
 			final String[] classpathStrings = readProperties(
 					manifest.getMainAttributes(), Constants.BUNDLE_CLASSPATH,
 					new String[] { "." });
@@ -276,18 +366,16 @@ public class BundleImpl extends AbstractBundle implements BundleStartLevel {
 					currentRevisionNumber, contentDir.getAbsolutePath(),
 					manifest, classpathStrings);
 		} else {
-			in.close();
 			throw new BundleException("Bundle revision "
 					+ currentRevisionNumber + " does not exist",
 					BundleException.READ_ERROR);
 		}
 
-		this.startlevel = in.readInt();
+		this.startlevel = level;
 		this.state = Bundle.INSTALLED;
-		this.autostart = in.readShort();
-		this.lazyActivation = in.readBoolean();
-		this.lastModified = in.readLong();
-		in.close();
+		this.autostart = start;
+		this.lazyActivation = lazy;
+		this.lastModified = modified;
 		this.context = framework.createBundleContext(this);
 
 		if (framework.SECURITY_ENABLED) {
@@ -303,13 +391,7 @@ public class BundleImpl extends AbstractBundle implements BundleStartLevel {
 		try {
 			out = new DataOutputStream(new FileOutputStream(new File(
 					storageLocation, "meta")));
-			out.writeInt(currentRevisionNumber);
-			out.writeLong(bundleId);
-			out.writeUTF(location);
-			out.writeInt(startlevel);
-			out.writeShort(autostart);
-			out.writeBoolean(lazyActivation);
-			out.writeLong(lastModified);
+			writeMetadata(out);
 		} catch (final IOException ioe) {
 			ioe.printStackTrace();
 		} finally {
@@ -323,6 +405,46 @@ public class BundleImpl extends AbstractBundle implements BundleStartLevel {
 		}
 	}
 
+	private void writeMetadata(final DataOutput out) throws IOException {
+		out.writeInt(currentRevisionNumber);
+		out.writeLong(bundleId);
+		out.writeUTF(location);
+		out.writeInt(startlevel);
+		out.writeShort(autostart);
+		out.writeBoolean(lazyActivation);
+		out.writeLong(lastModified);
+	}
+
+	/**
+	 * write the metadata and the manifest headers of the bundle to the
+	 * framework index.
+	 */
+	void writeIndexRecord(final DataOutput out) throws IOException {
+		writeMetadata(out);
+		out.writeInt(headers.size());
+		for (final Map.Entry<String, String> entry : headers.entrySet()) {
+			out.writeUTF(entry.getKey());
+			writeString(out, entry.getValue());
+		}
+	}
+
+	/**
+	 * write a string as length-prefixed UTF-8 bytes. Unlike writeUTF, this
+	 * is not limited to 64 KB.
+	 */
+	private static void writeString(final DataOutput out, final String s)
+			throws IOException {
+		final byte[] bytes = s.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(final DataInput in) throws IOException {
+		final byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
 	/**
 	 * Reads and processes input stream: - writes bundle to storage - processes
 	 * manifest
@@ -407,8 +529,7 @@ public class BundleImpl extends AbstractBundle implements BundleStartLevel {
 
 		// register bundle with framework:
 		synchronized (framework) {
-			framework.bundles.add(this);
-			framework.bundleID_bundles.put(new Long(getBundleId()), this);
+			framework.addBundle(this);
 			framework.symbolicName_bundles.insert(
 					currentRevision.getSymbolicName(), this);
 			framework.location_bundles.put(location, this);
@@ -755,6 +876,12 @@ public class BundleImpl extends AbstractBundle implements BundleStartLevel {
 			framework.symbolicName_bundles.remove(
 					currentRevision.getSymbolicName(), this);
 			currentRevision.cleanup(true);
+			// release the open files, they are reopened while still in use
+			try {
+				currentRevision.close();
+			} catch (final IOException ioe) {
+				// ignore
+			}
 			currentRevision = null;
 
 			framework.location_bundles.remove(location);
@@ -884,6 +1011,15 @@ public class BundleImpl extends AbstractBundle implements BundleStartLevel {
 				rev.wiring.cleanup();
 				rev.wiring = null;
 			}
+
+			// release the files of the removed revisions
+			if (rev != currentRevision) {
+				try {
+					rev.close();
+				} catch (final IOException ioe) {
+					// ignore
+				}
+			}
 		}
 
 		revisions.clear();
@@ -895,7 +1031,7 @@ public class BundleImpl extends AbstractBundle implements BundleStartLevel {
 			currentRevision.refresh();
 
 			// remove from framework wirings
-			framework.wirings.remove(currentRevision);
+			framework.removeWiring(currentRevision);
 
 			// clear and restore dynamic imports
 			currentRevision.dynamicImports.clear();
@@ -909,6 +1045,7 @@ public class BundleImpl extends AbstractBundle implements BundleStartLevel {
 
 			}
 		}
+		framework.invalidateLookups();
 	}
 
 	/**
@@ -1256,56 +1393,24 @@ public class BundleImpl extends AbstractBundle implements BundleStartLevel {
 		return framework.isSecurityEnabled();
 	}
 
-	final InputStream getURLResource(final URL url, final int rev)
-			throws IOException {
-		String frag;
-		try {
-			frag = url.toURI().getFragment();
-		} catch (final URISyntaxException e) {
-			e.printStackTrace();
-			frag = null;
-		}
-
+	/**
+	 * get a revision of the bundle.
+	 * 
+	 * @param rev
+	 *            the revision id.
+	 * @return the revision or <code>null</code> if there is no revision with
+	 *         the id.
+	 */
+	final Revision getRevision(final int rev) {
 		for (final BundleRevision brevision : revisions) {
 			final Revision revision = (Revision) brevision;
 			if (revision.revId == rev) {
-				if (frag == null) {
-					return revision.retrieveFile(null, url.getPath());
-				} else {
-					return revision.retrieveFile(url.getPath(), frag);
-				}
+				return revision;
 			}
 		}
-
 		return null;
 	}
 
-	final long getResourceLength(final URL url, final int rev) {
-		String frag;
-		try {
-			frag = url.toURI().getFragment();
-		} catch (final URISyntaxException e) {
-			e.printStackTrace();
-			frag = null;
-		}
-
-		try {
-			for (final BundleRevision brevision : revisions) {
-				final Revision revision = (Revision) brevision;
-				if (revision.revId == rev) {
-					if (frag == null) {
-						return revision.retrieveFileLength(null, url.getPath());
-					} else {
-						return revision.retrieveFileLength(url.getPath(), frag);
-					}
-				}
-			}
-		} catch (final IOException e) {
-		}
-
-		return -1;
-	}
-
 	// BundleStartLevel
 
 	/**
@@ -1458,6 +1563,7 @@ public class BundleImpl extends AbstractBundle implements BundleStartLevel {
 		protected static final int GET_URL = 0;
 		protected static final int RETRIEVE_INPUT_STREAM = 1;
 		protected static final int GET_CONTENT_LENGTH = 2;
+		protected static final int RETRIEVE_BYTES = 3;
 
 		protected final int revId;
 		protected final MultiMap<String, BundleCapability> capabilities;
@@ -1465,6 +1571,12 @@ public class BundleImpl extends AbstractBundle implements BundleStartLevel {
 		private final List<HostedCapability> hostedCapabilities = new ArrayList<HostedCapability>();
 		protected final List<BundleRequirement> dynamicImports;
 
+		/**
+		 * the compiled patterns of the dynamic imports, guarded by
+		 * dynamicImports.
+		 */
+		private DynamicImportMatcher dynamicImportMatcher;
+
 		private BundleCapability identity;
 
 		BundleClassLoader classloader;
@@ -1475,14 +1587,20 @@ public class BundleImpl extends AbstractBundle implements BundleStartLevel {
 		protected String[] classpath;
 		protected Map<String, String> nativeLibraries;
 		protected List<Revision> fragments;
-		private final String[] classpathStrings;
+		protected final String[] classpathStrings;
 		private final short fragmentAttachmentPolicy;
 
-		protected ConciergeBundleWiring wiring;
-		protected HashMap<String, BundleWire> packageImportWires;
-		protected List<BundleWire> requireBundleWires;
+		protected volatile ConciergeBundleWiring wiring;
+		protected volatile HashMap<String, BundleWire> packageImportWires;
+		protected volatile List<BundleWire> requireBundleWires;
 		protected final HashSet<String> exportIndex;
 
+		/**
+		 * the directories contained in each classpath entry, built on the
+		 * first lookup.
+		 */
+		private final ConcurrentHashMap<String, Set<String>> directoryIndex = new ConcurrentHashMap<String, Set<String>>();
+
 		protected Revision(final int revId, final Manifest manifest,
 				final String[] classpathStrings) throws BundleException {
 			this.revId = revId;
@@ -1505,78 +1623,18 @@ public class BundleImpl extends AbstractBundle implements BundleStartLevel {
 						+ "`", BundleException.MANIFEST_ERROR);
 			}
 
-			// process generic requirements and capabilities
-			final String reqStr = attrs.getValue(Constants.REQUIRE_CAPABILITY);
-			this.requirements = parseRequirements(reqStr);
-
-			final String capStr = attrs.getValue(Constants.PROVIDE_CAPABILITY);
-			this.capabilities = parseCapabilities(capStr);
-
+			this.capabilities = new MultiMap<String, BundleCapability>();
+			this.requirements = new MultiMap<String, BundleRequirement>();
 			this.dynamicImports = new ArrayList<BundleRequirement>();
 
-			LegacyBundleProcessing proc;
-
-			switch (mfVer) {
-			default:
-				proc = framework.getService(LegacyBundleProcessing.class,
-						LegacyBundleProcessing.VERSION_ONE);
-				if (proc == null) {
-					throw new BundleException(
-							"Bundle manifest version 1 is not supported by this deployment",
-							BundleException.UNSUPPORTED_OPERATION);
-				}
-
-				final Tuple<List<BundleCapability>, List<BundleRequirement>> tuple = proc
-						.processManifest(this, manifest);
-
-				for (final BundleCapability cap : tuple.getFormer()) {
-					capabilities.insert(cap.getNamespace(), cap);
-				}
-
-				for (final BundleRequirement req : tuple.getLatter()) {
-					final String namespace = req.getNamespace();
-
-					requirements.insert(namespace, req);
-
-					if (PackageNamespace.PACKAGE_NAMESPACE.equals(namespace)
-							&& PackageNamespace.RESOLUTION_DYNAMIC
-									.equals(req
-											.getDirectives()
-											.get(Namespace.REQUIREMENT_RESOLUTION_DIRECTIVE))) {
-						dynamicImports.add(req);
-					}
-				}
-
-				break;
-			case 2:
-				proc = framework.getService(LegacyBundleProcessing.class,
-						LegacyBundleProcessing.VERSION_TWO);
-				if (proc == null) {
-					throw new BundleException(
-							"Bundle manifest version 2 is not supported by this deployment",
-							BundleException.UNSUPPORTED_OPERATION);
-				}
-
-				final Tuple<List<BundleCapability>, List<BundleRequirement>> tuple2 = proc
-						.processManifest(this, manifest);
-
-				for (final BundleCapability cap : tuple2.getFormer()) {
-					capabilities.insert(cap.getNamespace(), cap);
-				}
-
-				for (final BundleRequirement req : tuple2.getLatter()) {
-					final String namespace = req.getNamespace();
-
-					requirements.insert(namespace, req);
-
-					if (PackageNamespace.PACKAGE_NAMESPACE.equals(namespace)
-							&& PackageNamespace.RESOLUTION_DYNAMIC
-									.equals(req
-											.getDirectives()
-											.get(Namespace.REQUIREMENT_RESOLUTION_DIRECTIVE))) {
-						dynamicImports.add(req);
-					}
-				}
+			// restore the requirements and capabilities parsed before or
+			// parse them now and store them for the next restart
+			final File snapshot = new File(storageLocation,
+					RESOURCES_FILE_NAME + revId);
+			final int hash = attrs.hashCode();
+			if (!restoreResources(snapshot, hash)) {
+				processManifest(manifest, mfVer);
+				storeResources(snapshot, hash);
 			}
 
 			// create export index
@@ -1702,6 +1760,152 @@ public class BundleImpl extends AbstractBundle implements BundleStartLevel {
 			classloader = new BundleClassLoader();
 		}
 
+		private void processManifest(final Manifest manifest, final int mfVer)
+				throws BundleException {
+			// process generic requirements and capabilities
+			final Attributes attrs = manifest.getMainAttributes();
+
+			final String reqStr = attrs.getValue(Constants.REQUIRE_CAPABILITY);
+			requirements.insertMap(parseRequirements(reqStr));
+
+			final String capStr = attrs.getValue(Constants.PROVIDE_CAPABILITY);
+			capabilities.insertMap(parseCapabilities(capStr));
+
+			LegacyBundleProcessing proc;
+
+			switch (mfVer) {
+			default:
+				proc = framework.getService(LegacyBundleProcessing.class,
+						LegacyBundleProcessing.VERSION_ONE);
+				if (proc == null) {
+					throw new BundleException(
+							"Bundle manifest version 1 is not supported by this deployment",
+							BundleException.UNSUPPORTED_OPERATION);
+				}
+
+				final Tuple<List<BundleCapability>, List<BundleRequirement>> tuple = proc
+						.processManifest(this, manifest);
+
+				for (final BundleCapability cap : tuple.getFormer()) {
+					capabilities.insert(cap.getNamespace(), cap);
+				}
+
+				for (final BundleRequirement req : tuple.getLatter()) {
+					addRequirement(req);
+				}
+
+				break;
+			case 2:
+				proc = framework.getService(LegacyBundleProcessing.class,
+						LegacyBundleProcessing.VERSION_TWO);
+				if (proc == null) {
+					throw new BundleException(
+							"Bundle manifest version 2 is not supported by this deployment",
+							BundleException.UNSUPPORTED_OPERATION);
+				}
+
+				final Tuple<List<BundleCapability>, List<BundleRequirement>> tuple2 = proc
+						.processManifest(this, manifest);
+
+				for (final BundleCapability cap : tuple2.getFormer()) {
+					capabilities.insert(cap.getNamespace(), cap);
+				}
+
+				for (final BundleRequirement req : tuple2.getLatter()) {
+					addRequirement(req);
+				}
+			}
+		}
+
+		private void addRequirement(final BundleRequirement req) {
+			final String namespace = req.getNamespace();
+
+			requirements.insert(namespace, req);
+
+			if (PackageNamespace.PACKAGE_NAMESPACE.equals(namespace)
+					&& PackageNamespace.RESOLUTION_DYNAMIC.equals(req
+							.getDirectives().get(
+									Namespace.REQUIREMENT_RESOLUTION_DIRECTIVE))) {
+				dynamicImports.add(req);
+			}
+		}
+
+		/**
+		 * restore the requirements and capabilities from the snapshot stored
+		 * for this revision.
+		 * 
+		 * @return true if the snapshot exists and belongs to the manifest.
+		 */
+		private boolean restoreResources(final File file, final int hash) {
+			if (!file.exists()) {
+				return false;
+			}
+
+			final List<BundleCapability> caps = new ArrayList<BundleCapability>();
+			final List<BundleRequirement> reqs = new ArrayList<BundleRequirement>();
+			try {
+				final DataInputStream in = new DataInputStream(
+						new BufferedInputStream(new FileInputStream(file)));
+				try {
+					if (in.readInt() != RESOURCES_FORMAT
+							|| in.readInt() != hash) {
+						return false;
+					}
+					for (int i = in.readInt(); i > 0; i--) {
+						caps.add(new BundleCapabilityImpl(this, in));
+					}
+					for (int i = in.readInt(); i > 0; i--) {
+						reqs.add(new BundleRequirementImpl(this, in));
+					}
+				} finally {
+					in.close();
+				}
+			} catch (final IOException ioe) {
+				// parse the manifest instead
+				return false;
+			}
+
+			for (final BundleCapability cap : caps) {
+				capabilities.insert(cap.getNamespace(), cap);
+			}
+			for (final BundleRequirement req : reqs) {
+				addRequirement(req);
+			}
+			return true;
+		}
+
+		private void storeResources(final File file, final int hash) {
+			try {
+				final DataOutputStream out = new DataOutputStream(
+						new BufferedOutputStream(new FileOutputStream(file)));
+				try {
+					out.writeInt(RESOURCES_FORMAT);
+					out.writeInt(hash);
+					final List<BundleCapability> caps = capabilities
+							.getAllValues();
+					out.writeInt(caps.size());
+					for (final BundleCapability cap : caps) {
+						((GenericReqCap) cap).write(out);
+					}
+					final List<BundleRequirement> reqs = requirements
+							.getAllValues();
+					out.writeInt(reqs.size());
+					for (final BundleRequirement req : reqs) {
+						((GenericReqCap) req).write(out);
+					}
+				} finally {
+					out.close();
+				}
+			} catch (final Exception e) {
+				// e.g., an attribute type that cannot be stored
+				file.delete();
+				if (framework.DEBUG_BUNDLES) {
+					framework.logger.log(LogService.LOG_DEBUG,
+							"Could not store the resources of " + this, e);
+				}
+			}
+		}
+
 		private MultiMap<String, BundleRequirement> parseRequirements(
 				final String str) throws BundleException {
 			final MultiMap<String, BundleRequirement> result = new MultiMap<String, BundleRequirement>();
@@ -2089,7 +2293,7 @@ public class BundleImpl extends AbstractBundle implements BundleStartLevel {
 			if (currentRevision == null) {
 				if (wiring != null) {
 					wiring.cleanup();
-					framework.wirings.remove(this);
+					framework.removeWiring(this);
 				}
 				wiring = null;
 				packageImportWires = null;
@@ -2112,6 +2316,7 @@ public class BundleImpl extends AbstractBundle implements BundleStartLevel {
 			this.wiring = wiring;
 			packageImportWires = wiring.getPackageImportWires();
 			requireBundleWires = wiring.getRequireBundleWires();
+			framework.invalidateLookups();
 		}
 
 		ConciergeBundleWiring addAdditionalWires(final List<Wire> wires) {
@@ -2121,6 +2326,7 @@ public class BundleImpl extends AbstractBundle implements BundleStartLevel {
 
 			packageImportWires = wiring.getPackageImportWires();
 			requireBundleWires = wiring.getRequireBundleWires();
+			framework.invalidateLookups();
 			return wiring;
 		}
 
@@ -2302,6 +2508,7 @@ public class BundleImpl extends AbstractBundle implements BundleStartLevel {
 				processNativeLibraries(newNativeStrings);
 			}
 
+			framework.invalidateLookups();
 			return true;
 		}
 
@@ -2423,25 +2630,208 @@ public class BundleImpl extends AbstractBundle implements BundleStartLevel {
 		protected abstract long retrieveFileLength(final String classpath,
 				final String filename) throws IOException;
 
-		protected abstract void close() throws IOException;
+		/**
+		 * read a file completely.
+		 * 
+		 * @param classpath
+		 *            the classpath entry.
+		 * @param filename
+		 *            the name of the file.
+		 * @return the content or <code>null</code> if there is no such file.
+		 * @throws IOException
+		 */
+		protected abstract byte[] retrieveBytes(final String classpath,
+				final String filename) throws IOException;
 
-		URL createURL(final String name1, final String fragment)
-				throws MalformedURLException {
-			final String name = name1.replace('\\', '/');
+		protected abstract void close() throws IOException;
 
-			return new URL("bundle", bundleId + "." + revId,
-					(name.charAt(0) == '/' ? name : "/" + name)
-							+ (fragment == null ? "" : "#" + fragment));
-		}
+		/**
+		 * add the directories of a classpath entry to the index.
+		 * 
+		 * @param classpath
+		 *            the classpath entry, <code>null</code> or "." for the
+		 *            bundle root.
+		 * @param dirs
+		 *            the set of directories.
+		 * @throws IOException
+		 */
+		protected abstract void indexDirectories(final String classpath,
+				final Set<String> dirs) throws IOException;
 
-		class BundleClassLoader extends ClassLoader implements BundleReference {
+		/**
+		 * check if a classpath entry can contain a file, i.e., if the
+		 * directory of the file exists in the entry. Lets the class loader
+		 * skip entries without opening them.
+		 * 
+		 * @param classpath
+		 *            the classpath entry.
+		 * @param filename
+		 *            the name of the file.
+		 * @return <code>false</code> if the file is not in the entry.
+		 */
+		boolean mayContain(final String classpath, final String filename) {
+			final String key = classpath == null ? "." : classpath;
+			Set<String> dirs = directoryIndex.get(key);
+			if (dirs == null) {
+				dirs = new HashSet<String>();
+				try {
+					indexDirectories(classpath, dirs);
+				} catch (final IOException ioe) {
+					// cannot tell, let the lookup decide
+					return true;
+				}
+				directoryIndex.put(key, dirs);
+			}
+			final String name = filename.length() > 0
+					&& filename.charAt(0) == '/' ? filename.substring(1)
+					: filename;
+			final int pos = name.lastIndexOf('/');
+			return dirs.contains(pos > -1 ? name.substring(0, pos) : "");
+		}
+
+		/**
+		 * add the directory of an entry and all its parents to the index.
+		 * 
+		 * @param entry
+		 *            the name of the entry.
+		 * @param dirs
+		 *            the set of directories.
+		 */
+		protected void addDirectories(final String entry, final Set<String> dirs) {
+			final String name = entry.replace('\\', '/');
+			int pos = name.lastIndexOf('/');
+			while (pos > 0) {
+				if (!dirs.add(name.substring(0, pos))) {
+					// parents are already known
+					break;
+				}
+				pos = name.lastIndexOf('/', pos - 1);
+			}
+			dirs.add("");
+		}
+
+		/**
+		 * find a file in a jar of the classpath. The jar is taken from the
+		 * open files of the framework.
+		 * 
+		 * @param jar
+		 *            the jar file.
+		 * @param classpath
+		 *            the classpath entry of the jar.
+		 * @param filename
+		 *            the name of the file.
+		 * @param mode
+		 *            the lookup mode.
+		 * @return the result of the lookup or <code>null</code>.
+		 * @throws IOException
+		 */
+		protected Object findInJar(final File jar, final String classpath,
+				final String filename, final int mode) throws IOException {
+			final Concierge.ZipFilePool.Handle handle = framework.zipFiles
+					.acquire(jar);
+			boolean release = true;
+			try {
+				final ZipEntry entry = handle.zipFile.getEntry(filename);
+				if (entry == null) {
+					return null;
+				}
+				switch (mode) {
+				case GET_URL:
+					return createURL(classpath, filename);
+				case RETRIEVE_INPUT_STREAM:
+					// the stream releases the file
+					release = false;
+					return framework.zipFiles.getInputStream(handle, entry);
+				case GET_CONTENT_LENGTH:
+					return entry.getSize();
+				case RETRIEVE_BYTES:
+					return readBytes(handle.zipFile.getInputStream(entry),
+							entry.getSize());
+				}
+				return null;
+			} finally {
+				if (release) {
+					framework.zipFiles.release(handle);
+				}
+			}
+		}
+
+		URL createURL(final String name1, final String fragment)
+				throws MalformedURLException {
+			final String name = name1.replace('\\', '/');
+
+			return new URL("bundle", bundleId + "." + revId,
+					(name.charAt(0) == '/' ? name : "/" + name)
+							+ (fragment == null ? "" : "#" + fragment));
+		}
+
+		class BundleClassLoader extends ClassLoader implements BundleReference {
 
 			public BundleClassLoader() {
 				// set Concierge Classloader as parent of BundleClassLoader
 				// super(Concierge.class.getClassLoader());
 				super(framework.parentClassLoader);
+
+				// the registration is caller sensitive and an inner class
+				// cannot have a static initializer, so the first instance
+				// registers the class loaders created after it
+				if (!parallelCapable) {
+					if (registerAsParallelCapable != null) {
+						try {
+							registerAsParallelCapable.invoke(null);
+						} catch (final Exception e) {
+							// stay serial
+						}
+					}
+					parallelCapable = true;
+				}
+				locks = getClassLoadingLock == null ? new ConcurrentHashMap<String, Object>()
+						: null;
 			}
 
+			/**
+			 * the locks per class name on VMs that do not provide them, null
+			 * otherwise.
+			 */
+			private final ConcurrentHashMap<String, Object> locks;
+
+			/**
+			 * get the lock for loading a class.
+			 * 
+			 * @param classname
+			 *            the name of the class.
+			 * @return the lock.
+			 */
+			private Object getLock(final String classname) {
+				if (locks == null) {
+					try {
+						return getClassLoadingLock.invoke(this, classname);
+					} catch (final Exception e) {
+						return this;
+					}
+				}
+				final Object lock = new Object();
+				final Object existing = locks.putIfAbsent(classname, lock);
+				return existing == null ? lock : existing;
+			}
+
+			/**
+			 * the classes and resources that were not found -> the lookup
+			 * epoch of the framework when they were not found. The names of
+			 * resources start with a slash.
+			 */
+			private final ConcurrentHashMap<String, Integer> misses = new ConcurrentHashMap<String, Integer>();
+
+			/**
+			 * the lookup epoch of the framework the misses belong to.
+			 */
+			private volatile int missesEpoch;
+
+			// statistics
+			private final AtomicLong missHits = new AtomicLong();
+
+			private final AtomicLong missLookups = new AtomicLong();
+
 			/**
 			 * 
 			 * @see java.lang.ClassLoader#loadClass(java.lang.String)
@@ -2467,14 +2857,86 @@ public class BundleImpl extends AbstractBundle implements BundleStartLevel {
 			 */
 			protected final Class<?> findClass(final String name)
 					throws ClassNotFoundException {
+				if (isMissing(name)) {
+					throw new ClassNotFoundException(name);
+				}
+				final int epoch = framework.lookupEpoch.get();
 				final Class<?> result = (Class<?>) findResource0(
 						packageOf(name), name, true, false);
 				if (result == null) {
+					addMissing(name, epoch);
 					throw new ClassNotFoundException(name);
 				}
 				return result;
 			}
 
+			/**
+			 * check if a class or resource is known to be missing.
+			 * 
+			 * @param key
+			 *            the name of the class or the name of the resource
+			 *            with a leading slash.
+			 * @return <code>true</code> if the last lookup did not find it.
+			 */
+			private boolean isMissing(final String key) {
+				if (framework.CLASSLOADER_MISSES <= 0
+						|| (state & (Bundle.INSTALLED | Bundle.UNINSTALLED)) != 0) {
+					return false;
+				}
+				missLookups.incrementAndGet();
+				final Integer epoch = misses.get(key);
+				if (epoch != null
+						&& epoch.intValue() == framework.lookupEpoch.get()) {
+					missHits.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+
+			/**
+			 * remember a class or resource as missing.
+			 * 
+			 * @param key
+			 *            the name of the class or the name of the resource
+			 *            with a leading slash.
+			 * @param epoch
+			 *            the lookup epoch of the framework when the lookup
+			 *            started.
+			 */
+			private void addMissing(final String key, final int epoch) {
+				if (framework.CLASSLOADER_MISSES <= 0
+						|| (state & (Bundle.INSTALLED | Bundle.UNINSTALLED)) != 0
+						|| epoch != framework.lookupEpoch.get()) {
+					return;
+				}
+				// the misses of an older epoch are stale
+				if (missesEpoch != epoch
+						|| misses.size() >= framework.CLASSLOADER_MISSES) {
+					misses.clear();
+					missesEpoch = epoch;
+				}
+				misses.put(key, Integer.valueOf(epoch));
+			}
+
+			/**
+			 * get the number of lookups answered as missing without a search.
+			 * 
+			 * @return the number of hits.
+			 */
+			long getMissHits() {
+				return missHits.get();
+			}
+
+			/**
+			 * get the number of lookups that checked the missing classes and
+			 * resources.
+			 * 
+			 * @return the number of lookups.
+			 */
+			long getMissLookups() {
+				return missLookups.get();
+			}
+
 			@Override
 			public Enumeration<URL> getResources(final String name) {
 				return findResources(name);
@@ -2509,10 +2971,19 @@ public class BundleImpl extends AbstractBundle implements BundleStartLevel {
 			 */
 			protected URL findResource(final String name) {
 				final String strippedName = stripTrailing(name);
+				final String key = "/" + strippedName;
+				if (isMissing(key)) {
+					return null;
+				}
+				final int epoch = framework.lookupEpoch.get();
 				try {
-					return (URL) findResource0(
+					final URL url = (URL) findResource0(
 							packageOf(pseudoClassname(strippedName)),
 							strippedName, false, false);
+					if (url == null) {
+						addMissing(key, epoch);
+					}
+					return url;
 				} catch (final ClassNotFoundException e) {
 					// does not happen
 					e.printStackTrace();
@@ -2562,7 +3033,7 @@ public class BundleImpl extends AbstractBundle implements BundleStartLevel {
 			 * @throws ClassNotFoundException
 			 */
 			@SuppressWarnings("null")
-			private synchronized Object findResource0(final String pkg,
+			private Object findResource0(final String pkg,
 					final String name, final boolean isClass,
 					final boolean multiple) throws ClassNotFoundException {
 				final Vector<URL> resources = multiple ? new Vector<URL>()
@@ -2613,8 +3084,9 @@ public class BundleImpl extends AbstractBundle implements BundleStartLevel {
 				}
 
 				// Step 3: if wires exist, check if the resource is imported
-				if (wiring != null) {
-					final BundleWire delegation = packageImportWires.get(pkg);
+				final HashMap<String, BundleWire> importWires = packageImportWires;
+				if (wiring != null && importWires != null) {
+					final BundleWire delegation = importWires.get(pkg);
 					if (delegation != null) {
 
 						final BundleCapabilityImpl cap = (BundleCapabilityImpl) delegation
@@ -2664,7 +3136,7 @@ public class BundleImpl extends AbstractBundle implements BundleStartLevel {
 			 * @return
 			 * @throws ClassNotFoundException
 			 */
-			private synchronized Object findResource1(final String pkg,
+			private Object findResource1(final String pkg,
 					final String name, final boolean isClass,
 					final boolean multiple, final Vector<URL> resources)
 					throws ClassNotFoundException {
@@ -2726,30 +3198,85 @@ public class BundleImpl extends AbstractBundle implements BundleStartLevel {
 
 				// Step 8: check dynamic imports
 				if (!dynamicImports.isEmpty()) {
+					final BundleCapability bundleCap = wireDynamicImport(pkg);
+					if (bundleCap != null) {
+						final BundleRevision rev = bundleCap.getRevision();
+						if (!(rev instanceof Revision)) {
+							if (isClass) {
+								return framework.systemBundleClassLoader
+										.loadClass(name);
+							} else {
+								if (multiple) {
+									try {
+										final Enumeration<URL> e = framework.systemBundleClassLoader
+												.getResources(name);
+										while (e.hasMoreElements()) {
+											resources.add(e.nextElement());
+										}
+									} catch (final IOException ioe) {
+										// nothing we can do about it
+										// FIXME: to log
+									}
+								} else {
+									return framework.systemBundleClassLoader
+											.getResource(name);
+								}
+							}
+						} else {
+							return ((Revision) rev).classloader.findResource1(
+									pkg, name, isClass, multiple, resources);
+						}
+					}
+				}
 
-					for (final Iterator<BundleRequirement> iter = dynamicImports
-							.iterator(); iter.hasNext();) {
-						final BundleRequirement dynImport = iter.next();
+				// convenience for resources: delegate to boot class path as
+				// final fallback
+				if ("".equals(pkg) && !isClass && !multiple) {
+					return getParent().getResource(name);
+				}
 
-						// TODO: think of something better
-						final String dynImportPackage = dynImport
-								.getDirectives().get(Concierge.DIR_INTERNAL);
+				return resources;
+			}
 
-						// TODO: first check if dynImport could apply to the
-						// requested package!!!
-						if (RFC1960Filter.stringCompare(
-								dynImportPackage.toCharArray(), 0,
-								pkg.toCharArray(), 0) != 0) {
-							continue;
+			/**
+			 * wire a dynamic import of a package. The lock is not held while
+			 * the lookup is delegated to the provider.
+			 * 
+			 * @param pkg
+			 *            the package.
+			 * @return the capability the import is wired to or
+			 *         <code>null</code>.
+			 */
+			private BundleCapability wireDynamicImport(final String pkg) {
+				synchronized (dynamicImports) {
+					// wired by another thread?
+					final HashMap<String, BundleWire> importWires = packageImportWires;
+					if (wiring != null && importWires != null) {
+						final BundleWire wire = importWires.get(pkg);
+						if (wire != null
+								&& PackageNamespace.RESOLUTION_DYNAMIC
+										.equals(wire
+												.getRequirement()
+												.getDirectives()
+												.get(Namespace.REQUIREMENT_RESOLUTION_DIRECTIVE))) {
+							return wire.getCapability();
 						}
+					}
+
+					if (dynamicImportMatcher == null
+							|| !dynamicImportMatcher.isCurrent(dynamicImports)) {
+						dynamicImportMatcher = new DynamicImportMatcher(
+								dynamicImports);
+					}
 
+					for (final BundleRequirement dynImport : dynamicImportMatcher
+							.match(pkg)) {
 						final boolean wildcard = Namespace.CARDINALITY_MULTIPLE
 								.equals(dynImport
 										.getDirectives()
 										.get(Namespace.REQUIREMENT_CARDINALITY_DIRECTIVE));
-						List<BundleCapability> matches;
-						matches = framework.resolveDynamic(Revision.this, pkg,
-								dynImportPackage, dynImport, wildcard);
+						final List<BundleCapability> matches = framework
+								.resolveDynamic(Revision.this, pkg, dynImport);
 						if (matches != null && matches.size() > 0) {
 							final BundleCapability bundleCap = matches.get(0);
 
@@ -2764,55 +3291,24 @@ public class BundleImpl extends AbstractBundle implements BundleStartLevel {
 							((ConciergeBundleWiring) bundleCap.getRevision()
 									.getWiring()).addWire(wire);
 
-							packageImportWires
-									.put((String) bundleCap
-											.getAttributes()
-											.get(PackageNamespace.PACKAGE_NAMESPACE),
-											wire);
+							// copy on write, lookups read the wires unlocked
+							final HashMap<String, BundleWire> wires = new HashMap<String, BundleWire>(
+									packageImportWires);
+							wires.put((String) bundleCap.getAttributes().get(
+									PackageNamespace.PACKAGE_NAMESPACE), wire);
+							packageImportWires = wires;
+							framework.invalidateLookups();
 
 							if (!wildcard) {
 								// FIXME:
-								iter.remove();
+								dynamicImports.remove(dynImport);
 							}
 
-							final BundleRevision rev = bundleCap.getRevision();
-							if (!(rev instanceof Revision)) {
-								if (isClass) {
-									return framework.systemBundleClassLoader
-											.loadClass(name);
-								} else {
-									if (multiple) {
-										try {
-											final Enumeration<URL> e = framework.systemBundleClassLoader
-													.getResources(name);
-											while (e.hasMoreElements()) {
-												resources.add(e.nextElement());
-											}
-										} catch (final IOException ioe) {
-											// nothing we can do about it
-											// FIXME: to log
-										}
-									} else {
-										return framework.systemBundleClassLoader
-												.getResource(name);
-									}
-								}
-							} else {
-								return ((Revision) bundleCap.getRevision()).classloader
-										.findResource1(pkg, name, isClass,
-												multiple, resources);
-							}
+							return bundleCap;
 						}
 					}
+					return null;
 				}
-
-				// convenience for resources: delegate to boot class path as
-				// final fallback
-				if ("".equals(pkg) && !isClass && !multiple) {
-					return getParent().getResource(name);
-				}
-
-				return resources;
 			}
 
 			Set<String> listResources(final String path,
@@ -2955,7 +3451,30 @@ public class BundleImpl extends AbstractBundle implements BundleStartLevel {
 			 * @return the <code>Class</code> object if the class could be
 			 *         found. <code>null</code> otherwise.
 			 */
-			private synchronized Class<?> findOwnClass(final String classname) {
+			private Class<?> findOwnClass(final String classname) {
+				// classes already defined need no lock
+				if (dexClassLoader == null) {
+					final Class<?> clazz = findLoadedClass(classname);
+					if (clazz != null) {
+						definePackage(packageOf(classname));
+						return clazz;
+					}
+				}
+				synchronized (getLock(classname)) {
+					return defineOwnClass(classname);
+				}
+			}
+
+			/**
+			 * define a class of the bundle scope. Called with the class
+			 * loading lock of the class held.
+			 * 
+			 * @param classname
+			 *            the name of the class.
+			 * @return the <code>Class</code> object if the class could be
+			 *         found. <code>null</code> otherwise.
+			 */
+			private Class<?> defineOwnClass(final String classname) {
 				final Class<?> clazz;
 				if (dexClassLoader != null) {
 					clazz = findDexClass(classname);
@@ -2969,24 +3488,14 @@ public class BundleImpl extends AbstractBundle implements BundleStartLevel {
 				try {
 					final String filename = classToFile(classname);
 					for (int i = 0; i < classpath.length; i++) {
-						final InputStream input = retrieveFile(classpath[i],
-								filename);
-						if (input == null) {
+						if (!mayContain(classpath[i], filename)) {
+							continue;
+						}
+						byte[] bytes = retrieveBytes(classpath[i], filename);
+						if (bytes == null) {
 							continue;
 						}
 						try {
-							int len;
-							final ByteArrayOutputStream out = new ByteArrayOutputStream();
-							final BufferedInputStream bis = new BufferedInputStream(
-									input);
-							final byte[] chunk = new byte[Concierge.CLASSLOADER_BUFFER_SIZE];
-							while ((len = bis.read(chunk, 0,
-									Concierge.CLASSLOADER_BUFFER_SIZE)) > 0) {
-								out.write(chunk, 0, len);
-							}
-
-							byte[] bytes = out.toByteArray();
-
 							// call weaving hooks here
 							if (framework.hasWeavingHooks()) {
 								final WovenClassImpl wovenClass = new WovenClassImpl(
@@ -2994,11 +3503,18 @@ public class BundleImpl extends AbstractBundle implements BundleStartLevel {
 								framework.callWeavingHooks(wovenClass);
 								bytes = wovenClass.getBytes();
 
-								requirements.insertAll(
-										PackageNamespace.PACKAGE_NAMESPACE,
-										wovenClass.dynamicImportRequirements);
-								dynamicImports
-										.addAll(wovenClass.dynamicImportRequirements);
+								synchronized (dynamicImports) {
+									requirements
+											.insertAll(
+													PackageNamespace.PACKAGE_NAMESPACE,
+													wovenClass.dynamicImportRequirements);
+									dynamicImports
+											.addAll(wovenClass.dynamicImportRequirements);
+								}
+								if (!wovenClass.dynamicImportRequirements
+										.isEmpty()) {
+									framework.invalidateLookups();
+								}
 
 								final Class<?> ownClazz = defineClass(
 										classname, bytes, 0, bytes.length,
@@ -3016,9 +3532,6 @@ public class BundleImpl extends AbstractBundle implements BundleStartLevel {
 
 							return defineClass(classname, bytes, 0,
 									bytes.length, domain);
-						} catch (final IOException ioe) {
-							ioe.printStackTrace();
-							return null;
 						} catch (final LinkageError le) {
 							System.err.println("ERROR in " + toString() + ":");
 							le.printStackTrace();
@@ -3029,29 +3542,19 @@ public class BundleImpl extends AbstractBundle implements BundleStartLevel {
 					if (fragments != null) {
 						for (final Revision fragment : fragments) {
 							for (int i = 0; i < classpath.length; i++) {
-								final InputStream input = fragment
-										.retrieveFile(classpath[i], filename);
-								if (input == null) {
+								if (!fragment.mayContain(classpath[i], filename)) {
+									continue;
+								}
+								final byte[] bytes = fragment.retrieveBytes(
+										classpath[i], filename);
+								if (bytes == null) {
 									continue;
 								}
 								try {
-									int len;
-									final ByteArrayOutputStream out = new ByteArrayOutputStream();
-									final BufferedInputStream bis = new BufferedInputStream(
-											input);
-									final byte[] chunk = new byte[Concierge.CLASSLOADER_BUFFER_SIZE];
-									while ((len = bis.read(chunk, 0,
-											Concierge.CLASSLOADER_BUFFER_SIZE)) > 0) {
-										out.write(chunk, 0, len);
-									}
-
-									return defineClass(classname,
-											out.toByteArray(), 0, out.size(),
+									return defineClass(classname, bytes, 0,
+											bytes.length,
 											((AbstractBundle) fragment
 													.getBundle()).domain);
-								} catch (final IOException ioe) {
-									ioe.printStackTrace();
-									return null;
 								} catch (final LinkageError le) {
 									System.err.println("ERROR in " + toString()
 											+ ":");
@@ -3162,6 +3665,9 @@ public class BundleImpl extends AbstractBundle implements BundleStartLevel {
 						: resources;
 				try {
 					for (int i = 0; i < classpath.length; i++) {
+						if (!mayContain(classpath[i], name)) {
+							continue;
+						}
 						final URL url = lookupFile(classpath[i], name);
 						if (url != null) {
 							if (!multiple) {
@@ -3181,6 +3687,9 @@ public class BundleImpl extends AbstractBundle implements BundleStartLevel {
 							}
 
 							for (int i = 0; i < classpath.length; i++) {
+								if (!fragment.mayContain(classpath[i], name)) {
+									continue;
+								}
 								final URL url = fragment.lookupFile(
 										classpath[i], name);
 								if (url != null) {
@@ -3272,6 +3781,9 @@ public class BundleImpl extends AbstractBundle implements BundleStartLevel {
 			}
 
 			private void definePackage(final String pkg) {
+				if (getPackage(pkg) != null) {
+					return;
+				}
 				// TODO fill in version/spec/vendor attributes according to
 				// bundle manifest headers?
 				try {
@@ -3439,6 +3951,109 @@ public class BundleImpl extends AbstractBundle implements BundleStartLevel {
 
 	}
 
+	/**
+	 * The compiled package patterns of the dynamic imports of a revision.
+	 * Patterns are package names, package names with a trailing wildcard, or
+	 * a single wildcard.
+	 */
+	static final class DynamicImportMatcher {
+
+		private static final int EXACT = 0;
+
+		private static final int PREFIX = 1;
+
+		private static final int GLOB = 2;
+
+		private final BundleRequirement[] requirements;
+
+		// the package name, or the prefix before a trailing wildcard
+		private final String[] patterns;
+
+		private final int[] types;
+
+		// the characters of the patterns that are neither exact nor prefix
+		private final char[][] globs;
+
+		DynamicImportMatcher(final List<BundleRequirement> dynamicImports) {
+			requirements = dynamicImports
+					.toArray(new BundleRequirement[dynamicImports.size()]);
+			patterns = new String[requirements.length];
+			types = new int[requirements.length];
+			globs = new char[requirements.length][];
+			for (int i = 0; i < requirements.length; i++) {
+				final String pattern = requirements[i].getDirectives().get(
+						Concierge.DIR_INTERNAL);
+				final int pos = pattern.indexOf('*');
+				if (pos == -1) {
+					patterns[i] = pattern;
+					types[i] = EXACT;
+				} else if (pos == pattern.length() - 1) {
+					patterns[i] = pattern.substring(0, pos);
+					types[i] = PREFIX;
+				} else {
+					globs[i] = pattern.toCharArray();
+					types[i] = GLOB;
+				}
+			}
+		}
+
+		/**
+		 * check if the matcher was compiled from the current dynamic imports.
+		 * 
+		 * @param dynamicImports
+		 *            the dynamic imports.
+		 * @return true if the requirements are the same.
+		 */
+		boolean isCurrent(final List<BundleRequirement> dynamicImports) {
+			if (dynamicImports.size() != requirements.length) {
+				return false;
+			}
+			for (int i = 0; i < requirements.length; i++) {
+				if (dynamicImports.get(i) != requirements[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * get the dynamic imports that match a package.
+		 * 
+		 * @param pkg
+		 *            the package.
+		 * @return the matching requirements, in the order of declaration.
+		 */
+		List<BundleRequirement> match(final String pkg) {
+			List<BundleRequirement> result = Collections.emptyList();
+			char[] chars = null;
+			for (int i = 0; i < requirements.length; i++) {
+				final boolean matches;
+				switch (types[i]) {
+				case EXACT:
+					matches = pkg.equals(patterns[i]);
+					break;
+				case PREFIX:
+					matches = pkg.startsWith(patterns[i]);
+					break;
+				default:
+					if (chars == null) {
+						chars = pkg.toCharArray();
+					}
+					matches = RFC1960Filter.stringCompare(globs[i], 0, chars,
+							0) == 0;
+				}
+				if (matches) {
+					if (result.isEmpty()) {
+						result = new ArrayList<BundleRequirement>(1);
+					}
+					result.add(requirements[i]);
+				}
+			}
+			return result;
+		}
+
+	}
+
 	class HeaderDictionary extends Hashtable<String, String> {
 
 		private static final long serialVersionUID = 6688251578575649710L;
@@ -3517,15 +4132,37 @@ public class BundleImpl extends AbstractBundle implements BundleStartLevel {
 
 	class JarBundleRevision extends Revision {
 
-		private final JarFile jarFile;
+		private final File file;
+
+		private JarFile jarFile;
+
+		/**
+		 * classpath entry -> the extracted copy of the embedded jar.
+		 */
+		private final ConcurrentHashMap<String, File> extractedJars = new ConcurrentHashMap<String, File>();
 
 		protected JarBundleRevision(final int revId, final JarFile jar,
 				final Manifest manifest, final String[] classpathStrings)
 				throws BundleException {
 			super(revId, manifest, classpathStrings);
+			this.file = new File(jar.getName());
 			this.jarFile = jar;
 		}
 
+		protected JarBundleRevision(final int revId, final File file,
+				final Manifest manifest, final String[] classpathStrings)
+				throws BundleException {
+			super(revId, manifest, classpathStrings);
+			this.file = file;
+		}
+
+		private synchronized JarFile getJarFile() throws IOException {
+			if (jarFile == null) {
+				jarFile = new JarFile(file);
+			}
+			return jarFile;
+		}
+
 		protected URL lookupFile(final String classpath, final String filename)
 				throws IOException {
 			return (URL) findFile(classpath, filename, GET_URL);
@@ -3542,6 +4179,11 @@ public class BundleImpl extends AbstractBundle implements BundleStartLevel {
 					RETRIEVE_INPUT_STREAM);
 		}
 
+		protected byte[] retrieveBytes(final String classpath,
+				final String filename) throws IOException {
+			return (byte[]) findFile(classpath, filename, RETRIEVE_BYTES);
+		}
+
 		public long retrieveFileLength(final String classpath,
 				final String filename) throws IOException {
 			final Object res = findFile(classpath, filename, GET_CONTENT_LENGTH);
@@ -3559,14 +4201,20 @@ public class BundleImpl extends AbstractBundle implements BundleStartLevel {
 			}
 		}
 
-		private Object findFile(final String classpath, String filename,
+		private Object findFile(String classpath, String filename,
 				final int mode) throws IOException {
 
 			// strip trailing separator
 			if (filename.charAt(0) == '/') {
 				filename = filename.substring(1);
 			}
+			// the URLs of embedded files carry the classpath as path
+			if (classpath != null && classpath.length() > 0
+					&& classpath.charAt(0) == '/') {
+				classpath = classpath.substring(1);
+			}
 
+			final JarFile jarFile = getJarFile();
 			if (classpath == null || classpath.equals(".")) {
 				final ZipEntry entry = jarFile.getEntry(filename);
 				if (entry == null) {
@@ -3579,6 +4227,9 @@ public class BundleImpl extends AbstractBundle implements BundleStartLevel {
 					return jarFile.getInputStream(entry);
 				case GET_CONTENT_LENGTH:
 					return entry.getSize();
+				case RETRIEVE_BYTES:
+					return readBytes(jarFile.getInputStream(entry),
+							entry.getSize());
 				}
 			} else {
 				final ZipEntry entry = jarFile.getEntry(classpath);
@@ -3586,9 +4237,7 @@ public class BundleImpl extends AbstractBundle implements BundleStartLevel {
 					return null;
 				}
 
-				final InputStream in = jarFile.getInputStream(entry);
-				if (in == null) {
-					// classpath is a directory
+				if (entry.isDirectory()) {
 					final ZipEntry entry2 = jarFile.getEntry(classpath + "/"
 							+ filename);
 					if (entry2 == null) {
@@ -3601,25 +4250,45 @@ public class BundleImpl extends AbstractBundle implements BundleStartLevel {
 						return jarFile.getInputStream(entry2);
 					case GET_CONTENT_LENGTH:
 						return entry2.getSize();
+					case RETRIEVE_BYTES:
+						return readBytes(jarFile.getInputStream(entry2),
+								entry2.getSize());
+					}
+				}
+
+				if (framework.EXTRACT_EMBEDDED) {
+					final File extracted = getExtractedJar(classpath, entry);
+					if (extracted != null) {
+						return findInJar(extracted, classpath, filename, mode);
 					}
 				}
 
 				final JarInputStream embeddedJar = new JarInputStream(
 						jarFile.getInputStream(entry));
-
-				JarEntry embeddedEntry;
-				while ((embeddedEntry = embeddedJar.getNextJarEntry()) != null) {
-					if (embeddedEntry.getName().equals(filename)) {
-						switch (mode) {
-						case GET_URL:
-							return createURL(entry.getName(),
-									embeddedEntry.getName());
-						case RETRIEVE_INPUT_STREAM:
-							return embeddedJar;
-						case GET_CONTENT_LENGTH:
-							return embeddedEntry.getSize();
+				boolean returned = false;
+				try {
+					JarEntry embeddedEntry;
+					while ((embeddedEntry = embeddedJar.getNextJarEntry()) != null) {
+						if (embeddedEntry.getName().equals(filename)) {
+							switch (mode) {
+							case GET_URL:
+								return createURL(entry.getName(),
+										embeddedEntry.getName());
+							case RETRIEVE_INPUT_STREAM:
+								returned = true;
+								return embeddedJar;
+							case GET_CONTENT_LENGTH:
+								return embeddedEntry.getSize();
+							case RETRIEVE_BYTES:
+								return readBytes(embeddedJar,
+										embeddedEntry.getSize());
+							}
 						}
 					}
+				} finally {
+					if (!returned) {
+						embeddedJar.close();
+					}
 				}
 			}
 			return null;
@@ -3644,7 +4313,12 @@ public class BundleImpl extends AbstractBundle implements BundleStartLevel {
 				cpOffset = 0;
 			}
 
-			final Enumeration<JarEntry> enums = jarFile.entries();
+			final Enumeration<JarEntry> enums;
+			try {
+				enums = getJarFile().entries();
+			} catch (final IOException ioe) {
+				return results;
+			}
 			while (enums.hasMoreElements()) {
 				final JarEntry ze = enums.nextElement();
 				final String name;
@@ -3686,12 +4360,141 @@ public class BundleImpl extends AbstractBundle implements BundleStartLevel {
 			return results;
 		}
 
-		protected void close() throws IOException {
-			jarFile.close();
+		protected void indexDirectories(final String classpath,
+				final Set<String> dirs) throws IOException {
+			final JarFile jarFile = getJarFile();
+			if (classpath == null || classpath.equals(".")) {
+				final Enumeration<JarEntry> entries = jarFile.entries();
+				while (entries.hasMoreElements()) {
+					addDirectories(entries.nextElement().getName(), dirs);
+				}
+				return;
+			}
+
+			final ZipEntry entry = jarFile.getEntry(classpath);
+			if (entry == null) {
+				return;
+			}
+			if (entry.isDirectory()) {
+				final String prefix = classpath.endsWith("/") ? classpath
+						: classpath + "/";
+				final Enumeration<JarEntry> entries = jarFile.entries();
+				while (entries.hasMoreElements()) {
+					final String name = entries.nextElement().getName();
+					if (name.startsWith(prefix)) {
+						addDirectories(name.substring(prefix.length()), dirs);
+					}
+				}
+				return;
+			}
+
+			if (framework.EXTRACT_EMBEDDED) {
+				final File extracted = getExtractedJar(classpath, entry);
+				if (extracted != null) {
+					final Concierge.ZipFilePool.Handle handle = framework.zipFiles
+							.acquire(extracted);
+					try {
+						final Enumeration<? extends ZipEntry> entries = handle.zipFile
+								.entries();
+						while (entries.hasMoreElements()) {
+							addDirectories(entries.nextElement().getName(),
+									dirs);
+						}
+					} finally {
+						framework.zipFiles.release(handle);
+					}
+					return;
+				}
+			}
+
+			final JarInputStream embeddedJar = new JarInputStream(
+					jarFile.getInputStream(entry));
+			try {
+				JarEntry embeddedEntry;
+				while ((embeddedEntry = embeddedJar.getNextJarEntry()) != null) {
+					addDirectories(embeddedEntry.getName(), dirs);
+				}
+			} finally {
+				embeddedJar.close();
+			}
+		}
+
+		/**
+		 * get the extracted copy of an embedded jar. The jar is extracted to
+		 * the storage of the bundle when it is first accessed.
+		 * 
+		 * @param classpath
+		 *            the classpath entry.
+		 * @param entry
+		 *            the entry of the embedded jar.
+		 * @return the extracted file or <code>null</code> if the jar cannot
+		 *         be extracted.
+		 * @throws IOException
+		 */
+		private File getExtractedJar(final String classpath,
+				final ZipEntry entry) throws IOException {
+			final File extracted = extractedJars.get(classpath);
+			if (extracted != null) {
+				return extracted;
+			}
+			final File file = extractJar(classpath, entry);
+			if (file != null) {
+				extractedJars.put(classpath, file);
+			}
+			return file;
+		}
+
+		private synchronized File extractJar(final String classpath,
+				final ZipEntry entry) throws IOException {
+			final File dir = new File(storageLocation, EMBEDDED_DIRECTORY_NAME
+					+ revId);
+			final File file = new File(dir, classpath);
+			if (file.isFile()) {
+				return file;
+			}
+			// never write outside of the directory
+			if (!file.getCanonicalPath().startsWith(
+					dir.getCanonicalPath() + File.separator)) {
+				return null;
+			}
+
+			file.getParentFile().mkdirs();
+			final File tmp = new File(file.getPath() + ".tmp");
+			final InputStream in = getJarFile().getInputStream(entry);
+			final FileOutputStream out = new FileOutputStream(tmp);
+			try {
+				final byte[] buffer = new byte[getBufferSize()];
+				int read;
+				while ((read = in.read(buffer)) > -1) {
+					out.write(buffer, 0, read);
+				}
+			} finally {
+				in.close();
+				out.close();
+			}
+			if (!tmp.renameTo(file)) {
+				tmp.delete();
+				return null;
+			}
+			return file;
+		}
+
+		protected synchronized void close() throws IOException {
+			if (jarFile != null) {
+				jarFile.close();
+				// reopened when accessed again
+				jarFile = null;
+			}
+			// close the extracted jars
+			final File dir = new File(storageLocation, EMBEDDED_DIRECTORY_NAME
+					+ revId);
+			for (int i = 0; i < classpathStrings.length; i++) {
+				framework.zipFiles.remove(new File(dir, classpathStrings[i]));
+			}
 		}
 
 		public String toString() {
-			return "JarBundleResource {" + jarFile.getName() + " of bundle "
+			return "JarBundleResource {" + file.getPath() + " of bundle "
 					+ BundleImpl.this.toString() + "}";
 		}
 	}
@@ -3724,6 +4527,12 @@ public class BundleImpl extends AbstractBundle implements BundleStartLevel {
 			return (Long) findFile(classpath, filename, 2);
 		}
 
+		@Override
+		protected byte[] retrieveBytes(final String classpath,
+				final String filename) throws IOException {
+			return (byte[]) findFile(classpath, filename, RETRIEVE_BYTES);
+		}
+
 		@Override
 		protected URL lookupFile(final String classpath, final String filename)
 				throws IOException {
@@ -3748,6 +4557,9 @@ public class BundleImpl extends AbstractBundle implements BundleStartLevel {
 							return new FileInputStream(file);
 						case GET_CONTENT_LENGTH:
 							return file.length();
+						case RETRIEVE_BYTES:
+							return readBytes(new FileInputStream(file),
+									file.length());
 						}
 					} else {
 						return null;
@@ -3760,25 +4572,7 @@ public class BundleImpl extends AbstractBundle implements BundleStartLevel {
 				if (file.exists()) {
 					if (!file.isDirectory()) {
 						// TODO check when security check must be done
-						final ZipFile jar = new ZipFile(file);
-						try {
-							final ZipEntry entry = jar.getEntry(filename);
-							if (entry == null) {
-								return null;
-							}
-							switch (mode) {
-							case GET_URL:
-								return createURL(classpath, filename);
-							case RETRIEVE_INPUT_STREAM:
-								return jar.getInputStream(entry);
-							case GET_CONTENT_LENGTH:
-								return entry.getSize();
-							}
-						} finally {
-							if (mode != RETRIEVE_INPUT_STREAM) {
-								jar.close();
-							}
-						}
+						return findInJar(file, classpath, filename, mode);
 					} else {
 						// file is a directory
 						try {
@@ -3791,6 +4585,9 @@ public class BundleImpl extends AbstractBundle implements BundleStartLevel {
 									return new FileInputStream(source);
 								case GET_CONTENT_LENGTH:
 									return source.length();
+								case RETRIEVE_BYTES:
+									return readBytes(new FileInputStream(
+											source), source.length());
 								}
 							} else {
 								return null;
@@ -3869,8 +4666,47 @@ public class BundleImpl extends AbstractBundle implements BundleStartLevel {
 			}
 		}
 
+		protected void indexDirectories(final String classpath,
+				final Set<String> dirs) throws IOException {
+			final File root = classpath == null || classpath.equals(".") ? new File(
+					storageLocation) : new File(storageLocation, classpath);
+			if (root.isDirectory()) {
+				indexDirectory(root, "", dirs);
+			} else if (root.exists()) {
+				final ZipFile jar = new ZipFile(root);
+				try {
+					final Enumeration<? extends ZipEntry> entries = jar
+							.entries();
+					while (entries.hasMoreElements()) {
+						addDirectories(entries.nextElement().getName(), dirs);
+					}
+				} finally {
+					jar.close();
+				}
+			}
+		}
+
+		private void indexDirectory(final File directory, final String path,
+				final Set<String> dirs) {
+			dirs.add(path);
+			final File[] files = directory.listFiles();
+			if (files == null) {
+				return;
+			}
+			for (int i = 0; i < files.length; i++) {
+				if (files[i].isDirectory()) {
+					indexDirectory(files[i], path.length() == 0 ? files[i]
+							.getName() : path + "/" + files[i].getName(), dirs);
+				}
+			}
+		}
+
 		protected void close() throws IOException {
-			// nop
+			// close the embedded jars
+			for (int i = 0; i < classpathStrings.length; i++) {
+				framework.zipFiles.remove(new File(storageLocation,
+						classpathStrings[i]));
+			}
 		}
 
 	}
@@ -3923,6 +4759,57 @@ public class BundleImpl extends AbstractBundle implements BundleStartLevel {
 		return fqc.replace('.', '/') + ".class";
 	}
 
+	/**
+	 * the size of the buffers for reading streams, the buffer size of the
+	 * class loader but not less than 4 KB. The class loader buffer size is
+	 * only set when a framework is initialized.
+	 */
+	static int getBufferSize() {
+		return Math.max(Concierge.CLASSLOADER_BUFFER_SIZE, 4096);
+	}
+
+	/**
+	 * read a stream completely and close it. The buffer is sized from the
+	 * length of the content, if known.
+	 * 
+	 * @param input
+	 *            the stream.
+	 * @param size
+	 *            the length of the content or -1 if unknown.
+	 * @return the content.
+	 * @throws IOException
+	 */
+	static byte[] readBytes(final InputStream input, final long size)
+			throws IOException {
+		try {
+			if (size < 0 || size > Integer.MAX_VALUE) {
+				final ByteArrayOutputStream out = new ByteArrayOutputStream();
+				final byte[] chunk = new byte[getBufferSize()];
+				int len;
+				while ((len = input.read(chunk)) > -1) {
+					out.write(chunk, 0, len);
+				}
+				return out.toByteArray();
+			}
+
+			final byte[] bytes = new byte[(int) size];
+			int pos = 0;
+			int len;
+			while (pos < bytes.length
+					&& (len = input.read(bytes, pos, bytes.length - pos)) > -1) {
+				pos += len;
+			}
+			if (pos == bytes.length) {
+				return bytes;
+			}
+			final byte[] result = new byte[pos];
+			System.arraycopy(bytes, 0, result, 0, pos);
+			return result;
+		} finally {
+			input.close();
+		}
+	}
+
 	/**
 	 * store a file on the storage.
 	 * 
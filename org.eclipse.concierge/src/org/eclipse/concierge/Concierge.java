@@ -10,11 +10,15 @@
  *******************************************************************************/
 package org.eclipse.concierge;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -40,9 +44,11 @@ import java.util.Enumeration;
 import java.util.EventListener;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -50,11 +56,30 @@ import java.util.Properties;
 import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 import org.eclipse.concierge.BundleImpl.Revision;
 import org.eclipse.concierge.BundleImpl.Revision.WovenClassImpl;
+import org.eclipse.concierge.ConciergeCollections.LongMap;
 import org.eclipse.concierge.ConciergeCollections.MultiMap;
 import org.eclipse.concierge.ConciergeCollections.ParseResult;
 import org.eclipse.concierge.Resources.BundleCapabilityImpl;
@@ -63,6 +88,7 @@ import org.eclipse.concierge.Resources.HostedBundleCapability;
 import org.eclipse.concierge.compat.LegacyBundleProcessing;
 import org.eclipse.concierge.compat.service.XargsFileLauncher;
 import org.eclipse.concierge.service.log.LogServiceImpl;
+import org.eclipse.concierge.wiring.ExportIndex;
 import org.osgi.framework.AllServiceListener;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleActivator;
@@ -210,6 +236,24 @@ public final class Concierge extends AbstractBundle implements Framework,
 	 */
 	boolean DECOMPRESS_EMBEDDED;
 
+	/**
+	 * extract the embedded jars of bundles that are not decompressed when
+	 * they are first accessed.
+	 */
+	boolean EXTRACT_EMBEDDED;
+
+	/**
+	 * the number of threads that start the bundles of a start level, 0 for
+	 * starting them one after another.
+	 */
+	int STARTLEVEL_THREADS;
+
+	/**
+	 * the number of missing classes and resources that a bundle class loader
+	 * remembers, 0 for none.
+	 */
+	int CLASSLOADER_MISSES;
+
 	/**
 	 * log level.
 	 */
@@ -220,6 +264,25 @@ public final class Concierge extends AbstractBundle implements Framework,
 	 */
 	boolean SECURITY_ENABLED;
 
+	/**
+	 * only pass the bundles to the resolver that are not resolved and are not
+	 * known to fail with the current capabilities.
+	 */
+	boolean RESOLVER_INCREMENTAL;
+
+	/**
+	 * plan the candidates with a backtracking search over the uses
+	 * constraints before wiring, instead of taking the first candidate that
+	 * resolves.
+	 */
+	boolean RESOLVER_BACKTRACKING;
+
+	/**
+	 * the time budget of the backtracking search per resolve call, in
+	 * milliseconds.
+	 */
+	int RESOLVER_TIMEOUT;
+
 	/**
 	 * debug outputs from bundles ?
 	 */
@@ -245,8 +308,7 @@ public final class Concierge extends AbstractBundle implements Framework,
 	 */
 	private String PROFILE;
 
-	private final String[] bootdelegationAbs;
-	private final String[] bootdelegationPrefix;
+	private final BootDelegation bootdelegation;
 
 	private String[] libraryExtensions;
 
@@ -260,6 +322,11 @@ public final class Concierge extends AbstractBundle implements Framework,
 
 	int collisionPolicy;
 
+	/**
+	 * the version of the format of the framework index.
+	 */
+	private static final int INDEX_VERSION = 2;
+
 	private Hashtable<String, String> headers;
 
 	private final Version version = new Version("1.5.0");
@@ -283,21 +350,26 @@ public final class Concierge extends AbstractBundle implements Framework,
 	// registry data structures
 
 	/**
-	 * the bundles.
+	 * the bundles, modified through addBundle and removeBundle.
 	 */
 	List<AbstractBundle> bundles = new ArrayList<AbstractBundle>(2);
 
+	/**
+	 * the system bundle and the bundles, replaced when a bundle is added or
+	 * removed.
+	 */
+	private volatile Bundle[] bundleSnapshot = new Bundle[] { this };
+
 	/**
 	 * bundleID -> bundle.
 	 */
-	Map<Long, AbstractBundle> bundleID_bundles = new HashMap<Long, AbstractBundle>(
-			2);
+	final LongMap<AbstractBundle> bundleID_bundles = new LongMap<AbstractBundle>();
 
 	/**
 	 * location -> bundle.
 	 */
-	Map<String, AbstractBundle> location_bundles = Collections
-			.synchronizedMap(new HashMap<String, AbstractBundle>(2));
+	final Map<String, AbstractBundle> location_bundles = new ConcurrentHashMap<String, AbstractBundle>(
+			2);
 
 	/**
 	 * symbolicName -> List of bundles
@@ -306,10 +378,24 @@ public final class Concierge extends AbstractBundle implements Framework,
 			2);
 
 	/**
-	 * class name string -> service reference.
+	 * class name string -> service references, sorted by ranking.
+	 */
+	final ServiceRegistry serviceRegistry = new ServiceRegistry();
+
+	/**
+	 * the cache of the filters created through bundle contexts, shared by all
+	 * framework instances of the VM. The capacity is read once from the
+	 * system property org.eclipse.concierge.filters.contextcachesize.
 	 */
-	final MultiMap<String, ServiceReference<?>> serviceRegistry = new MultiMap<String, ServiceReference<?>>(
-			3);
+	static final RFC1960Filter.FilterCache FRAMEWORK_FILTERS = new RFC1960Filter.FilterCache(
+			Integer.getInteger(
+					"org.eclipse.concierge.filters.contextcachesize", 128)
+					.intValue()) {
+		protected Filter create(final String str)
+				throws InvalidSyntaxException {
+			return org.osgi.framework.FrameworkUtil.createFilter(str);
+		}
+	};
 
 	/**
 	 * bundle listeners.
@@ -326,10 +412,9 @@ public final class Concierge extends AbstractBundle implements Framework,
 	protected final MultiMap<BundleContext, BundleListener> bundleListenerMap = new MultiMap<BundleContext, BundleListener>();
 
 	/**
-	 * service listeners.
+	 * service listeners, indexed by object class.
 	 */
-	protected final List<ServiceListenerEntry> serviceListeners = new ArrayList<ServiceListenerEntry>(
-			1);
+	protected final ServiceListenerIndex serviceListeners = new ServiceListenerIndex();
 
 	/**
 	 * Map of unattached fragments in the system. HostName => List of fragments
@@ -346,10 +431,47 @@ public final class Concierge extends AbstractBundle implements Framework,
 	protected final List<FrameworkListener> frameworkListeners = new ArrayList<FrameworkListener>(
 			1);
 
+	/**
+	 * the delivery of asynchronous bundle and framework events.
+	 */
+	final EventDispatcher eventDispatcher;
+
+	/**
+	 * the open jar files embedded in the bundles.
+	 */
+	final ZipFilePool zipFiles;
+
+	/**
+	 * changes whenever the result of a class or resource lookup can change.
+	 * The class loaders drop the lookups they remember as missing.
+	 */
+	final AtomicInteger lookupEpoch = new AtomicInteger();
+
+	/**
+	 * the maximum number of remembered packages without exports.
+	 */
+	private static final int MISSING_PACKAGES = 4096;
+
+	/**
+	 * dynamically imported packages without exports -> lookup epoch of the
+	 * miss.
+	 */
+	private final ConcurrentHashMap<String, Integer> missingPackages = new ConcurrentHashMap<String, Integer>();
+
 	CapabilityRegistry capabilityRegistry = new CapabilityRegistry();
 
 	Map<Resource, Wiring> wirings = new HashMap<Resource, Wiring>();
 
+	/**
+	 * the package exports of the wirings.
+	 */
+	final PackageExports exportIndex = new PackageExports();
+
+	/**
+	 * the resources that failed to resolve in incremental mode.
+	 */
+	final ResolutionGraph resolution = new ResolutionGraph();
+
 	// the fields
 
 	/**
@@ -429,7 +551,7 @@ public final class Concierge extends AbstractBundle implements Framework,
 
 	private final BundleStartLevel systemBundleStartLevel = new SystemBundleStartLevel();
 
-	private final ResolverImpl resolver = new ResolverImpl();
+	final ResolverImpl resolver = new ResolverImpl();
 
 	private final Method addURL;
 
@@ -493,6 +615,81 @@ public final class Concierge extends AbstractBundle implements Framework,
 
 	};
 
+	/**
+	 * the order of the package capabilities in the version index: highest
+	 * version first, then lowest bundle id. Together with the resolved state
+	 * of the exporters it gives EXPORT_ORDER.
+	 */
+	static final Comparator<Capability> VERSION_ORDER = new Comparator<Capability>() {
+
+		public int compare(final Capability c1, final Capability c2) {
+			final int score = getVersion(c2).compareTo(getVersion(c1));
+			if (score != 0) {
+				return score;
+			}
+			if (!(c1 instanceof BundleCapability && c2 instanceof BundleCapability)) {
+				return 0;
+			}
+			final long cap1BundleId = ((BundleCapability) c1).getRevision()
+					.getBundle().getBundleId();
+			final long cap2BundleId = ((BundleCapability) c2).getRevision()
+					.getBundle().getBundleId();
+			return cap1BundleId < cap2BundleId ? -1
+					: cap1BundleId == cap2BundleId ? 0 : 1;
+		}
+
+	};
+
+	/**
+	 * get the version of a package capability.
+	 * 
+	 * @param cap
+	 *            the capability.
+	 * @return the version, or the empty version if the capability has none.
+	 */
+	static Version getVersion(final Capability cap) {
+		final Object version = cap.getAttributes().get(
+				PackageNamespace.CAPABILITY_VERSION_ATTRIBUTE);
+		return version instanceof Version ? (Version) version
+				: Version.emptyVersion;
+	}
+
+	/**
+	 * sort package capabilities by EXPORT_ORDER. A list that is already in
+	 * VERSION_ORDER, as returned by the version index, only needs the
+	 * capabilities of resolved exporters moved to the front.
+	 * 
+	 * @param caps
+	 *            the capabilities.
+	 */
+	static <C extends Capability> void sortExports(final List<C> caps) {
+		final int size = caps.size();
+		for (int i = 0; i < size; i++) {
+			final C cap = caps.get(i);
+			if (!(cap instanceof BundleCapability)
+					|| i > 0
+					&& VERSION_ORDER.compare(caps.get(i - 1), cap) > 0) {
+				Collections.sort(caps, EXPORT_ORDER);
+				return;
+			}
+		}
+
+		// stable partition, resolved exporters first
+		final ArrayList<C> unresolved = new ArrayList<C>();
+		int pos = 0;
+		for (int i = 0; i < size; i++) {
+			final C cap = caps.get(i);
+			if (((BundleCapability) cap).getResource().getWiring() == null) {
+				unresolved.add(cap);
+			} else {
+				caps.set(pos++, cap);
+			}
+		}
+		for (final C cap : unresolved) {
+			caps.set(pos++, cap);
+		}
+	}
+
 	public static final String DIR_INTERNAL = "x-int";
 
 	/** Return code from main when OK. */
@@ -719,10 +916,10 @@ public final class Concierge extends AbstractBundle implements Framework,
 							Version.parseVersion(tokens[2]));
 					final Class<?> cls = Class.forName(tokens[1]);
 					final Object service = cls.newInstance();
-					final ServiceReference<?> ref = new ServiceReferenceImpl<Object>(
+					final ServiceReferenceImpl<?> ref = new ServiceReferenceImpl<Object>(
 							this, this, service, props,
 							new String[] { tokens[0] });
-					serviceRegistry.insert(tokens[0], ref);
+					serviceRegistry.register(ref);
 				} catch (final Exception e) {
 					e.printStackTrace();
 				}
@@ -770,7 +967,7 @@ public final class Concierge extends AbstractBundle implements Framework,
 		defaultProperties
 				.setProperty(
 						Constants.FRAMEWORK_SYSTEMPACKAGES,
-						"org.osgi.framework;version=1.7,org.osgi.framework.hooks.bundle;version=1.1,org.osgi.framework.hooks.resolver;version=1.0,org.osgi.framework.hooks.service;version=1.1,org.osgi.framework.hooks.weaving;version=1.0,org.osgi.framework.launch;version=1.1,org.osgi.framework.namespace;version=1.0,org.osgi.framework.startlevel;version=1.0,org.osgi.framework.wiring;version=1.1,org.osgi.resource;version=1.0,org.osgi.service.log;version=1.3,org.osgi.service.packageadmin;version=1.2,org.osgi.service.startlevel;version=1.1,org.osgi.service.url;version=1.0,org.osgi.service.resolver;version=1.0,org.osgi.util.tracker;version=1.5.1,META-INF.services");
+						"org.osgi.framework;version=1.7,org.osgi.framework.hooks.bundle;version=1.1,org.osgi.framework.hooks.resolver;version=1.0,org.osgi.framework.hooks.service;version=1.1,org.osgi.framework.hooks.weaving;version=1.0,org.osgi.framework.launch;version=1.1,org.osgi.framework.namespace;version=1.0,org.osgi.framework.startlevel;version=1.0,org.osgi.framework.wiring;version=1.1,org.osgi.resource;version=1.0,org.osgi.service.log;version=1.3,org.osgi.service.packageadmin;version=1.2,org.osgi.service.startlevel;version=1.1,org.osgi.service.url;version=1.0,org.osgi.service.resolver;version=1.0,org.osgi.util.tracker;version=1.5.1,org.eclipse.concierge.wiring;version=1.0,META-INF.services");
 
 		Object obj;
 		defaultProperties.put(Constants.FRAMEWORK_OS_NAME,
@@ -887,6 +1084,11 @@ public final class Concierge extends AbstractBundle implements Framework,
 				"file:" + BASEDIR);
 		CLASSLOADER_BUFFER_SIZE = getProperty(
 				"org.eclipse.concierge.classloader.buffersize", 2048);
+		eventDispatcher = new EventDispatcher(getProperty(
+				"org.eclipse.concierge.events.threads", 2), getProperty(
+				"org.eclipse.concierge.events.queuesize", 1024));
+		zipFiles = new ZipFilePool(getProperty(
+				"org.eclipse.concierge.classloader.openFiles", 32));
 		LOG_ENABLED = getProperty("org.eclipse.concierge.log.enabled", false);
 		LOG_QUIET = getProperty("org.eclipse.concierge.log.quiet", false);
 		LOG_BUFFER_SIZE = getProperty("org.eclipse.concierge.log.buffersize",
@@ -916,8 +1118,20 @@ public final class Concierge extends AbstractBundle implements Framework,
 				"org.eclipse.concierge.alwaysDecompress", false);
 		DECOMPRESS_EMBEDDED = getProperty(
 				"org.eclipse.concierge.decompressEmbedded", true);
+		EXTRACT_EMBEDDED = getProperty(
+				"org.eclipse.concierge.extractEmbedded", false);
+		STARTLEVEL_THREADS = getProperty(
+				"org.eclipse.concierge.startlevel.threads", 0);
+		CLASSLOADER_MISSES = getProperty(
+				"org.eclipse.concierge.classloader.misses", 256);
 		SECURITY_ENABLED = getProperty(
 				"org.eclipse.concierge.security.enabled", false);
+		RESOLVER_INCREMENTAL = getProperty(
+				"org.eclipse.concierge.resolver.incremental", false);
+		RESOLVER_BACKTRACKING = "backtracking".equals(properties.getProperty(
+				"org.eclipse.concierge.resolver.strategy", "greedy"));
+		RESOLVER_TIMEOUT = getProperty("org.eclipse.concierge.resolver.timeout",
+				1000);
 
 		final String bsl = properties
 				.getProperty(Constants.FRAMEWORK_BEGINNING_STARTLEVEL);
@@ -934,27 +1148,7 @@ public final class Concierge extends AbstractBundle implements Framework,
 		final String[] bds = Utils
 				.splitString(properties
 						.getProperty(Constants.FRAMEWORK_BOOTDELEGATION), ',');
-		final ArrayList<String> bdsAbs = new ArrayList<String>();
-		final ArrayList<String> bdsRel = new ArrayList<String>();
-		int pos;
-		for (int i = 0; i < bds.length; i++) {
-			if ((pos = bds[i].indexOf('*')) < 0) {
-				bdsAbs.add(bds[i]);
-			} else {
-				if (pos < bds[i].length() - 1) {
-					throw new IllegalArgumentException(
-							"Framework bootdelegation " + bds[i]
-									+ " is not supported");
-				}
-				bdsRel.add(bds[i].substring(0, pos));
-			}
-		}
-
-		// remove the fast paths
-		bdsRel.remove("java.");
-
-		bootdelegationAbs = bdsAbs.toArray(new String[bdsAbs.size()]);
-		bootdelegationPrefix = bdsRel.toArray(new String[bdsRel.size()]);
+		bootdelegation = new BootDelegation(bds);
 
 		// sanity checks
 		if (!LOG_ENABLED) {
@@ -1035,6 +1229,9 @@ public final class Concierge extends AbstractBundle implements Framework,
 			return;
 		}
 
+		// deliver asynchronous events on the delivery threads
+		eventDispatcher.open();
+
 		final StringTokenizer t = new StringTokenizer(
 				properties.getProperty(FRAMEWORK_EXECUTIONENVIRONMENT), ",");
 		while (t.hasMoreTokens()) {
@@ -1155,7 +1352,7 @@ public final class Concierge extends AbstractBundle implements Framework,
 
 		headers.put(Constants.EXPORT_PACKAGE, sysPkgs);
 		headers.put(Constants.BUNDLE_VENDOR, "Eclipse Foundation");
-		bundleID_bundles.put(new Long(0), this);
+		bundleID_bundles.put(0, this);
 		location_bundles.put(Constants.SYSTEM_BUNDLE_LOCATION, this);
 		symbolicName_bundles.insert(Constants.SYSTEM_BUNDLE_SYMBOLICNAME, this);
 		symbolicName_bundles.insert(BUNDLE_SYMBOLIC_NAME, this);
@@ -1198,7 +1395,7 @@ public final class Concierge extends AbstractBundle implements Framework,
 		publishCapabilities(systemBundleCapabilities);
 
 		// add to framework wiring
-		wirings.put(this, new ConciergeBundleWiring(this, null));
+		putWiring(this, new ConciergeBundleWiring(this, null));
 
 		// initialize the system bundle services
 		registeredServices = new ArrayList<ServiceReference<?>>(2);
@@ -1206,15 +1403,11 @@ public final class Concierge extends AbstractBundle implements Framework,
 		// start the logger
 		if (LOG_ENABLED) {
 			logger = new LogServiceImpl(LOG_BUFFER_SIZE, LOG_LEVEL, LOG_QUIET);
-			final ServiceReference<LogService> logref = new ServiceReferenceImpl<LogService>(
+			final ServiceReferenceImpl<LogService> logref = new ServiceReferenceImpl<LogService>(
 					Concierge.this, this, logger, null, new String[] {
 							LogService.class.getName(),
 							LogReaderService.class.getName() });
-			synchronized (serviceRegistry) {
-				serviceRegistry.insert(LogService.class.getName(), logref);
-				serviceRegistry
-						.insert(LogReaderService.class.getName(), logref);
-			}
+			serviceRegistry.register(logref);
 
 			registeredServices.add(logref);
 			if (DEBUG_SERVICES) {
@@ -1415,6 +1608,11 @@ public final class Concierge extends AbstractBundle implements Framework,
 			nextBundleID = in.readLong();
 			in.close();
 
+			if (restoreIndex()) {
+				restoreWiring();
+				return;
+			}
+
 			final File storageDir = new File(STORAGE_LOCATION);
 			final File[] bundleDirs = storageDir.listFiles();
 
@@ -1429,9 +1627,7 @@ public final class Concierge extends AbstractBundle implements Framework,
 								logger.log(LogService.LOG_DEBUG,
 										"RESTORED BUNDLE " + bundle.location);
 							}
-							bundles.add(bundle);
-							bundleID_bundles.put(new Long(bundle.bundleId),
-									bundle);
+							addBundle(bundle);
 						} catch (final Exception e) {
 							// too early for logger
 							e.printStackTrace();
@@ -1439,23 +1635,382 @@ public final class Concierge extends AbstractBundle implements Framework,
 					}
 				}
 			}
+
+			restoreWiring();
 		} catch (final IOException ioe) {
 			ioe.printStackTrace();
 		}
 	}
 
-	boolean bootdelegation(final String pkg) {
-		for (int i = 0; i < bootdelegationPrefix.length; i++) {
-			if (pkg.startsWith(bootdelegationPrefix[i])) {
-				return true;
+	/**
+	 * store the metadata and the manifest headers of all bundles in one
+	 * index file so that a restart does not have to visit every bundle
+	 * directory and parse every manifest again.
+	 */
+	private void storeIndex() {
+		final File file = new File(STORAGE_LOCATION, "index");
+		final File tmp = new File(STORAGE_LOCATION, "index.tmp");
+		file.delete();
+		try {
+			final DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(tmp)));
+			try {
+				final ArrayList<BundleImpl> stored = new ArrayList<BundleImpl>();
+				for (final AbstractBundle bundle : bundles) {
+					if (bundle instanceof BundleImpl
+							&& bundle.state != Bundle.UNINSTALLED) {
+						stored.add((BundleImpl) bundle);
+					}
+				}
+				out.writeInt(INDEX_VERSION);
+				out.writeInt(stored.size());
+				for (final BundleImpl bundle : stored) {
+					bundle.writeIndexRecord(out);
+				}
+			} finally {
+				out.close();
+			}
+			if (!tmp.renameTo(file)) {
+				tmp.delete();
 			}
+		} catch (final IOException ioe) {
+			ioe.printStackTrace();
+			tmp.delete();
 		}
-		for (int i = 0; i < bootdelegationAbs.length; i++) {
-			if (pkg.equals(bootdelegationAbs[i])) {
-				return true;
+	}
+
+	/**
+	 * restore the bundles from the index written on the last shutdown.
+	 * 
+	 * @return true if the bundles have been restored from the index.
+	 */
+	private boolean restoreIndex() {
+		final File file = new File(STORAGE_LOCATION, "index");
+		if (!file.exists()) {
+			return false;
+		}
+
+		final ArrayList<BundleImpl> restored = new ArrayList<BundleImpl>();
+		try {
+			final byte[] bytes = new byte[(int) file.length()];
+			final DataInputStream raw = new DataInputStream(
+					new FileInputStream(file));
+			try {
+				raw.readFully(bytes);
+			} finally {
+				raw.close();
+				// changes while running go to the bundle metadata only
+				file.delete();
+			}
+
+			final DataInputStream in = new DataInputStream(
+					new ByteArrayInputStream(bytes));
+			if (in.readInt() != INDEX_VERSION) {
+				return false;
+			}
+			for (int i = in.readInt(); i > 0; i--) {
+				restored.add(new BundleImpl(this, in));
+			}
+		} catch (final Exception e) {
+			// fall back to the bundle metadata
+			e.printStackTrace();
+			return false;
+		}
+
+		for (final BundleImpl bundle : restored) {
+			if (DEBUG_BUNDLES) {
+				logger.log(LogService.LOG_DEBUG, "RESTORED BUNDLE "
+						+ bundle.location);
+			}
+			addBundle(bundle);
+		}
+		return true;
+	}
+
+	/**
+	 * store the wiring of the resolved bundles so that a restart with an
+	 * unchanged set of bundles does not have to run the resolver again.
+	 * Fragments, their hosts, and bundles wired to anything that cannot be
+	 * stored are left to the resolver.
+	 */
+	private void storeWiring() {
+		final File file = new File(STORAGE_LOCATION, "wiring");
+		file.delete();
+
+		final HashSet<BundleRevision> stored = new HashSet<BundleRevision>();
+		for (final AbstractBundle bundle : bundles) {
+			if (!(bundle instanceof BundleImpl)
+					|| bundle.state == Bundle.UNINSTALLED) {
+				continue;
+			}
+			final Revision revision = bundle.currentRevision;
+			final BundleWiring wiring = revision.getWiring();
+			if (wiring == null || revision.isFragment()) {
+				continue;
+			}
+			final List<BundleWire> hostWires = wiring
+					.getProvidedWires(HostNamespace.HOST_NAMESPACE);
+			if (hostWires == null || hostWires.isEmpty()) {
+				stored.add(revision);
+			}
+		}
+
+		// drop the bundles whose wires cannot be restored
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (final Iterator<BundleRevision> iter = stored.iterator(); iter
+					.hasNext();) {
+				if (encodeWires((Revision) iter.next(), stored) == null) {
+					iter.remove();
+					changed = true;
+				}
+			}
+		}
+
+		if (stored.isEmpty()) {
+			return;
+		}
+
+		try {
+			final DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(file)));
+			try {
+				out.writeInt(stored.size());
+				for (final BundleRevision rev : stored) {
+					final Revision revision = (Revision) rev;
+					final AbstractBundle bundle = (AbstractBundle) revision
+							.getBundle();
+					out.writeLong(bundle.bundleId);
+					out.writeInt(revision.revId);
+					out.writeLong(bundle.lastModified);
+				}
+				for (final BundleRevision rev : stored) {
+					final List<long[]> wires = encodeWires((Revision) rev,
+							stored);
+					out.writeInt(wires.size());
+					for (final long[] wire : wires) {
+						out.writeInt((int) wire[0]);
+						out.writeLong(wire[1]);
+						out.writeInt((int) wire[2]);
+					}
+				}
+			} finally {
+				out.close();
+			}
+		} catch (final IOException ioe) {
+			ioe.printStackTrace();
+			file.delete();
+		}
+	}
+
+	/**
+	 * encode the required wires of a revision as requirement index, provider
+	 * bundle id, and capability index.
+	 *
+	 * @return the encoded wires or <code>null</code> if one of the wires
+	 *         cannot be stored.
+	 */
+	private List<long[]> encodeWires(final Revision revision,
+			final Set<BundleRevision> stored) {
+		final List<BundleWire> wires = revision.getWiring().getRequiredWires(
+				null);
+		final ArrayList<long[]> result = new ArrayList<long[]>();
+		if (wires == null) {
+			return result;
+		}
+
+		final List<BundleRequirement> reqs = revision
+				.getDeclaredRequirements(null);
+		for (final BundleWire wire : wires) {
+			final BundleRequirement req = wire.getRequirement();
+			if (PackageNamespace.RESOLUTION_DYNAMIC.equals(req.getDirectives()
+					.get(Namespace.REQUIREMENT_RESOLUTION_DIRECTIVE))) {
+				// dynamic imports are wired again on demand
+				continue;
+			}
+			final BundleRevision provider = wire.getProvider();
+			if (provider != this && !stored.contains(provider)) {
+				return null;
+			}
+			final int reqIndex = reqs.indexOf(req);
+			final int capIndex = provider.getDeclaredCapabilities(null)
+					.indexOf(wire.getCapability());
+			if (reqIndex < 0 || capIndex < 0) {
+				return null;
+			}
+			result.add(new long[] { reqIndex,
+					provider.getBundle().getBundleId(), capIndex });
+		}
+		return result;
+	}
+
+	/**
+	 * restore the wiring stored by the previous run. It is only used if all
+	 * its bundles are installed in the same revision and all its wires still
+	 * match, otherwise the bundles are left to the resolver.
+	 */
+	private void restoreWiring() {
+		final File file = new File(STORAGE_LOCATION, "wiring");
+		if (!file.exists()) {
+			return;
+		}
+
+		final MultiMap<Resource, Wire> solution = new MultiMap<Resource, Wire>();
+		try {
+			final DataInputStream in = new DataInputStream(
+					new BufferedInputStream(new FileInputStream(file)));
+			try {
+				if (!readWiring(in, solution)) {
+					if (DEBUG_BUNDLES) {
+						logger.log(LogService.LOG_DEBUG,
+								"stored wiring is outdated");
+					}
+					return;
+				}
+			} finally {
+				in.close();
+				// only valid for the start directly following the store
+				file.delete();
+			}
+		} catch (final Exception e) {
+			e.printStackTrace();
+			return;
+		}
+
+		for (final Resource resource : solution.keySet()) {
+			final List<Wire> wires = solution.get(resource);
+			if (resource instanceof Revision) {
+				final Revision revision = (Revision) resource;
+				final ConciergeBundleWiring wiring = new ConciergeBundleWiring(
+						revision, wires);
+				revision.setWiring(wiring);
+				putWiring(revision, wiring);
+			} else {
+				ConciergeBundleWiring wiring = (ConciergeBundleWiring) wirings
+						.get(this);
+				if (wiring == null) {
+					wiring = new ConciergeBundleWiring(this, wires);
+					putWiring(this, wiring);
+				} else {
+					for (final Wire wire : wires) {
+						wiring.addWire((BundleWire) wire);
+					}
+				}
+			}
+		}
+
+		for (final Resource resource : solution.keySet()) {
+			if (resource instanceof Revision
+					&& ((Revision) resource).getBundle().getState() == Bundle.INSTALLED) {
+				((Revision) resource).markResolved();
+			}
+		}
+
+		if (DEBUG_BUNDLES) {
+			logger.log(LogService.LOG_DEBUG, "restored wiring of "
+					+ (solution.size() - (solution.containsKey(this) ? 1 : 0))
+					+ " bundles");
+		}
+	}
+
+	private boolean readWiring(final DataInputStream in,
+			final MultiMap<Resource, Wire> solution) throws IOException,
+			BundleException {
+		final int count = in.readInt();
+		final Revision[] revisions = new Revision[count];
+		final HashMap<Long, BundleRevision> providers = new HashMap<Long, BundleRevision>();
+		providers.put(new Long(0), this);
+
+		for (int i = 0; i < count; i++) {
+			final Long id = new Long(in.readLong());
+			final int revId = in.readInt();
+			final long lastModified = in.readLong();
+
+			final AbstractBundle bundle = bundleID_bundles.get(id);
+			if (!(bundle instanceof BundleImpl)
+					|| bundle.currentRevision.revId != revId
+					|| bundle.lastModified != lastModified
+					|| !bundle.currentRevision.resolveMetadata(false)) {
+				return false;
+			}
+			revisions[i] = bundle.currentRevision;
+			providers.put(id, revisions[i]);
+		}
+
+		for (int i = 0; i < count; i++) {
+			final List<BundleRequirement> reqs = revisions[i]
+					.getDeclaredRequirements(null);
+			solution.insertEmpty(revisions[i]);
+
+			final int wires = in.readInt();
+			for (int j = 0; j < wires; j++) {
+				final int reqIndex = in.readInt();
+				final BundleRevision provider = providers.get(new Long(in
+						.readLong()));
+				final int capIndex = in.readInt();
+				if (provider == null || reqIndex >= reqs.size()) {
+					return false;
+				}
+				final List<BundleCapability> caps = provider
+						.getDeclaredCapabilities(null);
+				if (capIndex >= caps.size()) {
+					return false;
+				}
+
+				final BundleRequirement req = reqs.get(reqIndex);
+				final BundleCapability cap = caps.get(capIndex);
+				if (!matches(req, cap)) {
+					return false;
+				}
+
+				final Wire wire = Resources.createWire(cap, req);
+				solution.insert(revisions[i], wire);
+				solution.insert(provider, wire);
 			}
 		}
-		return false;
+		return true;
+	}
+
+	/**
+	 * add a bundle to the bundle tables.
+	 * 
+	 * @param bundle
+	 *            the bundle.
+	 */
+	void addBundle(final AbstractBundle bundle) {
+		synchronized (bundles) {
+			bundles.add(bundle);
+			bundleID_bundles.put(bundle.bundleId, bundle);
+			updateBundleSnapshot();
+		}
+	}
+
+	/**
+	 * remove an uninstalled bundle from the bundle tables.
+	 * 
+	 * @param bundle
+	 *            the bundle.
+	 */
+	void removeBundle(final AbstractBundle bundle) {
+		synchronized (bundles) {
+			bundles.remove(bundle);
+			bundleID_bundles.remove(bundle.bundleId);
+			updateBundleSnapshot();
+		}
+	}
+
+	private void updateBundleSnapshot() {
+		final Bundle[] snapshot = new Bundle[bundles.size() + 1];
+		snapshot[0] = this;
+		for (int i = 0; i < bundles.size(); i++) {
+			snapshot[i + 1] = bundles.get(i);
+		}
+		bundleSnapshot = snapshot;
+	}
+
+	boolean bootdelegation(final String pkg) {
+		return bootdelegation.matches(pkg);
 	}
 
 	/**
@@ -1493,9 +2048,22 @@ public final class Concierge extends AbstractBundle implements Framework,
 	protected void stop0(final boolean update) {
 		state = Bundle.STOPPING;
 
-		if (!update) {
-			System.out.println("----------------------------"
-					+ "-----------------------------");
+		if (LOG_ENABLED && DEBUG_SERVICES) {
+			logger.log(LogService.LOG_INFO, "Framework: VM filter cache "
+					+ RFC1960Filter.CACHE + ", context filter cache "
+					+ FRAMEWORK_FILTERS);
+			logger.log(LogService.LOG_INFO,
+					"Framework: service listener dispatch "
+							+ serviceListeners);
+		}
+		if (LOG_ENABLED && DEBUG_BUNDLES) {
+			logger.log(LogService.LOG_INFO, "Framework: event delivery "
+					+ eventDispatcher);
+		}
+
+		if (!update) {
+			System.out.println("----------------------------"
+					+ "-----------------------------");
 			System.out.println("  Concierge OSGi shutting down ...");
 			System.out.println("  Bye !");
 			System.out.println("----------------------------"
@@ -1509,20 +2077,30 @@ public final class Concierge extends AbstractBundle implements Framework,
 			// stop System bundle
 			stop(context);
 
+			storeWiring();
+			storeIndex();
+
 			// release all resources
 			for (final AbstractBundle bundle : bundles) {
 				for (final BundleRevision rev : bundle.getRevisions()) {
 					((Revision) rev).close();
 				}
 			}
+			zipFiles.clear();
 
-			bundles.clear();
-			bundleID_bundles.clear();
+			synchronized (bundles) {
+				bundles.clear();
+				bundleID_bundles.clear();
+				bundleSnapshot = new Bundle[] { this };
+			}
 			serviceRegistry.clear();
 
 			// Reset the used Concierge instance in URL stream handler factory
 			conciergeURLStreamHandlerFactory.setConcierge(null);
 
+			// deliver the pending events
+			eventDispatcher.shutdown(5000);
+
 			stopEvent = new FrameworkEvent(
 					update ? FrameworkEvent.STOPPED_UPDATE
 							: FrameworkEvent.STOPPED, this, null);
@@ -1649,6 +2227,10 @@ public final class Concierge extends AbstractBundle implements Framework,
 			return (A) wirings.get(this);
 		}
 
+		if (type == ExportIndex.class) {
+			return (A) exportIndex;
+		}
+
 		if (type.isInstance(this)) {
 			return (A) this;
 		}
@@ -1893,50 +2475,264 @@ public final class Concierge extends AbstractBundle implements Framework,
 			}
 		}
 
-		for (int i = 0; i < levels; i++) {
-			if (up) {
-				startlevel++;
+		ExecutorService executor = null;
+
+		try {
+			for (int i = 0; i < levels; i++) {
+				if (up) {
+					startlevel++;
+				} else {
+					startlevel--;
+				}
+				final List<AbstractBundle> list = startLevels.get(new Integer(i));
+				if (list == null) {
+					continue;
+				}
+				final BundleImpl[] toProcess = list.toArray(new BundleImpl[list
+						.size()]);
+				if (up && STARTLEVEL_THREADS > 1 && toProcess.length > 1) {
+					if (executor == null) {
+						executor = Executors.newFixedThreadPool(
+								STARTLEVEL_THREADS, new ThreadFactory() {
+									public Thread newThread(final Runnable r) {
+										final Thread thread = new Thread(r,
+												"Concierge Start Level");
+										thread.setDaemon(true);
+										return thread;
+									}
+								});
+					}
+					activateParallel(toProcess, executor);
+					continue;
+				}
+				for (int j = 0; j < toProcess.length; j++) {
+					try {
+						if (up) {
+							// transient is implicit
+							toProcess[j]
+									.activate(toProcess[j].isActivationPolicyUsed() ? Bundle.START_ACTIVATION_POLICY
+											: 0);
+						} else {
+							if (toProcess[toProcess.length - j - 1].getState() == Bundle.UNINSTALLED) {
+								continue;
+							}
+							// transient is implicit
+							toProcess[toProcess.length - j - 1].stopBundle();
+						}
+					} catch (final BundleException be) {
+						if (be.getNestedException() != null) {
+							be.getNestedException().printStackTrace();
+						}
+						be.printStackTrace();
+						notifyFrameworkListeners(FrameworkEvent.ERROR,
+								up ? toProcess[j] : toProcess[toProcess.length - j
+										- 1], be);
+					} catch (final Throwable t) {
+						t.printStackTrace();
+						notifyFrameworkListeners(FrameworkEvent.ERROR,
+								up ? toProcess[j] : toProcess[toProcess.length - j
+										- 1], t);
+					}
+				}
+			}
+		} finally {
+			if (executor != null) {
+				executor.shutdown();
+			}
+		}
+
+		startlevel = targetLevel;
+	}
+
+	/**
+	 * start the bundles of one start level concurrently. A bundle is started
+	 * when all bundles of the same level it is wired to have been started,
+	 * the method returns when all bundles have been processed.
+	 * 
+	 * @param toProcess
+	 *            the bundles of the start level.
+	 * @param executor
+	 *            the executor that starts the bundles.
+	 */
+	private void activateParallel(final BundleImpl[] toProcess,
+			final ExecutorService executor) {
+		// resolve the level at once, so that the wiring is known and the
+		// activations do not compete for the resolver
+		final ArrayList<Bundle> unresolved = new ArrayList<Bundle>();
+		for (int j = 0; j < toProcess.length; j++) {
+			if (toProcess[j].state == Bundle.INSTALLED) {
+				unresolved.add(toProcess[j]);
+			}
+		}
+		if (!unresolved.isEmpty()) {
+			resolveBundles(unresolved);
+		}
+
+		// the bundles that did not resolve are started on this thread, the
+		// resolver does not support concurrent calls
+		final ArrayList<BundleImpl> resolved = new ArrayList<BundleImpl>(
+				toProcess.length);
+		for (int j = 0; j < toProcess.length; j++) {
+			if (toProcess[j].state == Bundle.INSTALLED) {
+				activateTimed(toProcess[j]);
 			} else {
-				startlevel--;
+				resolved.add(toProcess[j]);
 			}
-			final List<AbstractBundle> list = startLevels.get(new Integer(i));
-			if (list == null) {
+		}
+		final BundleImpl[] bundles = resolved.toArray(new BundleImpl[resolved
+				.size()]);
+
+		// providers before requirers
+		final Map<Bundle, Integer> index = new IdentityHashMap<Bundle, Integer>();
+		for (int j = 0; j < bundles.length; j++) {
+			index.put(bundles[j], new Integer(j));
+		}
+		final MultiMap<Integer, Integer> dependents = new MultiMap<Integer, Integer>();
+		final int[] pending = new int[bundles.length];
+		for (int j = 0; j < bundles.length; j++) {
+			final BundleWiring wiring = bundles[j].adapt(BundleWiring.class);
+			if (wiring == null) {
 				continue;
 			}
-			final BundleImpl[] toProcess = list.toArray(new BundleImpl[list
-					.size()]);
-			for (int j = 0; j < toProcess.length; j++) {
-				try {
-					if (up) {
-						// transient is implicit
-						toProcess[j]
-								.activate(toProcess[j].isActivationPolicyUsed() ? Bundle.START_ACTIVATION_POLICY
-										: 0);
-					} else {
-						if (toProcess[toProcess.length - j - 1].getState() == Bundle.UNINSTALLED) {
-							continue;
-						}
-						// transient is implicit
-						toProcess[toProcess.length - j - 1].stopBundle();
+			final Integer requirer = new Integer(j);
+			for (final BundleWire wire : wiring.getRequiredWires(null)) {
+				final Integer provider = index.get(wire.getProvider()
+						.getBundle());
+				if (provider == null || provider.intValue() == j) {
+					continue;
+				}
+				final List<Integer> deps = dependents.get(provider);
+				if (deps == null || !deps.contains(requirer)) {
+					dependents.insert(provider, requirer);
+					pending[j]++;
+				}
+			}
+		}
+
+		final CompletionService<Integer> completion = new ExecutorCompletionService<Integer>(
+				executor);
+		final boolean[] submitted = new boolean[bundles.length];
+		int running = 0;
+		for (int j = 0; j < bundles.length; j++) {
+			if (pending[j] == 0) {
+				submitActivation(completion, bundles, j);
+				submitted[j] = true;
+				running++;
+			}
+		}
+
+		boolean interrupted = false;
+		for (int done = 0; done < bundles.length;) {
+			if (running == 0) {
+				// dependency cycle, break it in installation order
+				for (int j = 0; j < bundles.length; j++) {
+					if (!submitted[j]) {
+						submitActivation(completion, bundles, j);
+						submitted[j] = true;
+						running++;
+						break;
 					}
-				} catch (final BundleException be) {
-					if (be.getNestedException() != null) {
-						be.getNestedException().printStackTrace();
+				}
+			}
+			final int j;
+			try {
+				j = completion.take().get().intValue();
+			} catch (final InterruptedException ie) {
+				interrupted = true;
+				continue;
+			} catch (final ExecutionException ee) {
+				// cannot happen, the activation handles all errors
+				throw new IllegalStateException(ee.getCause());
+			}
+			running--;
+			done++;
+			final List<Integer> deps = dependents.get(new Integer(j));
+			if (deps != null) {
+				for (final Integer dep : deps) {
+					final int d = dep.intValue();
+					if (--pending[d] == 0 && !submitted[d]) {
+						submitActivation(completion, bundles, d);
+						submitted[d] = true;
+						running++;
 					}
-					be.printStackTrace();
-					notifyFrameworkListeners(FrameworkEvent.ERROR,
-							up ? toProcess[j] : toProcess[toProcess.length - j
-									- 1], be);
-				} catch (final Throwable t) {
-					t.printStackTrace();
-					notifyFrameworkListeners(FrameworkEvent.ERROR,
-							up ? toProcess[j] : toProcess[toProcess.length - j
-									- 1], t);
 				}
 			}
 		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
 
-		startlevel = targetLevel;
+	/**
+	 * submit the activation of a bundle. The time it took is reported as
+	 * framework event of type INFO.
+	 */
+	private void submitActivation(final CompletionService<Integer> completion,
+			final BundleImpl[] toProcess, final int j) {
+		final BundleImpl bundle = toProcess[j];
+		completion.submit(new Callable<Integer>() {
+			public Integer call() {
+				activateTimed(bundle);
+				return new Integer(j);
+			}
+		});
+	}
+
+	/**
+	 * activate a bundle of a start level. The time it took is reported as
+	 * framework event of type INFO.
+	 */
+	private void activateTimed(final BundleImpl bundle) {
+		final long time = System.nanoTime();
+		try {
+			// transient is implicit
+			bundle.activate(bundle.isActivationPolicyUsed() ? Bundle.START_ACTIVATION_POLICY
+					: 0);
+		} catch (final BundleException be) {
+			if (be.getNestedException() != null) {
+				be.getNestedException().printStackTrace();
+			}
+			be.printStackTrace();
+			notifyFrameworkListeners(FrameworkEvent.ERROR, bundle, be);
+		} catch (final Throwable t) {
+			t.printStackTrace();
+			notifyFrameworkListeners(FrameworkEvent.ERROR, bundle, t);
+		}
+		final ActivationTime timing = new ActivationTime(bundle,
+				System.nanoTime() - time);
+		if (LOG_ENABLED && DEBUG_BUNDLES) {
+			logger.log(LogService.LOG_INFO,
+					"Framework: " + timing.getMessage());
+		}
+		notifyFrameworkListeners(FrameworkEvent.INFO, bundle, timing);
+	}
+
+	/**
+	 * The time it took to start a bundle during a start level change. The
+	 * framework event API can only carry a throwable, so the timing is
+	 * delivered as one.
+	 */
+	static final class ActivationTime extends Throwable {
+
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * the time in nanoseconds.
+		 */
+		final long nanos;
+
+		ActivationTime(final Bundle bundle, final long nanos) {
+			super("Bundle " + bundle + " started in " + nanos / 1000000
+					+ " ms");
+			this.nanos = nanos;
+		}
+
+		/**
+		 * no stack trace, this is not an error.
+		 */
+		public synchronized Throwable fillInStackTrace() {
+			return this;
+		}
 	}
 
 	// BundleRevision
@@ -2109,7 +2905,7 @@ public final class Concierge extends AbstractBundle implements Framework,
 
 								if (bu.state == UNINSTALLED) {
 									// bundle is uninstalled
-									bundles.remove(bu);
+									removeBundle(bu);
 								} else {
 									notifyBundleListeners(
 											BundleEvent.UNRESOLVED, bu);
@@ -2266,10 +3062,35 @@ public final class Concierge extends AbstractBundle implements Framework,
 		}
 	}
 
+	/**
+	 * find the providers of a dynamically imported package.
+	 * 
+	 * @param trigger
+	 *            the importing revision.
+	 * @param pkg
+	 *            the package.
+	 * @param dynImport
+	 *            the dynamic import that matches the package.
+	 * @return the providers in export order, or <code>null</code>.
+	 */
 	List<BundleCapability> resolveDynamic(final BundleRevision trigger,
-			final String pkg, final String dynImportPackage,
-			final BundleRequirement dynImport, final boolean multiple) {
-		Collection<Capability> candidates = null;
+			final String pkg, final BundleRequirement dynImport) {
+		final int epoch = lookupEpoch.get();
+		final Integer missing = missingPackages.get(pkg);
+		if (missing != null && missing.intValue() == epoch) {
+			return null;
+		}
+
+		// the exports of the package, in version order
+		final List<Capability> candidates = capabilityRegistry.getByValue(
+				PackageNamespace.PACKAGE_NAMESPACE, pkg);
+		if (candidates.isEmpty()) {
+			if (missingPackages.size() >= MISSING_PACKAGES) {
+				missingPackages.clear();
+			}
+			missingPackages.put(pkg, Integer.valueOf(epoch));
+			return null;
+		}
 
 		try {
 			if (resolver.hooks == null) {
@@ -2279,27 +3100,17 @@ public final class Concierge extends AbstractBundle implements Framework,
 			final String filterStr = dynImport.getDirectives().get(
 					Namespace.REQUIREMENT_FILTER_DIRECTIVE);
 
-			if (multiple) {
-				// we have a wildcard, this means scanning
-				candidates = capabilityRegistry
-						.getAll(PackageNamespace.PACKAGE_NAMESPACE);
-			} else {
-				// we don't have a wildcard, use the index
-				if (filterStr == null) {
-					candidates = capabilityRegistry.getByValue(
-							PackageNamespace.PACKAGE_NAMESPACE,
-							dynImportPackage);
-				} else {
-					try {
-						candidates = RFC1960Filter.filterWithIndex(dynImport,
-								filterStr, capabilityRegistry);
-					} catch (final InvalidSyntaxException e) {
-						e.printStackTrace();
+			if (filterStr != null) {
+				final Filter filter = RFC1960Filter.CACHE.get(filterStr);
+				for (final Iterator<Capability> iter = candidates.iterator(); iter
+						.hasNext();) {
+					if (!filter.matches(iter.next().getAttributes())) {
+						iter.remove();
 					}
 				}
 			}
 
-			if (candidates == null || candidates.isEmpty()) {
+			if (candidates.isEmpty()) {
 				endResolverHooks(resolver.hooks);
 				return null;
 			}
@@ -2309,17 +3120,6 @@ public final class Concierge extends AbstractBundle implements Framework,
 			final ArrayList<BundleCapability> matches = new ArrayList<BundleCapability>();
 
 			for (final Capability cap : candidates) {
-				final String candidatePackage = (String) cap.getAttributes()
-						.get(PackageNamespace.PACKAGE_NAMESPACE);
-
-				assert candidatePackage != null;
-
-				if (multiple
-						&& RFC1960Filter.stringCompare(pkg.toCharArray(), 0,
-								candidatePackage.toCharArray(), 0) != 0) {
-					continue;
-				}
-
 				if (cap instanceof BundleCapability
 						&& Concierge.matches0(
 								PackageNamespace.PACKAGE_NAMESPACE, dynImport,
@@ -2343,7 +3143,7 @@ public final class Concierge extends AbstractBundle implements Framework,
 
 			endResolverHooks(resolver.hooks);
 
-			Collections.sort(matches, EXPORT_ORDER);
+			sortExports(matches);
 			return matches;
 		} catch (final Throwable t) {
 			// TODO: handle
@@ -2417,6 +3217,31 @@ public final class Concierge extends AbstractBundle implements Framework,
 			throw new IllegalStateException("nested resolve call");
 		}
 
+		final Collection<BundleRevision> toResolve;
+		boolean failed = false;
+		if (RESOLVER_INCREMENTAL) {
+			// resolver hooks can decide differently on every call
+			final boolean skipFailed = !critical
+					&& resolverHookFactories.isEmpty();
+			toResolve = new ArrayList<BundleRevision>(bundles.size());
+			for (final BundleRevision revision : bundles) {
+				if (revision == null || revision.getWiring() != null) {
+					continue;
+				}
+				if (skipFailed && resolution.isFailed(revision)) {
+					failed = true;
+					continue;
+				}
+				toResolve.add(revision);
+			}
+			if (toResolve.isEmpty()) {
+				resolver.touched.clear();
+				return !failed;
+			}
+		} else {
+			toResolve = bundles;
+		}
+
 		inResolve = true;
 		boolean cleanup = false;
 
@@ -2425,7 +3250,7 @@ public final class Concierge extends AbstractBundle implements Framework,
 			final MultiMap<Resource, HostedCapability> hostedCapabilities = new MultiMap<Resource, HostedCapability>();
 
 			if (resolver.hooks == null) {
-				resolver.hooks = getResolverHooks(bundles);
+				resolver.hooks = getResolverHooks(toResolve);
 				cleanup = true;
 			}
 
@@ -2433,10 +3258,10 @@ public final class Concierge extends AbstractBundle implements Framework,
 			final ArrayList<Requirement> unresolvedRequirements = new ArrayList<Requirement>();
 			final ArrayList<Resource> unresolvedResources = new ArrayList<Resource>();
 
-			resolver.resolve0(new ResolveContext() {
+			final ResolveContext context = new ResolveContext() {
 
 				public Collection<Resource> getMandatoryResources() {
-					return new ArrayList<Resource>(bundles);
+					return new ArrayList<Resource>(toResolve);
 				}
 
 				public Collection<Resource> getOptionalResources() {
@@ -2484,7 +3309,7 @@ public final class Concierge extends AbstractBundle implements Framework,
 						return;
 					}
 					if (PackageNamespace.PACKAGE_NAMESPACE.equals(namespace)) {
-						Collections.sort(providers, EXPORT_ORDER);
+						sortExports(providers);
 					}
 					if (BundleNamespace.BUNDLE_NAMESPACE.equals(namespace)) {
 						Collections.sort(providers, BUNDLE_VERSION);
@@ -2524,11 +3349,24 @@ public final class Concierge extends AbstractBundle implements Framework,
 					return wirings;
 				}
 
-			}, solution, unresolvedRequirements, unresolvedResources);
+			};
+
+			resolver.resolve0(context, solution, unresolvedRequirements,
+					unresolvedResources);
 
 			// TODO: introduce resolver debug flag
 			if (LOG_ENABLED) {
 				logger.log(LogService.LOG_DEBUG, "Solution: " + solution);
+				logger.log(LogService.LOG_DEBUG, "Candidates: "
+						+ capabilityRegistry.getCandidateCounts());
+				logger.log(LogService.LOG_DEBUG, "Touched: "
+						+ resolver.touched.size() + " of " + bundles.size()
+						+ " resources");
+			}
+
+			if (RESOLVER_INCREMENTAL) {
+				recordFailures(context, solution, unresolvedRequirements,
+						unresolvedResources);
 			}
 
 			final MultiMap<Resource, Wire> reciprocal = new MultiMap<Resource, Wire>();
@@ -2605,7 +3443,7 @@ public final class Concierge extends AbstractBundle implements Framework,
 						}
 					}
 
-					wirings.put(resource, wiring);
+					putWiring(resource, wiring);
 				} else {
 					// this is the system bundle
 					// manually add the wires to wirings
@@ -2614,7 +3452,7 @@ public final class Concierge extends AbstractBundle implements Framework,
 							.get(resource);
 					if (wiring == null) {
 						wiring = new ConciergeBundleWiring(systemBundle, wires);
-						wirings.put(systemBundle, wiring);
+						putWiring(systemBundle, wiring);
 					} else {
 						for (final Wire wire : wires) {
 							wiring.addWire((BundleWire) wire);
@@ -2625,7 +3463,7 @@ public final class Concierge extends AbstractBundle implements Framework,
 
 			if (unresolvedRequirements.isEmpty()
 					&& unresolvedResources.isEmpty()) {
-				return true;
+				return !failed;
 			}
 
 			if (critical) {
@@ -2651,6 +3489,79 @@ public final class Concierge extends AbstractBundle implements Framework,
 		}
 	}
 
+	/**
+	 * update the resources known to fail after a resolve call. A failed
+	 * resource is only recorded if all candidates for its unresolved
+	 * requirements are known to fail as well, so that it is tried again as
+	 * soon as one of them changes.
+	 * 
+	 * @param context
+	 *            the resolve context.
+	 * @param solution
+	 *            the resolved resources.
+	 * @param unresolvedRequirements
+	 *            the unresolved requirements of the mandatory resources.
+	 * @param unresolvedResources
+	 *            the mandatory resources that were not resolved for other
+	 *            reasons.
+	 */
+	private void recordFailures(final ResolveContext context,
+			final MultiMap<Resource, Wire> solution,
+			final List<Requirement> unresolvedRequirements,
+			final List<Resource> unresolvedResources) {
+		for (final Resource resource : solution.keySet()) {
+			resolution.forget(resource);
+		}
+
+		if (unresolvedRequirements.isEmpty()
+				|| !resolverHookFactories.isEmpty()) {
+			return;
+		}
+
+		final MultiMap<Resource, Requirement> failures = new MultiMap<Resource, Requirement>();
+		for (final Requirement requirement : unresolvedRequirements) {
+			final Resource resource = requirement.getResource();
+			if (resource != null && !solution.containsKey(resource)
+					&& !unresolvedResources.contains(resource)) {
+				failures.insert(resource, requirement);
+			}
+		}
+
+		final HashMap<Resource, Set<Resource>> pending = new HashMap<Resource, Set<Resource>>();
+		for (final Resource resource : failures.keySet()) {
+			final Set<Resource> candidates = new HashSet<Resource>();
+			for (final Requirement requirement : failures.get(resource)) {
+				for (final Capability cap : context.findProviders(requirement)) {
+					candidates.add(cap.getResource());
+				}
+			}
+			candidates.remove(resource);
+			pending.put(resource, candidates);
+		}
+
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (final Iterator<Map.Entry<Resource, Set<Resource>>> iter = pending
+					.entrySet().iterator(); iter.hasNext();) {
+				final Map.Entry<Resource, Set<Resource>> entry = iter.next();
+				boolean settled = true;
+				for (final Resource candidate : entry.getValue()) {
+					if (!resolution.isFailed(candidate)) {
+						settled = false;
+						break;
+					}
+				}
+				if (settled) {
+					resolution.fail(entry.getKey(),
+							failures.get(entry.getKey()), entry.getValue());
+					iter.remove();
+					changed = true;
+				}
+			}
+		}
+	}
+
 	/**
 	 * @see org.osgi.framework.wiring.FrameworkWiring#getRemovalPendingBundles()
 	 * @category FrameworkWiring
@@ -2748,6 +3659,11 @@ public final class Concierge extends AbstractBundle implements Framework,
 
 		protected HashMap<ResolverHook, ServiceReferenceImpl<ResolverHookFactory>> hooks;
 
+		/**
+		 * the resources that the last resolution tried to resolve.
+		 */
+		final HashSet<Resource> touched = new HashSet<Resource>();
+
 		public synchronized Map<Resource, List<Wire>> resolve(
 				final ResolveContext context) throws ResolutionException {
 			if (context == null) {
@@ -2770,20 +3686,25 @@ public final class Concierge extends AbstractBundle implements Framework,
 			return solution.getFlatMap();
 		}
 
-		protected void resolve0(final ResolveContext context,
+		protected void resolve0(final ResolveContext resolveContext,
 				final MultiMap<Resource, Wire> solution,
 				final ArrayList<Requirement> unresolvedRequirements,
 				final ArrayList<Resource> unresolvedResources) {
 
-			final Collection<Resource> mandatory = context
+			final Collection<Resource> mandatory = resolveContext
 					.getMandatoryResources();
-			final Collection<Resource> optional = context
+			final Collection<Resource> optional = resolveContext
 					.getOptionalResources();
 
+			touched.clear();
+
 			if (hooks != null && !hooks.isEmpty()) {
 				filterResources(hooks.keySet(), mandatory, unresolvedResources);
 			}
 
+			final ResolveContext context = RESOLVER_BACKTRACKING ? plan(
+					resolveContext, mandatory, optional) : resolveContext;
+
 			if (!(mandatory.isEmpty() && optional.isEmpty())) {
 				final Map<Resource, Wiring> existingWirings = context
 						.getWirings();
@@ -2831,6 +3752,54 @@ public final class Concierge extends AbstractBundle implements Framework,
 			}
 		}
 
+		/**
+		 * plan the candidates of the resources to resolve with a
+		 * backtracking search.
+		 * 
+		 * @param context
+		 *            the resolve context.
+		 * @param mandatory
+		 *            the mandatory resources.
+		 * @param optional
+		 *            the optional resources.
+		 * @return the resolve context that returns the planned candidates
+		 *         first.
+		 */
+		private ResolveContext plan(final ResolveContext context,
+				final Collection<Resource> mandatory,
+				final Collection<Resource> optional) {
+			final BacktrackingResolver search = new BacktrackingResolver(
+					context, RESOLVER_TIMEOUT) {
+				protected void filter(final Requirement requirement,
+						final Collection<Capability> candidates) {
+					if (hooks != null && !hooks.isEmpty()
+							&& requirement instanceof BundleRequirement) {
+						filterCandidates(hooks.keySet(),
+								(BundleRequirement) requirement, candidates);
+					}
+				}
+			};
+
+			for (final Resource resource : mandatory) {
+				if (resource != null) {
+					search.plan(resource);
+				}
+			}
+			for (final Resource resource : optional) {
+				if (resource != null) {
+					search.plan(resource);
+				}
+			}
+
+			if (LOG_ENABLED) {
+				logger.log(LogService.LOG_DEBUG, "Planned candidates in "
+						+ search.steps + " steps"
+						+ (search.timedOut ? ", time budget exceeded" : ""));
+			}
+
+			return search.getPlannedContext();
+		}
+
 		private boolean checkSingleton(final BundleRevision resource) {
 			try {
 				final List<Capability> identities = resource
@@ -2925,6 +3894,8 @@ public final class Concierge extends AbstractBundle implements Framework,
 				return Collections.emptyList();
 			}
 
+			touched.add(resource);
+
 			final Collection<Requirement> unresolvedRequirements = new ArrayList<Requirement>();
 			final MultiMap<Resource, Wire> newWires = new MultiMap<Resource, Wire>();
 
@@ -3258,8 +4229,23 @@ public final class Concierge extends AbstractBundle implements Framework,
 	protected static class ConciergeURLStreamHandlerFactory implements
 			URLStreamHandlerFactory {
 
+		/**
+		 * the maximum number of cached hosts.
+		 */
+		private static final int HOST_CACHE_SIZE = 1024;
+
 		Concierge frameworkInstance = null;
 
+		/**
+		 * the handler of the bundle protocol.
+		 */
+		private final URLStreamHandler bundleHandler = new BundleURLStreamHandler();
+
+		/**
+		 * host -> parsed host of bundle URLs.
+		 */
+		private final ConcurrentHashMap<String, BundleHost> hosts = new ConcurrentHashMap<String, BundleHost>();
+
 		public void setConcierge(final Concierge concierge) {
 			this.frameworkInstance = concierge;
 		}
@@ -3271,108 +4257,225 @@ public final class Concierge extends AbstractBundle implements Framework,
 		public URLStreamHandler createURLStreamHandler(final String protocol) {
 			// check the service registry, java.protocol.handler.pkgs, etc.
 			if ("bundle".equals(protocol)) {
-				return new URLStreamHandler() {
+				return bundleHandler;
+			}
 
-					protected URLConnection openConnection(final URL u)
-							throws IOException {
-						try {
-							final String host = u.getHost();
-							// FIXME: unsafe!
-							final String[] s = Utils.splitString(host, '.');
+			return null;
+		}
+
+		/**
+		 * parse the host of a bundle URL.
+		 * 
+		 * @param u
+		 *            the URL.
+		 * @return the bundle id and revision.
+		 * @throws IOException
+		 *             if the host is malformed.
+		 */
+		BundleHost parseHost(final URL u) throws IOException {
+			final String host = u.getHost();
+			BundleHost parsed = hosts.get(host);
+			if (parsed != null) {
+				return parsed;
+			}
+			final int pos = host.indexOf('.');
+			try {
+				if (pos < 0) {
+					throw new NumberFormatException();
+				}
+				parsed = new BundleHost(Long.parseLong(host.substring(0, pos)),
+						Integer.parseInt(host.substring(pos + 1)));
+			} catch (final NumberFormatException nfe) {
+				throw new IOException("Malformed host " + host);
+			}
+			if (hosts.size() < HOST_CACHE_SIZE) {
+				hosts.put(host, parsed);
+			}
+			return parsed;
+		}
 
-							final Long bundleId = Long.parseLong(s[0]);
-							final int rev = Integer.parseInt(s[1]);
+		/**
+		 * the bundle id and revision encoded in the host of a bundle URL.
+		 */
+		static final class BundleHost {
 
-							if (ConciergeURLStreamHandlerFactory.this.frameworkInstance == null) {
-								throw new IllegalStateException(
-										"ConciergeURLStreamHandlerFactory "
-												+ "is not linked to a Concierge framework");
-							}
+			final long bundleId;
 
-							final BundleImpl bundle = (BundleImpl) ConciergeURLStreamHandlerFactory.this.frameworkInstance.bundleID_bundles
-									.get(bundleId);
-							if (bundle == null) {
-								throw new IllegalStateException(
-										"Bundle for URL " + u
-												+ " can not be found");
-							}
-							return new URLConnection(u) {
+			final int rev;
 
-								private InputStream inputStream;
+			BundleHost(final long bundleId, final int rev) {
+				this.bundleId = bundleId;
+				this.rev = rev;
+			}
 
-								private boolean isConnected;
+		}
 
-								public void connect() throws IOException {
-									inputStream = bundle.getURLResource(u, rev);
-									isConnected = true;
-								}
+		/**
+		 * the handler of bundle URLs, shared by all URLs of the protocol.
+		 */
+		private final class BundleURLStreamHandler extends URLStreamHandler {
 
-								public int getContentLength() {
-									return (int) bundle.getResourceLength(u,
-											rev);
-								}
+			protected URLConnection openConnection(final URL u)
+					throws IOException {
+				final BundleHost host = parseHost(u);
 
-								public InputStream getInputStream()
-										throws IOException {
-									if (!isConnected) {
-										connect();
-									}
-									return inputStream;
-								}
+				final Concierge framework = frameworkInstance;
+				if (framework == null) {
+					throw new IllegalStateException(
+							"ConciergeURLStreamHandlerFactory "
+									+ "is not linked to a Concierge framework");
+				}
 
-							};
-						} catch (final NumberFormatException nfe) {
-							throw new IOException("Malformed host "
-									+ u.getHost());
-						}
-					}
-				};
+				final AbstractBundle bundle = framework.bundleID_bundles
+						.get(host.bundleId);
+				if (!(bundle instanceof BundleImpl)) {
+					throw new IllegalStateException("Bundle for URL " + u
+							+ " can not be found");
+				}
+				return new BundleURLConnection(u, (BundleImpl) bundle,
+						host.rev);
 			}
 
-			return null;
 		}
+
 	}
 
-	// full match
-	static boolean matches(final Requirement req, final Capability cap) {
-		final String reqNamespace = req.getNamespace();
-		final String capNamespace = cap.getNamespace();
+	/**
+	 * a connection to an entry of a bundle revision. The entry is read from
+	 * the files that the revision keeps open.
+	 */
+	static final class BundleURLConnection extends URLConnection {
 
-		if (!reqNamespace.equals(capNamespace)) {
-			return false;
-		}
+		private final BundleImpl bundle;
 
-		/*
-		 * final String effective = req.getDirectives().get(
-		 * Namespace.REQUIREMENT_EFFECTIVE_DIRECTIVE); if (!(effective == null
-		 * || effective .equals(Namespace.EFFECTIVE_RESOLVE))) { return false; }
-		 */
+		private final int rev;
 
-		final String filter = req.getDirectives().get(
-				Namespace.REQUIREMENT_FILTER_DIRECTIVE);
+		private Revision revision;
 
-		try {
-			if (!(filter == null || RFC1960Filter.fromString(filter).matches(
-					cap.getAttributes()))) {
-				return false;
-			}
+		private String classpath;
 
-			return matches0(capNamespace, req, cap, filter);
-		} catch (final InvalidSyntaxException e) {
-			// TODO: to log
-			e.printStackTrace();
-			return false;
-		}
-	}
+		private String filename;
 
-	// match on a prefiltered result
-	static boolean matches0(final String namespace, final Requirement req,
-			final Capability cap, final String filterStr) {
-		if (!namespace.startsWith("osgi.wiring.")) {
-			return true;
-		}
+		private InputStream inputStream;
 
-		final String mandatory = cap.getDirectives().get(
+		private long length = -2;
+
+		BundleURLConnection(final URL u, final BundleImpl bundle, final int rev) {
+			super(u);
+			this.bundle = bundle;
+			this.rev = rev;
+		}
+
+		/**
+		 * find the revision and the file of the URL.
+		 */
+		private void locate() throws IOException {
+			if (revision != null) {
+				return;
+			}
+			revision = bundle.getRevision(rev);
+			if (revision == null) {
+				throw new FileNotFoundException(url.toString());
+			}
+			// the fragment addresses a file in an embedded jar
+			final String ref = url.getRef();
+			if (ref == null) {
+				filename = url.getPath();
+			} else {
+				classpath = url.getPath();
+				filename = ref;
+			}
+		}
+
+		public void connect() throws IOException {
+			if (connected) {
+				return;
+			}
+			locate();
+			inputStream = revision.retrieveFile(classpath, filename);
+			if (inputStream == null) {
+				throw new FileNotFoundException(url.toString());
+			}
+			connected = true;
+		}
+
+		public InputStream getInputStream() throws IOException {
+			connect();
+			return inputStream;
+		}
+
+		public int getContentLength() {
+			final long len = getContentLengthLong();
+			return len > Integer.MAX_VALUE ? -1 : (int) len;
+		}
+
+		public long getContentLengthLong() {
+			if (length == -2) {
+				try {
+					locate();
+					length = revision.retrieveFileLength(classpath, filename);
+				} catch (final IOException ioe) {
+					length = -1;
+				}
+			}
+			return length;
+		}
+
+		public String getContentType() {
+			try {
+				locate();
+			} catch (final IOException ioe) {
+				return null;
+			}
+			return guessContentTypeFromName(filename);
+		}
+
+		public long getLastModified() {
+			return bundle.getLastModified();
+		}
+
+	}
+
+	// full match
+	static boolean matches(final Requirement req, final Capability cap) {
+		final String reqNamespace = req.getNamespace();
+		final String capNamespace = cap.getNamespace();
+
+		if (!reqNamespace.equals(capNamespace)) {
+			return false;
+		}
+
+		/*
+		 * final String effective = req.getDirectives().get(
+		 * Namespace.REQUIREMENT_EFFECTIVE_DIRECTIVE); if (!(effective == null
+		 * || effective .equals(Namespace.EFFECTIVE_RESOLVE))) { return false; }
+		 */
+
+		final String filter = req.getDirectives().get(
+				Namespace.REQUIREMENT_FILTER_DIRECTIVE);
+
+		try {
+			if (!(filter == null || RFC1960Filter.CACHE.get(filter).matches(
+					cap.getAttributes()))) {
+				return false;
+			}
+
+			return matches0(capNamespace, req, cap, filter);
+		} catch (final InvalidSyntaxException e) {
+			// TODO: to log
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	// match on a prefiltered result
+	static boolean matches0(final String namespace, final Requirement req,
+			final Capability cap, final String filterStr) {
+		if (!namespace.startsWith("osgi.wiring.")) {
+			return true;
+		}
+
+		final String mandatory = cap.getDirectives().get(
 				Namespace.RESOLUTION_MANDATORY);
 
 		if (mandatory == null) {
@@ -3512,7 +4615,7 @@ public final class Concierge extends AbstractBundle implements Framework,
 		// remove all class entries
 		final String[] clazzes = (String[]) sref
 				.getProperty(Constants.OBJECTCLASS);
-		serviceRegistry.removeAll(clazzes, sref);
+		serviceRegistry.unregister((ServiceReferenceImpl<?>) sref);
 
 		boolean isHook = false;
 
@@ -3622,7 +4725,17 @@ public final class Concierge extends AbstractBundle implements Framework,
 		}
 
 		for (int i = 0; i < asyncs.length; i++) {
-			asyncs[i].bundleChanged(event);
+			final BundleListener listener = asyncs[i];
+			eventDispatcher.deliver(listener, new Runnable() {
+				public void run() {
+					try {
+						listener.bundleChanged(event);
+					} catch (final Throwable t) {
+						notifyFrameworkListeners(FrameworkEvent.ERROR,
+								Concierge.this, t);
+					}
+				}
+			});
 		}
 	}
 
@@ -3636,7 +4749,9 @@ public final class Concierge extends AbstractBundle implements Framework,
 	void publishCapabilities(final List<? extends Capability> caps) {
 		for (final Capability cap : caps) {
 			capabilityRegistry.add(cap);
+			resolution.publish(cap);
 		}
+		invalidateLookups();
 	}
 
 	// void removeCapabilities(final List<? extends Capability> caps) {
@@ -3651,6 +4766,45 @@ public final class Concierge extends AbstractBundle implements Framework,
 		for (final HostedCapability hosted : resource.getHostedCapabilities()) {
 			capabilityRegistry.remove(hosted);
 		}
+		resolution.forget(resource);
+		invalidateLookups();
+	}
+
+	/**
+	 * set the wiring of a resource and index its package exports.
+	 * 
+	 * @param resource
+	 *            the resource.
+	 * @param wiring
+	 *            the wiring.
+	 */
+	void putWiring(final Resource resource, final BundleWiring wiring) {
+		final Wiring old = wirings.put(resource, wiring);
+		if (old != null && old != wiring) {
+			exportIndex.remove((BundleWiring) old);
+		}
+		exportIndex.add(wiring);
+	}
+
+	/**
+	 * remove the wiring of a resource and its package exports.
+	 * 
+	 * @param resource
+	 *            the resource.
+	 */
+	void removeWiring(final Resource resource) {
+		final Wiring old = wirings.remove(resource);
+		if (old != null) {
+			exportIndex.remove((BundleWiring) old);
+		}
+	}
+
+	/**
+	 * invalidate the missing classes and resources remembered by the class
+	 * loaders.
+	 */
+	void invalidateLookups() {
+		lookupEpoch.incrementAndGet();
 	}
 
 	void checkForCollision(final int operation, final Bundle contextOwner,
@@ -3742,16 +4896,21 @@ public final class Concierge extends AbstractBundle implements Framework,
 
 		for (int i = 0; i < listeners.length; i++) {
 			final FrameworkListener listener = listeners[i];
-			if (SECURITY_ENABLED) {
-				AccessController.doPrivileged(new PrivilegedAction<Object>() {
-					public Object run() {
+			eventDispatcher.deliver(listener, new Runnable() {
+				public void run() {
+					if (SECURITY_ENABLED) {
+						AccessController
+								.doPrivileged(new PrivilegedAction<Object>() {
+									public Object run() {
+										listener.frameworkEvent(event);
+										return null;
+									}
+								});
+					} else {
 						listener.frameworkEvent(event);
-						return null;
 					}
-				});
-			} else {
-				listener.frameworkEvent(event);
-			}
+				}
+			});
 		}
 	}
 
@@ -3778,16 +4937,15 @@ public final class Concierge extends AbstractBundle implements Framework,
 		final ServiceListenerEntry[] entries;
 
 		if (serviceEventListenerHooks.isEmpty() && serviceEventHooks.isEmpty()) {
-			entries = serviceListeners
-					.toArray(new ServiceListenerEntry[serviceListeners.size()]);
+			entries = serviceListeners.getCandidates((String[]) reference
+					.getProperty(Constants.OBJECTCLASS));
 		} else {
 			// prepare the data structures
 			final MultiMap<BundleContext, ListenerInfo> mmap = new MultiMap<BundleContext, ListenerInfo>();
 
-			for (final Iterator<ServiceListenerEntry> iter = serviceListeners
-					.iterator(); iter.hasNext();) {
-				final ServiceListenerEntry entry = iter.next();
-				mmap.insert(entry.bundle.context, entry);
+			final ServiceListenerEntry[] all = serviceListeners.getAll();
+			for (int i = 0; i < all.length; i++) {
+				mmap.insert(all[i].bundle.context, all[i]);
 			}
 
 			final ConciergeCollections.RemoveOnlyMap<BundleContext, Collection<ListenerInfo>> map = new ConciergeCollections.RemoveOnlyMap<BundleContext, Collection<ListenerInfo>>();
@@ -3829,13 +4987,11 @@ public final class Concierge extends AbstractBundle implements Framework,
 			}
 
 			final ArrayList<ServiceListenerEntry> list = new ArrayList<ServiceListenerEntry>();
-			for (final Iterator<ServiceListenerEntry> iter = serviceListeners
-					.iterator(); iter.hasNext();) {
-				final ServiceListenerEntry entry = iter.next();
+			for (int i = 0; i < all.length; i++) {
 				final Collection<ListenerInfo> listeners = map
-						.get(entry.bundle.context);
-				if (listeners != null && listeners.contains(entry)) {
-					list.add(entry);
+						.get(all[i].bundle.context);
+				if (listeners != null && listeners.contains(all[i])) {
+					list.add(all[i]);
 				}
 			}
 			entries = list.toArray(new ServiceListenerEntry[list.size()]);
@@ -4005,13 +5161,13 @@ public final class Concierge extends AbstractBundle implements Framework,
 
 	@SuppressWarnings({ "unchecked" })
 	protected <T> T getService(final Class<T> cls, final Version version) {
-		final List<ServiceReference<?>> refs = serviceRegistry.lookup(cls
+		final ServiceReferenceImpl<?>[] refs = serviceRegistry.lookup(cls
 				.getName());
-		for (final ServiceReference<?> ref : refs) {
+		for (final ServiceReferenceImpl<?> ref : refs) {
 			final Version other = (Version) ref
 					.getProperty(Constants.VERSION_ATTRIBUTE);
 			if (other != null && other.compareTo(version) == 0) {
-				return (T) ((ServiceReferenceImpl<?>) ref).service;
+				return (T) ref.service;
 			}
 		}
 		return null;
@@ -4122,14 +5278,14 @@ public final class Concierge extends AbstractBundle implements Framework,
 			final ServiceListenerEntry entry = new ServiceListenerEntry(bundle,
 					listener, filterExpr);
 
+			if (bundle.registeredServiceListeners != null
+					&& getRegisteredServiceListener(listener) != null) {
+				removeServiceListener(listener);
+			}
 			if (bundle.registeredServiceListeners == null) {
 				bundle.registeredServiceListeners = new ArrayList<ServiceListenerEntry>(
 						1);
 			}
-			final ServiceListenerEntry existing = getRegisteredServiceListener(listener);
-			if (existing != null) {
-				removeServiceListener(listener);
-			}
 			bundle.registeredServiceListeners.add(entry);
 			serviceListeners.add(entry);
 
@@ -4224,7 +5380,7 @@ public final class Concierge extends AbstractBundle implements Framework,
 			if (filter == null) {
 				throw new NullPointerException();
 			}
-			return org.osgi.framework.FrameworkUtil.createFilter(filter);
+			return FRAMEWORK_FILTERS.get(filter);
 			// return RFC1960Filter.fromString(filter);
 		}
 
@@ -4251,7 +5407,7 @@ public final class Concierge extends AbstractBundle implements Framework,
 		public Bundle getBundle(final long id) {
 			checkValid();
 
-			final Bundle bundle = bundleID_bundles.get(new Long(id));
+			final Bundle bundle = bundleID_bundles.get(id);
 			if (bundle == null || bundleFindHooks.isEmpty()) {
 				return bundle;
 			}
@@ -4272,14 +5428,13 @@ public final class Concierge extends AbstractBundle implements Framework,
 		public Bundle[] getBundles() {
 			checkValid();
 
-			final ArrayList<Bundle> bundleList = new ArrayList<Bundle>(bundles);
-			bundleList.add(0, Concierge.this);
+			final Bundle[] snapshot = bundleSnapshot;
 
 			if (bundleFindHooks.isEmpty()) {
-				return bundleList.toArray(new Bundle[bundleList.size()]);
+				return snapshot.clone();
 			}
 
-			return filterWithBundleHooks(this, bundleList);
+			return filterWithBundleHooks(this, Arrays.asList(snapshot));
 		}
 
 		/**
@@ -4419,28 +5574,20 @@ public final class Concierge extends AbstractBundle implements Framework,
 			checkValid();
 
 			// final Filter theFilter = FrameworkUtil.createFilter(filter);
-			final Filter theFilter = RFC1960Filter.fromString(filter);
-			final Collection<ServiceReference<?>> references;
+			final Filter theFilter = RFC1960Filter.CACHE.get(filter);
 
-			if (clazz == null) {
-				references = serviceRegistry.getAllValues();
-			} else {
-				references = serviceRegistry.get(clazz);
-			}
+			// the snapshot is immutable, no need to copy
+			final ServiceReferenceImpl<?>[] refs = clazz == null ? serviceRegistry
+					.getAll() : serviceRegistry.lookup(clazz);
 
 			final List<ServiceReference<?>> result = new ArrayList<ServiceReference<?>>();
 
-			if (references != null) {
-				final ServiceReferenceImpl<?>[] refs = references
-						.toArray(new ServiceReferenceImpl[references.size()]);
-
-				for (int i = 0; i < refs.length; i++) {
-					if (theFilter.match(refs[i])
-							&& (all || refs[i]
-									.isAssignableTo(bundle, (String[]) refs[i]
-											.getProperty(Constants.OBJECTCLASS)))) {
-						result.add(refs[i]);
-					}
+			for (int i = 0; i < refs.length; i++) {
+				if (theFilter.match(refs[i])
+						&& (all || refs[i].isAssignableTo(bundle,
+								(String[]) refs[i]
+										.getProperty(Constants.OBJECTCLASS)))) {
+					result.add(refs[i]);
 				}
 			}
 
@@ -4492,37 +5639,23 @@ public final class Concierge extends AbstractBundle implements Framework,
 		public ServiceReference<?> getServiceReference(final String clazz) {
 			checkValid();
 
-			ServiceReference<?> winner = null;
-			int maxRanking = -1;
-			long lastServiceID = Long.MAX_VALUE;
+			final ServiceReference<?> winner;
 
-			ServiceReference<?>[] list = null;
-			try {
-				list = getServiceReferences(clazz, null, true);
-			} catch (final InvalidSyntaxException e) {
-			}
+			if (clazz != null && serviceFindHooks.isEmpty()) {
+				// fast path: the head of the sorted snapshot
+				winner = serviceRegistry.getBest(clazz);
+			} else {
+				ServiceReference<?>[] list = null;
+				try {
+					list = getServiceReferences(clazz, null, true);
+				} catch (final InvalidSyntaxException e) {
+				}
 
-			if (list == null) {
-				return null;
+				// find hooks can only remove references, so the order of
+				// the registry is preserved
+				winner = list == null ? null : list[0];
 			}
 
-			final ServiceReference<?>[] candidates = list;
-
-			for (int i = 0; i < candidates.length; i++) {
-				final Integer rankProp = (Integer) candidates[i]
-						.getProperty(Constants.SERVICE_RANKING);
-
-				final int ranking = rankProp != null ? rankProp.intValue() : 0;
-				final long serviceID = ((Long) candidates[i]
-						.getProperty(Constants.SERVICE_ID)).longValue();
-
-				if (ranking > maxRanking || ranking == maxRanking
-						&& serviceID < lastServiceID) {
-					winner = candidates[i];
-					maxRanking = ranking;
-					lastServiceID = serviceID;
-				}
-			}
 			if (LOG_ENABLED && DEBUG_SERVICES) {
 				logger.log(LogService.LOG_INFO, "Framework: REQUESTED SERVICE "
 						+ clazz);
@@ -4628,10 +5761,10 @@ public final class Concierge extends AbstractBundle implements Framework,
 				final String clazz = clazzes[counter];
 
 				isHook = checkHook(clazz, sref, true);
-
-				serviceRegistry.insert(clazz, sref);
 			}
 
+			serviceRegistry.register(sref);
+
 			if (LOG_ENABLED && DEBUG_SERVICES) {
 				logger.log(LogService.LOG_INFO,
 						"Framework: REGISTERED SERVICE " + clazzes[0]);
@@ -4670,9 +5803,7 @@ public final class Concierge extends AbstractBundle implements Framework,
 					try {
 						informListenerHooks(
 								Collections.singletonList(hookRef),
-								serviceListeners
-										.toArray(new ServiceListenerEntry[serviceListeners
-												.size()]), true);
+								serviceListeners.getAll(), true);
 					} catch (final Throwable t) {
 						notifyFrameworkListeners(FrameworkEvent.ERROR,
 								sref.getBundle(), t);
@@ -4846,6 +5977,17 @@ public final class Concierge extends AbstractBundle implements Framework,
 		 */
 		final Filter filter;
 
+		/**
+		 * the object classes the filter requires, or <code>null</code> if
+		 * the listener is not indexed.
+		 */
+		final String[] objectClasses;
+
+		/**
+		 * the position in the registration order.
+		 */
+		long seq;
+
 		boolean removed;
 
 		/**
@@ -4866,8 +6008,14 @@ public final class Concierge extends AbstractBundle implements Framework,
 			// this.filter = filter == null ? null : FrameworkUtil
 			// .createFilter(filter);
 			this.removed = false;
-			this.filter = filter == null ? null : RFC1960Filter
-					.fromString(filter);
+			this.filter = filter == null ? null : RFC1960Filter.CACHE
+					.get(filter);
+			final Set<String> values = this.filter == null
+					|| listener instanceof UnfilteredServiceListener ? null
+					: RFC1960Filter.getEqualityValues(this.filter,
+							Constants.OBJECTCLASS);
+			this.objectClasses = values == null ? null : values
+					.toArray(new String[values.size()]);
 		}
 
 		/**
@@ -4925,27 +6073,48 @@ public final class Concierge extends AbstractBundle implements Framework,
 		return SECURITY_ENABLED;
 	}
 
+	/**
+	 * The registry of the published capabilities. Besides the capabilities
+	 * of each namespace, it keeps an inverted index from the string values of
+	 * all attributes to the capabilities, which narrows the candidates of a
+	 * requirement before its filter is evaluated. The package capabilities of
+	 * each package name are kept in VERSION_ORDER, so that version ranges are
+	 * looked up by binary search.
+	 */
 	static class CapabilityRegistry {
 
 		// namespace -> list of capability
 		private final MultiMap<String, Capability> capabilities = new MultiMap<String, Capability>();
 
-		// namespace -> value (of canonical attribute) -> list of capability
-		private final HashMap<String, MultiMap<String, Capability>> defaultAttributeIndex = new HashMap<String, MultiMap<String, Capability>>();
+		// namespace -> attribute key (lower case) -> index
+		private final HashMap<String, HashMap<String, AttributeIndex>> attributeIndex = new HashMap<String, HashMap<String, AttributeIndex>>();
+
+		// namespace -> candidate counts
+		private final HashMap<String, CandidateCount> candidateCounts = new HashMap<String, CandidateCount>();
 
 		void add(final Capability cap) {
 			final String namespace = cap.getNamespace();
 			capabilities.insert(namespace, cap);
 
-			final Object defaultAttribute = cap.getAttributes().get(namespace);
-			if (defaultAttribute instanceof String) {
-				MultiMap<String, Capability> attributeIndex = defaultAttributeIndex
-						.get(namespace);
-				if (attributeIndex == null) {
-					attributeIndex = new MultiMap<String, Capability>();
-					defaultAttributeIndex.put(namespace, attributeIndex);
+			HashMap<String, AttributeIndex> indices = attributeIndex
+					.get(namespace);
+			if (indices == null) {
+				indices = new HashMap<String, AttributeIndex>();
+				attributeIndex.put(namespace, indices);
+			}
+			for (final Map.Entry<String, Object> attr : cap.getAttributes()
+					.entrySet()) {
+				final String key = attr.getKey().toLowerCase();
+				AttributeIndex index = indices.get(key);
+				if (index == null) {
+					index = new AttributeIndex(
+							PackageNamespace.PACKAGE_NAMESPACE
+									.equals(namespace)
+									&& key.equals(namespace) ? VERSION_ORDER
+									: null);
+					indices.put(key, index);
 				}
-				attributeIndex.insert((String) defaultAttribute, cap);
+				index.add(attr.getValue(), cap);
 			}
 		}
 
@@ -4957,28 +6126,28 @@ public final class Concierge extends AbstractBundle implements Framework,
 
 		boolean remove(final Capability cap) {
 			final String namespace = cap.getNamespace();
-			capabilities.remove(namespace, cap);
-
-			final Object defaultAttribute = cap.getAttributes().get(namespace);
-
-			final MultiMap<String, Capability> attributeIndex = defaultAttributeIndex
-					.get(namespace);
-			if (attributeIndex == null) {
+			if (!capabilities.remove(namespace, cap)) {
+				// never added, e.g., the capabilities of a fragment
 				return false;
 			}
 
-			if (defaultAttribute != null && defaultAttribute instanceof String) {
-				final boolean success = attributeIndex.remove(defaultAttribute,
-						cap);
-				if (success) {
-					if (attributeIndex.isEmpty()) {
-						defaultAttributeIndex.remove(namespace);
-					}
+			final HashMap<String, AttributeIndex> indices = attributeIndex
+					.get(namespace);
+			if (indices == null) {
+				return true;
+			}
+			for (final Map.Entry<String, Object> attr : cap.getAttributes()
+					.entrySet()) {
+				final String key = attr.getKey().toLowerCase();
+				final AttributeIndex index = indices.get(key);
+				if (index != null && index.remove(attr.getValue(), cap)) {
+					indices.remove(key);
 				}
-				return success;
-			} else {
-				return false;
 			}
+			if (indices.isEmpty()) {
+				attributeIndex.remove(namespace);
+			}
+			return true;
 		}
 
 		void removeAll(final Resource res) {
@@ -4987,21 +6156,123 @@ public final class Concierge extends AbstractBundle implements Framework,
 			}
 		}
 
+		/**
+		 * get the capabilities of a namespace by the value of the namespace
+		 * attribute.
+		 * 
+		 * @param namespace
+		 *            the namespace.
+		 * @param value
+		 *            the value.
+		 * @return a copy of the list of capabilities.
+		 */
 		public List<Capability> getByValue(final String namespace,
 				final String value) {
-			final MultiMap<String, Capability> attributeIndex = defaultAttributeIndex
-					.get(namespace);
-			final List<Capability> result = attributeIndex.get(value);
-			return result == null ? Collections.<Capability> emptyList()
-					: new ArrayList<Capability>(result);
+			final List<Capability> result = getByKey(namespace, value);
+			return result.isEmpty() ? result : new ArrayList<Capability>(
+					result);
 		}
 
 		public List<Capability> getByKey(final String namespace,
 				final String value) {
-			final MultiMap<String, Capability> caps = defaultAttributeIndex
+			final List<Capability> result = getByAttribute(namespace,
+					namespace, value);
+			return result == null ? Collections.<Capability> emptyList()
+					: result;
+		}
+
+		/**
+		 * get the capabilities of a namespace that have an attribute with a
+		 * given string value or a list of strings that contains the value.
+		 * 
+		 * @param namespace
+		 *            the namespace.
+		 * @param key
+		 *            the attribute key, compared case insensitive.
+		 * @param value
+		 *            the value.
+		 * @return the list of capabilities, not to be modified, or
+		 *         <code>null</code> if some capabilities of the namespace have
+		 *         a value for this attribute that is not indexed.
+		 */
+		List<Capability> getByAttribute(final String namespace,
+				final String key, final String value) {
+			final HashMap<String, AttributeIndex> indices = attributeIndex
 					.get(namespace);
-			return caps == null ? Collections.<Capability> emptyList() : caps
-					.get(value);
+			final AttributeIndex index = indices == null ? null : indices
+					.get(key.toLowerCase());
+			if (index == null) {
+				return Collections.emptyList();
+			}
+			if (index.unindexed > 0) {
+				return null;
+			}
+			final List<Capability> result = index.values.get(value);
+			return result == null ? Collections.<Capability> emptyList()
+					: result;
+		}
+
+		/**
+		 * get the package capabilities of a package within a version range.
+		 * 
+		 * @param pkg
+		 *            the package name.
+		 * @param low
+		 *            the lower bound or <code>null</code>.
+		 * @param lowInclusive
+		 *            true if the lower bound is included.
+		 * @param high
+		 *            the upper bound or <code>null</code>.
+		 * @param highInclusive
+		 *            true if the upper bound is included.
+		 * @return the capabilities in VERSION_ORDER, not to be modified, or
+		 *         <code>null</code> if the package capabilities are not
+		 *         indexed.
+		 */
+		List<Capability> getPackages(final String pkg, final Version low,
+				final boolean lowInclusive, final Version high,
+				final boolean highInclusive) {
+			final List<Capability> all = getByAttribute(
+					PackageNamespace.PACKAGE_NAMESPACE,
+					PackageNamespace.PACKAGE_NAMESPACE, pkg);
+			if (all == null || all.isEmpty()) {
+				return all;
+			}
+			for (final Capability cap : all) {
+				final Object version = cap.getAttributes().get(
+						PackageNamespace.CAPABILITY_VERSION_ATTRIBUTE);
+				if (version != null && !(version instanceof Version)) {
+					// cannot be compared by the index
+					return all;
+				}
+			}
+			// the list is sorted by descending version
+			final int start = high == null ? 0 : search(all, high,
+					!highInclusive);
+			final int end = low == null ? all.size() : search(all, low,
+					lowInclusive);
+			return start < end ? all.subList(start, end) : Collections
+					.<Capability> emptyList();
+		}
+
+		/**
+		 * find the first capability of a list in VERSION_ORDER whose version
+		 * is lower than (or equal to, if inclusive is false) a version.
+		 */
+		private static int search(final List<Capability> list,
+				final Version version, final boolean inclusive) {
+			int low = 0;
+			int high = list.size();
+			while (low < high) {
+				final int mid = (low + high) >>> 1;
+				final int cmp = getVersion(list.get(mid)).compareTo(version);
+				if (cmp > 0 || cmp == 0 && inclusive) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low;
 		}
 
 		public List<Capability> getAll(final String namespace) {
@@ -5010,49 +6281,970 @@ public final class Concierge extends AbstractBundle implements Framework,
 					: new ArrayList<Capability>(result);
 		}
 
+		/**
+		 * get the capabilities of a namespace that are contained in a set, in
+		 * the order in which they have been added.
+		 * 
+		 * @param namespace
+		 *            the namespace.
+		 * @param subset
+		 *            the set.
+		 * @return the list of capabilities.
+		 */
+		List<Capability> getAll(final String namespace,
+				final Set<Capability> subset) {
+			final List<Capability> all = capabilities.get(namespace);
+			if (all == null) {
+				return Collections.emptyList();
+			}
+			final ArrayList<Capability> result = new ArrayList<Capability>(
+					subset.size());
+			for (final Capability cap : all) {
+				if (subset.contains(cap)) {
+					result.add(cap);
+				}
+			}
+			return result;
+		}
+
+		/**
+		 * count the candidates and the matches of a lookup.
+		 * 
+		 * @param namespace
+		 *            the namespace of the requirement.
+		 * @param candidates
+		 *            the number of candidates the filter was evaluated on.
+		 * @param matches
+		 *            the number of matching capabilities.
+		 */
+		synchronized void countCandidates(final String namespace,
+				final int candidates, final int matches) {
+			CandidateCount count = candidateCounts.get(namespace);
+			if (count == null) {
+				count = new CandidateCount();
+				candidateCounts.put(namespace, count);
+			}
+			count.lookups++;
+			count.candidates += candidates;
+			count.matches += matches;
+		}
+
+		/**
+		 * get the candidate counts of the lookups so far.
+		 * 
+		 * @return namespace -> counts.
+		 */
+		synchronized Map<String, CandidateCount> getCandidateCounts() {
+			final HashMap<String, CandidateCount> result = new HashMap<String, CandidateCount>();
+			for (final Map.Entry<String, CandidateCount> entry : candidateCounts
+					.entrySet()) {
+				result.put(entry.getKey(), entry.getValue().copy());
+			}
+			return result;
+		}
+
 		@Override
 		public String toString() {
 			return capabilities.toString();
 		}
 
-	}
+		/**
+		 * the index of the values of one attribute.
+		 */
+		private static final class AttributeIndex {
 
-	boolean hasWeavingHooks() {
-		return !weavingHooks.isEmpty();
-	}
+			// value -> list of capability
+			final HashMap<String, List<Capability>> values = new HashMap<String, List<Capability>>();
 
-	void callWeavingHooks(final WovenClassImpl wovenClass) {
-		Collections.sort(weavingHooks, Collections.reverseOrder());
+			// the number of capabilities with a value that is not indexed
+			int unindexed;
 
-		for (final ServiceReferenceImpl<WeavingHook> sref : weavingHooks) {
-			final WeavingHook hook = sref.getService(this);
+			// the number of capabilities with the attribute
+			int size;
 
-			try {
-				hook.weave(wovenClass);
-			} catch (final Throwable t) {
-				if (!(t instanceof WeavingException)) {
-					// blacklist the hook
-					weavingHooks.remove(sref);
+			// the order of the capabilities of each value or null
+			private final Comparator<Capability> order;
+
+			AttributeIndex(final Comparator<Capability> order) {
+				this.order = order;
+			}
+
+			void add(final Object value, final Capability cap) {
+				size++;
+				if (value instanceof String) {
+					insert((String) value, cap);
+				} else if (value instanceof String[]) {
+					final String[] array = (String[]) value;
+					for (int i = 0; i < array.length; i++) {
+						insert(array[i], cap);
+					}
+				} else if (isStringList(value)) {
+					for (final Object element : (List<?>) value) {
+						insert((String) element, cap);
+					}
+				} else {
+					unindexed++;
 				}
+			}
 
-				// framework event
-				notifyFrameworkListeners(FrameworkEvent.ERROR, sref.bundle, t);
+			/**
+			 * @return true if the index has become empty.
+			 */
+			boolean remove(final Object value, final Capability cap) {
+				size--;
+				if (value instanceof String) {
+					delete((String) value, cap);
+				} else if (value instanceof String[]) {
+					final String[] array = (String[]) value;
+					for (int i = 0; i < array.length; i++) {
+						delete(array[i], cap);
+					}
+				} else if (isStringList(value)) {
+					for (final Object element : (List<?>) value) {
+						delete((String) element, cap);
+					}
+				} else {
+					unindexed--;
+				}
+				return size == 0;
+			}
 
-				// mark as complete
-				wovenClass.setComplete();
+			private void insert(final String value, final Capability cap) {
+				List<Capability> list = values.get(value);
+				if (list == null) {
+					list = new ArrayList<Capability>(1);
+					values.put(value, list);
+				}
+				if (list.contains(cap)) {
+					return;
+				}
+				if (order == null) {
+					list.add(cap);
+				} else {
+					// insert after the capabilities that are equal in order
+					int pos = list.size();
+					while (pos > 0 && order.compare(list.get(pos - 1), cap) > 0) {
+						pos--;
+					}
+					list.add(pos, cap);
+				}
+			}
 
-				final ClassFormatError err = new ClassFormatError(
-						"Error while invoking weaving hook");
-				err.initCause(t);
-				throw err;
-			} finally {
-				sref.ungetService(this);
+			private void delete(final String value, final Capability cap) {
+				final List<Capability> list = values.get(value);
+				if (list != null && list.remove(cap) && list.isEmpty()) {
+					values.remove(value);
+				}
 			}
-		}
-		wovenClass.setComplete();
-	}
 
-	/**
+			private static boolean isStringList(final Object value) {
+				if (!(value instanceof List)) {
+					return false;
+				}
+				for (final Object element : (List<?>) value) {
+					if (!(element instanceof String)) {
+						return false;
+					}
+				}
+				return true;
+			}
+
+		}
+
+		/**
+		 * the number of lookups in a namespace, the candidates the filters
+		 * were evaluated on, and the matches.
+		 */
+		static final class CandidateCount {
+
+			long lookups;
+
+			long candidates;
+
+			long matches;
+
+			CandidateCount copy() {
+				final CandidateCount copy = new CandidateCount();
+				copy.lookups = lookups;
+				copy.candidates = candidates;
+				copy.matches = matches;
+				return copy;
+			}
+
+			@Override
+			public String toString() {
+				return "lookups=" + lookups + ", candidates=" + candidates
+						+ ", matches=" + matches;
+			}
+
+		}
+
+	}
+
+	/**
+	 * The service registry. Mutations are serialized on the registry and
+	 * publish a new immutable snapshot, lookups read the current snapshot
+	 * without locking and without copying. The references of each class are
+	 * kept sorted by ranking (highest first) and service id (lowest first), so
+	 * the best match is always the head of the array.
+	 */
+	static final class ServiceRegistry {
+
+		/**
+		 * the order of service references, best match first.
+		 */
+		static final Comparator<ServiceReference<?>> RANKING_ORDER = Collections
+				.reverseOrder();
+
+		private static final ServiceReferenceImpl<?>[] EMPTY = new ServiceReferenceImpl<?>[0];
+
+		private final AtomicReference<Snapshot> snapshot = new AtomicReference<Snapshot>(
+				new Snapshot(new HashMap<String, ServiceReferenceImpl<?>[]>(0),
+						EMPTY));
+
+		/**
+		 * an immutable state of the registry.
+		 */
+		private static final class Snapshot {
+
+			// class name -> sorted references
+			final Map<String, ServiceReferenceImpl<?>[]> byClass;
+
+			// all references, sorted
+			final ServiceReferenceImpl<?>[] all;
+
+			Snapshot(final Map<String, ServiceReferenceImpl<?>[]> byClass,
+					final ServiceReferenceImpl<?>[] all) {
+				this.byClass = byClass;
+				this.all = all;
+			}
+		}
+
+		/**
+		 * register a service reference under all of its object classes.
+		 *
+		 * @param sref
+		 *            the service reference.
+		 */
+		synchronized void register(final ServiceReferenceImpl<?> sref) {
+			final Snapshot current = snapshot.get();
+			final Map<String, ServiceReferenceImpl<?>[]> byClass = new HashMap<String, ServiceReferenceImpl<?>[]>(
+					current.byClass);
+			final String[] clazzes = (String[]) sref.properties
+					.get(Constants.OBJECTCLASS);
+			for (int i = 0; i < clazzes.length; i++) {
+				final ServiceReferenceImpl<?>[] refs = byClass.get(clazzes[i]);
+				byClass.put(clazzes[i], insert(refs == null ? EMPTY : refs, sref));
+			}
+			snapshot.set(new Snapshot(byClass, insert(current.all, sref)));
+		}
+
+		/**
+		 * remove a service reference from the registry.
+		 *
+		 * @param sref
+		 *            the service reference.
+		 */
+		synchronized void unregister(final ServiceReferenceImpl<?> sref) {
+			final Snapshot current = snapshot.get();
+			final Map<String, ServiceReferenceImpl<?>[]> byClass = new HashMap<String, ServiceReferenceImpl<?>[]>(
+					current.byClass);
+			final String[] clazzes = (String[]) sref.properties
+					.get(Constants.OBJECTCLASS);
+			for (int i = 0; i < clazzes.length; i++) {
+				final ServiceReferenceImpl<?>[] refs = byClass.get(clazzes[i]);
+				if (refs == null) {
+					continue;
+				}
+				final ServiceReferenceImpl<?>[] newRefs = remove(refs, sref);
+				if (newRefs.length == 0) {
+					byClass.remove(clazzes[i]);
+				} else {
+					byClass.put(clazzes[i], newRefs);
+				}
+			}
+			snapshot.set(new Snapshot(byClass, remove(current.all, sref)));
+		}
+
+		/**
+		 * restore the order after the ranking of a service has been modified.
+		 *
+		 * @param sref
+		 *            the modified service reference.
+		 */
+		synchronized void modified(final ServiceReferenceImpl<?> sref) {
+			final Snapshot current = snapshot.get();
+			final Map<String, ServiceReferenceImpl<?>[]> byClass = new HashMap<String, ServiceReferenceImpl<?>[]>(
+					current.byClass);
+			final String[] clazzes = (String[]) sref.properties
+					.get(Constants.OBJECTCLASS);
+			for (int i = 0; i < clazzes.length; i++) {
+				final ServiceReferenceImpl<?>[] refs = byClass.get(clazzes[i]);
+				byClass.put(clazzes[i], insert(
+						remove(refs == null ? EMPTY : refs, sref), sref));
+			}
+			// publish only when the new state is complete
+			snapshot.set(new Snapshot(byClass, insert(
+					remove(current.all, sref), sref)));
+		}
+
+		/**
+		 * get the references registered under a class.
+		 *
+		 * @param clazz
+		 *            the class name.
+		 * @return the sorted references, must not be modified by the caller.
+		 */
+		ServiceReferenceImpl<?>[] lookup(final String clazz) {
+			final ServiceReferenceImpl<?>[] refs = snapshot.get().byClass
+					.get(clazz);
+			return refs == null ? EMPTY : refs;
+		}
+
+		/**
+		 * get the best reference registered under a class.
+		 *
+		 * @param clazz
+		 *            the class name.
+		 * @return the reference with the highest ranking or <code>null</code>.
+		 */
+		ServiceReferenceImpl<?> getBest(final String clazz) {
+			final ServiceReferenceImpl<?>[] refs = snapshot.get().byClass
+					.get(clazz);
+			return refs == null ? null : refs[0];
+		}
+
+		/**
+		 * get all references.
+		 *
+		 * @return the sorted references, must not be modified by the caller.
+		 */
+		ServiceReferenceImpl<?>[] getAll() {
+			return snapshot.get().all;
+		}
+
+		synchronized void clear() {
+			snapshot.set(new Snapshot(
+					new HashMap<String, ServiceReferenceImpl<?>[]>(0), EMPTY));
+		}
+
+		private static ServiceReferenceImpl<?>[] insert(
+				final ServiceReferenceImpl<?>[] refs,
+				final ServiceReferenceImpl<?> sref) {
+			int pos = Arrays.binarySearch(refs, sref, RANKING_ORDER);
+			if (pos >= 0) {
+				// already registered
+				return refs;
+			}
+			pos = -pos - 1;
+			final ServiceReferenceImpl<?>[] result = new ServiceReferenceImpl<?>[refs.length + 1];
+			System.arraycopy(refs, 0, result, 0, pos);
+			result[pos] = sref;
+			System.arraycopy(refs, pos, result, pos + 1, refs.length - pos);
+			return result;
+		}
+
+		private static ServiceReferenceImpl<?>[] remove(
+				final ServiceReferenceImpl<?>[] refs,
+				final ServiceReferenceImpl<?> sref) {
+			// identity scan, the ranking might have changed in the meantime
+			for (int i = 0; i < refs.length; i++) {
+				if (refs[i] == sref) {
+					final ServiceReferenceImpl<?>[] result = new ServiceReferenceImpl<?>[refs.length - 1];
+					System.arraycopy(refs, 0, result, 0, i);
+					System.arraycopy(refs, i + 1, result, i, refs.length - i
+							- 1);
+					return result;
+				}
+			}
+			return refs;
+		}
+
+		@Override
+		public String toString() {
+			return "ServiceRegistry " + snapshot.get().byClass.keySet();
+		}
+
+	}
+
+	/**
+	 * The registered service listeners, indexed by the object classes their
+	 * filters require. A listener whose filter contains an equality clause on
+	 * objectClass that must hold for any match is only visited for events of
+	 * services registered under one of these classes. All other listeners
+	 * are unindexed and visited for every event. Mutations publish a new
+	 * immutable snapshot, dispatch reads it without locking.
+	 */
+	static final class ServiceListenerIndex {
+
+		private static final ServiceListenerEntry[] EMPTY = new ServiceListenerEntry[0];
+
+		/**
+		 * the order of registration.
+		 */
+		private static final Comparator<ServiceListenerEntry> REGISTRATION_ORDER = new Comparator<ServiceListenerEntry>() {
+			public int compare(final ServiceListenerEntry e1,
+					final ServiceListenerEntry e2) {
+				return e1.seq < e2.seq ? -1 : e1.seq == e2.seq ? 0 : 1;
+			}
+		};
+
+		private final AtomicReference<Snapshot> snapshot = new AtomicReference<Snapshot>(
+				new Snapshot(new HashMap<String, ServiceListenerEntry[]>(0),
+						EMPTY, EMPTY));
+
+		private long nextSeq;
+
+		// statistics
+		private final AtomicLong events = new AtomicLong();
+
+		private final AtomicLong visited = new AtomicLong();
+
+		private final AtomicLong registered = new AtomicLong();
+
+		/**
+		 * an immutable state of the index. All arrays are in registration
+		 * order.
+		 */
+		private static final class Snapshot {
+
+			// object class -> indexed listeners
+			final Map<String, ServiceListenerEntry[]> byClass;
+
+			// listeners that have to be visited for every event
+			final ServiceListenerEntry[] unindexed;
+
+			// all listeners
+			final ServiceListenerEntry[] all;
+
+			Snapshot(final Map<String, ServiceListenerEntry[]> byClass,
+					final ServiceListenerEntry[] unindexed,
+					final ServiceListenerEntry[] all) {
+				this.byClass = byClass;
+				this.unindexed = unindexed;
+				this.all = all;
+			}
+		}
+
+		/**
+		 * add a listener.
+		 * 
+		 * @param entry
+		 *            the listener entry.
+		 */
+		synchronized void add(final ServiceListenerEntry entry) {
+			final Snapshot current = snapshot.get();
+			entry.seq = nextSeq++;
+			if (entry.objectClasses == null) {
+				snapshot.set(new Snapshot(current.byClass, append(
+						current.unindexed, entry), append(current.all, entry)));
+				return;
+			}
+			final Map<String, ServiceListenerEntry[]> byClass = new HashMap<String, ServiceListenerEntry[]>(
+					current.byClass);
+			for (int i = 0; i < entry.objectClasses.length; i++) {
+				final ServiceListenerEntry[] entries = byClass
+						.get(entry.objectClasses[i]);
+				byClass.put(entry.objectClasses[i],
+						append(entries == null ? EMPTY : entries, entry));
+			}
+			snapshot.set(new Snapshot(byClass, current.unindexed, append(
+					current.all, entry)));
+		}
+
+		/**
+		 * remove a listener.
+		 * 
+		 * @param entry
+		 *            the listener entry.
+		 */
+		synchronized void remove(final ServiceListenerEntry entry) {
+			final Snapshot current = snapshot.get();
+			if (entry.objectClasses == null) {
+				snapshot.set(new Snapshot(current.byClass, remove(
+						current.unindexed, entry), remove(current.all, entry)));
+				return;
+			}
+			final Map<String, ServiceListenerEntry[]> byClass = new HashMap<String, ServiceListenerEntry[]>(
+					current.byClass);
+			for (int i = 0; i < entry.objectClasses.length; i++) {
+				final ServiceListenerEntry[] entries = byClass
+						.get(entry.objectClasses[i]);
+				if (entries == null) {
+					continue;
+				}
+				final ServiceListenerEntry[] newEntries = remove(entries, entry);
+				if (newEntries.length == 0) {
+					byClass.remove(entry.objectClasses[i]);
+				} else {
+					byClass.put(entry.objectClasses[i], newEntries);
+				}
+			}
+			snapshot.set(new Snapshot(byClass, current.unindexed, remove(
+					current.all, entry)));
+		}
+
+		/**
+		 * remove listeners.
+		 * 
+		 * @param entries
+		 *            the listener entries.
+		 */
+		synchronized void removeAll(final Collection<ServiceListenerEntry> entries) {
+			for (final ServiceListenerEntry entry : entries) {
+				remove(entry);
+			}
+		}
+
+		/**
+		 * get the listeners that could match an event of a service.
+		 * 
+		 * @param clazzes
+		 *            the object classes of the service.
+		 * @return the listeners in registration order, must not be modified by
+		 *         the caller.
+		 */
+		ServiceListenerEntry[] getCandidates(final String[] clazzes) {
+			final Snapshot current = snapshot.get();
+			final ServiceListenerEntry[] result;
+			if (current.byClass.isEmpty()) {
+				result = current.unindexed;
+			} else if (clazzes.length == 1 && current.unindexed.length == 0) {
+				final ServiceListenerEntry[] entries = current.byClass
+						.get(clazzes[0]);
+				result = entries == null ? EMPTY : entries;
+			} else {
+				final ArrayList<ServiceListenerEntry> list = new ArrayList<ServiceListenerEntry>(
+						Arrays.asList(current.unindexed));
+				int buckets = list.isEmpty() ? 0 : 1;
+				for (int i = 0; i < clazzes.length; i++) {
+					final ServiceListenerEntry[] entries = current.byClass
+							.get(clazzes[i]);
+					if (entries != null) {
+						list.addAll(Arrays.asList(entries));
+						buckets++;
+					}
+				}
+				if (buckets > 1) {
+					Collections.sort(list, REGISTRATION_ORDER);
+					// a listener can be indexed under more than one class
+					for (int i = list.size() - 1; i > 0; i--) {
+						if (list.get(i) == list.get(i - 1)) {
+							list.remove(i);
+						}
+					}
+				}
+				result = list.toArray(new ServiceListenerEntry[list.size()]);
+			}
+			events.incrementAndGet();
+			visited.addAndGet(result.length);
+			registered.addAndGet(current.all.length);
+			return result;
+		}
+
+		/**
+		 * get all listeners.
+		 * 
+		 * @return the listeners in registration order, must not be modified by
+		 *         the caller.
+		 */
+		ServiceListenerEntry[] getAll() {
+			return snapshot.get().all;
+		}
+
+		boolean isEmpty() {
+			return snapshot.get().all.length == 0;
+		}
+
+		/**
+		 * get the dispatch statistics.
+		 * 
+		 * @return the number of events, the number of listeners visited, and
+		 *         the number of listeners registered at the time of the
+		 *         events, summed over all events.
+		 */
+		long[] getStatistics() {
+			return new long[] { events.get(), visited.get(), registered.get() };
+		}
+
+		private static ServiceListenerEntry[] append(
+				final ServiceListenerEntry[] entries,
+				final ServiceListenerEntry entry) {
+			final ServiceListenerEntry[] result = new ServiceListenerEntry[entries.length + 1];
+			System.arraycopy(entries, 0, result, 0, entries.length);
+			result[entries.length] = entry;
+			return result;
+		}
+
+		private static ServiceListenerEntry[] remove(
+				final ServiceListenerEntry[] entries,
+				final ServiceListenerEntry entry) {
+			for (int i = 0; i < entries.length; i++) {
+				if (entries[i] == entry) {
+					final ServiceListenerEntry[] result = new ServiceListenerEntry[entries.length - 1];
+					System.arraycopy(entries, 0, result, 0, i);
+					System.arraycopy(entries, i + 1, result, i, entries.length
+							- i - 1);
+					return result;
+				}
+			}
+			return entries;
+		}
+
+		@Override
+		public String toString() {
+			final long[] stats = getStatistics();
+			return "events=" + stats[0] + ", visited=" + stats[1]
+					+ ", registered=" + stats[2];
+		}
+
+	}
+
+	/**
+	 * The delivery of asynchronous events. Every listener has its own queue,
+	 * so events reach a listener in the order in which they were fired, while
+	 * different listeners are served by a bounded pool of daemon threads. The
+	 * number of queued events is bounded as well, a thread firing events
+	 * waits for a limited time when the limit is reached. With no threads
+	 * configured, or after the framework has been stopped, events are
+	 * delivered on the calling thread.
+	 */
+	static final class EventDispatcher {
+
+		/**
+		 * the maximum number of events delivered from one queue before the
+		 * thread is handed to the next listener.
+		 */
+		private static final int BATCH = 64;
+
+		/**
+		 * the maximum time a thread firing an event waits for a free place
+		 * in the queue, in milliseconds.
+		 */
+		private static final long FULL_WAIT = 1000;
+
+		/**
+		 * the number of delivery threads.
+		 */
+		private final int threads;
+
+		/**
+		 * permits for the queued events.
+		 */
+		private final Semaphore permits;
+
+		/**
+		 * listener -> pending events. A queue is present as long as it is
+		 * scheduled for delivery.
+		 */
+		private final Map<Object, ListenerQueue> queues = new IdentityHashMap<Object, ListenerQueue>();
+
+		private ThreadPoolExecutor executor;
+
+		/**
+		 * false after the shutdown until the dispatcher is opened again.
+		 */
+		private volatile boolean open = true;
+
+		// statistics
+		private final AtomicInteger depth = new AtomicInteger();
+
+		private final AtomicInteger maxDepth = new AtomicInteger();
+
+		private final AtomicLong delivered = new AtomicLong();
+
+		private final AtomicLong totalLatency = new AtomicLong();
+
+		private final AtomicLong maxLatency = new AtomicLong();
+
+		/**
+		 * create a new dispatcher.
+		 * 
+		 * @param threads
+		 *            the number of delivery threads, 0 for synchronous
+		 *            delivery.
+		 * @param capacity
+		 *            the maximum number of queued events.
+		 */
+		EventDispatcher(final int threads, final int capacity) {
+			this.threads = threads;
+			this.permits = new Semaphore(Math.max(capacity, 1));
+		}
+
+		/**
+		 * deliver an event to a listener.
+		 * 
+		 * @param listener
+		 *            the listener.
+		 * @param delivery
+		 *            the code that delivers the event.
+		 */
+		void deliver(final Object listener, final Runnable delivery) {
+			if (threads <= 0 || !open) {
+				delivery.run();
+				return;
+			}
+
+			// a listener firing events must not wait for its own delivery
+			// thread, and no thread waits indefinitely since the listener
+			// might wait for a lock of the firing thread
+			boolean permit = permits.tryAcquire();
+			if (!permit && !(Thread.currentThread() instanceof DeliveryThread)) {
+				try {
+					permit = permits.tryAcquire(FULL_WAIT,
+							TimeUnit.MILLISECONDS);
+				} catch (final InterruptedException ie) {
+					Thread.currentThread().interrupt();
+				}
+			}
+
+			final QueuedEvent event = new QueuedEvent(delivery,
+					System.nanoTime(), permit);
+
+			synchronized (this) {
+				if (open) {
+					// the events of a listener with pending events are
+					// queued in any case to keep their order
+					ListenerQueue queue = queues.get(listener);
+					if (queue == null && permit) {
+						queue = new ListenerQueue(listener);
+						queues.put(listener, queue);
+						getExecutor().execute(queue);
+					}
+					if (queue != null) {
+						final int d = depth.incrementAndGet();
+						int max;
+						while (d > (max = maxDepth.get())
+								&& !maxDepth.compareAndSet(max, d)) {
+							// retry
+						}
+						queue.events.add(event);
+						return;
+					}
+				}
+			}
+
+			// the queue is still full or the dispatcher has been shut down
+			if (permit) {
+				permits.release();
+			}
+			delivery.run();
+		}
+
+		/**
+		 * queue the events again after a shutdown, the delivery threads are
+		 * started on demand.
+		 */
+		synchronized void open() {
+			open = true;
+		}
+
+		/**
+		 * get the delivery threads. They are started on demand and live until
+		 * the dispatcher is shut down.
+		 */
+		private ThreadPoolExecutor getExecutor() {
+			if (executor == null) {
+				executor = new ThreadPoolExecutor(threads, threads, 0L,
+						TimeUnit.MILLISECONDS,
+						new LinkedBlockingQueue<Runnable>(),
+						new ThreadFactory() {
+							public Thread newThread(final Runnable r) {
+								return new DeliveryThread(r);
+							}
+						});
+			}
+			return executor;
+		}
+
+		/**
+		 * deliver the pending events and stop the delivery threads. Events
+		 * fired afterwards are delivered on the calling thread until the
+		 * dispatcher is opened again.
+		 * 
+		 * @param timeout
+		 *            the maximum time to wait for the pending events, in
+		 *            milliseconds.
+		 */
+		void shutdown(final long timeout) {
+			final ThreadPoolExecutor ex;
+			synchronized (this) {
+				open = false;
+				ex = executor;
+				executor = null;
+			}
+			if (ex == null) {
+				return;
+			}
+			ex.shutdown();
+			if (Thread.currentThread() instanceof DeliveryThread) {
+				return;
+			}
+			try {
+				ex.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+			} catch (final InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		/**
+		 * get the number of events currently queued.
+		 * 
+		 * @return the queue depth.
+		 */
+		int getDepth() {
+			return depth.get();
+		}
+
+		/**
+		 * get the delivery statistics.
+		 * 
+		 * @return the number of delivered events, the maximum queue depth,
+		 *         and the average and maximum time between firing and
+		 *         delivery in nanoseconds.
+		 */
+		long[] getStatistics() {
+			final long count = delivered.get();
+			return new long[] { count, maxDepth.get(),
+					count == 0 ? 0 : totalLatency.get() / count,
+					maxLatency.get() };
+		}
+
+		@Override
+		public String toString() {
+			final long[] stats = getStatistics();
+			return "delivered=" + stats[0] + ", queued=" + depth.get()
+					+ ", maxQueued=" + stats[1] + ", avgLatency="
+					+ stats[2] / 1000 + "us, maxLatency=" + stats[3] / 1000
+					+ "us";
+		}
+
+		/**
+		 * an event waiting for delivery.
+		 */
+		private static final class QueuedEvent {
+
+			final Runnable delivery;
+
+			final long fired;
+
+			final boolean permit;
+
+			QueuedEvent(final Runnable delivery, final long fired,
+					final boolean permit) {
+				this.delivery = delivery;
+				this.fired = fired;
+				this.permit = permit;
+			}
+		}
+
+		/**
+		 * the pending events of a listener.
+		 */
+		private final class ListenerQueue implements Runnable {
+
+			final Object listener;
+
+			final LinkedList<QueuedEvent> events = new LinkedList<QueuedEvent>();
+
+			ListenerQueue(final Object listener) {
+				this.listener = listener;
+			}
+
+			public void run() {
+				for (int i = 0;; i++) {
+					final QueuedEvent event;
+					synchronized (EventDispatcher.this) {
+						event = events.poll();
+						if (event == null) {
+							queues.remove(listener);
+							return;
+						}
+						if (i == BATCH && executor != null) {
+							// give the other listeners a chance
+							events.addFirst(event);
+							try {
+								executor.execute(this);
+								return;
+							} catch (final RejectedExecutionException ree) {
+								// shutting down, continue on this thread
+								events.removeFirst();
+							}
+						}
+					}
+
+					final long latency = System.nanoTime() - event.fired;
+					totalLatency.addAndGet(latency);
+					long max;
+					while (latency > (max = maxLatency.get())
+							&& !maxLatency.compareAndSet(max, latency)) {
+						// retry
+					}
+
+					try {
+						event.delivery.run();
+					} catch (final Throwable t) {
+						t.printStackTrace();
+					} finally {
+						delivered.incrementAndGet();
+						depth.decrementAndGet();
+						if (event.permit) {
+							permits.release();
+						}
+					}
+				}
+			}
+		}
+
+		/**
+		 * a thread delivering events.
+		 */
+		private static final class DeliveryThread extends Thread {
+
+			DeliveryThread(final Runnable r) {
+				super(r, "Concierge Event Delivery");
+				setDaemon(true);
+			}
+		}
+
+	}
+
+	boolean hasWeavingHooks() {
+		return !weavingHooks.isEmpty();
+	}
+
+	void callWeavingHooks(final WovenClassImpl wovenClass) {
+		Collections.sort(weavingHooks, Collections.reverseOrder());
+
+		for (final ServiceReferenceImpl<WeavingHook> sref : weavingHooks) {
+			final WeavingHook hook = sref.getService(this);
+
+			try {
+				hook.weave(wovenClass);
+			} catch (final Throwable t) {
+				if (!(t instanceof WeavingException)) {
+					// blacklist the hook
+					weavingHooks.remove(sref);
+				}
+
+				// framework event
+				notifyFrameworkListeners(FrameworkEvent.ERROR, sref.bundle, t);
+
+				// mark as complete
+				wovenClass.setComplete();
+
+				final ClassFormatError err = new ClassFormatError(
+						"Error while invoking weaving hook");
+				err.initCause(t);
+				throw err;
+			} finally {
+				sref.ungetService(this);
+			}
+		}
+		wovenClass.setComplete();
+	}
+
+	/**
 	 * @see org.osgi.framework.BundleActivator#start(org.osgi.framework.BundleContext)
 	 * @category BundleActivator
 	 */
@@ -5061,37 +7253,698 @@ public final class Concierge extends AbstractBundle implements Framework,
 	}
 
 	/**
-	 * @see org.osgi.framework.BundleActivator#stop(org.osgi.framework.BundleContext)
-	 * @category BundleActivator
+	 * @see org.osgi.framework.BundleActivator#stop(org.osgi.framework.BundleContext)
+	 * @category BundleActivator
+	 */
+	public void stop(final BundleContext context) throws Exception {
+
+	}
+
+	String[] getLibraryName(final String libname) {
+		if (libraryExtensions == null) {
+			return new String[] { System.mapLibraryName(libname) };
+		}
+		final String[] result = new String[libraryExtensions.length + 1];
+		result[0] = System.mapLibraryName(libname);
+		for (int i = 0; i < libraryExtensions.length; i++) {
+			result[i + 1] = libname + "." + libraryExtensions[i];
+		}
+		return result;
+	}
+
+	void execPermission(final File libfile) {
+		if (execPermission == null) {
+			return;
+		}
+		final String cmd = execPermissionPattern
+				.matcher(execPermission)
+				.replaceAll(Matcher.quoteReplacement(libfile.getAbsolutePath()));
+		try {
+			Runtime.getRuntime().exec(cmd).waitFor();
+		} catch (final Throwable t) {
+			t.printStackTrace();
+		}
+	}
+
+	/**
+	 * A bounded pool of open zip files. Opening a zip file parses its central
+	 * directory, so the jars embedded in the bundles are kept open between
+	 * lookups. When the pool is full, the least recently used file is closed
+	 * as soon as no stream reads from it anymore.
+	 */
+	static final class ZipFilePool {
+
+		/**
+		 * the maximum number of files kept open.
+		 */
+		private final int capacity;
+
+		/**
+		 * file -> handle, in access order.
+		 */
+		private final LinkedHashMap<File, Handle> handles = new LinkedHashMap<File, Handle>(
+				16, 0.75f, true);
+
+		/**
+		 * create a new pool.
+		 * 
+		 * @param capacity
+		 *            the maximum number of files kept open, 0 for opening
+		 *            the file for every lookup.
+		 */
+		ZipFilePool(final int capacity) {
+			this.capacity = capacity;
+		}
+
+		/**
+		 * get an open zip file. The handle has to be released when it is not
+		 * used anymore.
+		 * 
+		 * @param file
+		 *            the file.
+		 * @return the handle.
+		 * @throws IOException
+		 *             if the file cannot be opened.
+		 */
+		Handle acquire(final File file) throws IOException {
+			synchronized (this) {
+				final Handle handle = handles.get(file);
+				if (handle != null) {
+					handle.users++;
+					return handle;
+				}
+			}
+
+			// open the file outside of the lock
+			final Handle opened = new Handle(new ZipFile(file));
+			synchronized (this) {
+				final Handle handle = handles.get(file);
+				if (handle != null) {
+					// opened concurrently
+					close(opened);
+					handle.users++;
+					return handle;
+				}
+				opened.users++;
+				handles.put(file, opened);
+				final Iterator<Handle> iter = handles.values().iterator();
+				while (handles.size() > capacity) {
+					final Handle eldest = iter.next();
+					iter.remove();
+					evict(eldest);
+				}
+				return opened;
+			}
+		}
+
+		/**
+		 * release a handle.
+		 * 
+		 * @param handle
+		 *            the handle.
+		 */
+		synchronized void release(final Handle handle) {
+			handle.users--;
+			if (handle.users == 0 && handle.evicted) {
+				close(handle);
+			}
+		}
+
+		/**
+		 * get a stream that reads an entry and releases the handle when it is
+		 * closed.
+		 * 
+		 * @param handle
+		 *            the acquired handle.
+		 * @param entry
+		 *            the entry.
+		 * @return the stream.
+		 * @throws IOException
+		 */
+		InputStream getInputStream(final Handle handle, final ZipEntry entry)
+				throws IOException {
+			return new FilterInputStream(handle.zipFile.getInputStream(entry)) {
+				private boolean closed;
+
+				public void close() throws IOException {
+					try {
+						super.close();
+					} finally {
+						synchronized (this) {
+							if (closed) {
+								return;
+							}
+							closed = true;
+						}
+						release(handle);
+					}
+				}
+			};
+		}
+
+		/**
+		 * close a file when it is not used anymore.
+		 * 
+		 * @param file
+		 *            the file.
+		 */
+		synchronized void remove(final File file) {
+			final Handle handle = handles.remove(file);
+			if (handle != null) {
+				evict(handle);
+			}
+		}
+
+		/**
+		 * close all files when they are not used anymore.
+		 */
+		synchronized void clear() {
+			for (final Handle handle : handles.values()) {
+				evict(handle);
+			}
+			handles.clear();
+		}
+
+		/**
+		 * get the number of files in the pool.
+		 * 
+		 * @return the number of files.
+		 */
+		synchronized int size() {
+			return handles.size();
+		}
+
+		private void evict(final Handle handle) {
+			handle.evicted = true;
+			if (handle.users == 0) {
+				close(handle);
+			}
+		}
+
+		private static void close(final Handle handle) {
+			try {
+				handle.zipFile.close();
+			} catch (final IOException ioe) {
+				// ignore
+			}
+		}
+
+		/**
+		 * an open zip file of the pool.
+		 */
+		static final class Handle {
+
+			final ZipFile zipFile;
+
+			int users;
+
+			boolean evicted;
+
+			Handle(final ZipFile zipFile) {
+				this.zipFile = zipFile;
+			}
+
+		}
+
+	}
+
+
+	/**
+	 * The resources that failed to resolve, with their unresolved
+	 * requirements and the resources that provided candidates for them. A
+	 * failed resource is forgotten, and thereby passed to the resolver again,
+	 * when a capability is published that matches one of its unresolved
+	 * requirements or when one of its candidates is resolved, removed or
+	 * forgotten itself.
 	 */
-	public void stop(final BundleContext context) throws Exception {
+	static final class ResolutionGraph {
+
+		/**
+		 * failed resource -> its unresolved requirements and their candidates.
+		 */
+		private final HashMap<Resource, Failure> failed = new HashMap<Resource, Failure>();
+
+		/**
+		 * namespace -> the unresolved requirements of the failed resources.
+		 */
+		private final HashMap<String, Set<Requirement>> requirements = new HashMap<String, Set<Requirement>>();
+
+		/**
+		 * candidate resource -> the failed resources depending on it.
+		 */
+		private final HashMap<Resource, Set<Resource>> dependents = new HashMap<Resource, Set<Resource>>();
+
+		synchronized boolean isFailed(final Resource resource) {
+			return failed.containsKey(resource);
+		}
+
+		synchronized int size() {
+			return failed.size();
+		}
+
+		/**
+		 * record a resource that failed to resolve.
+		 * 
+		 * @param resource
+		 *            the resource.
+		 * @param unresolved
+		 *            its unresolved requirements.
+		 * @param candidates
+		 *            the resources providing candidates for the unresolved
+		 *            requirements.
+		 */
+		synchronized void fail(final Resource resource,
+				final List<Requirement> unresolved,
+				final Set<Resource> candidates) {
+			final Failure failure = new Failure(
+					new ArrayList<Requirement>(unresolved),
+					new ArrayList<Resource>(candidates));
+			failed.put(resource, failure);
+			for (final Requirement requirement : failure.requirements) {
+				Set<Requirement> reqs = requirements.get(requirement
+						.getNamespace());
+				if (reqs == null) {
+					reqs = new HashSet<Requirement>();
+					requirements.put(requirement.getNamespace(), reqs);
+				}
+				reqs.add(requirement);
+			}
+			for (final Resource candidate : failure.candidates) {
+				Set<Resource> deps = dependents.get(candidate);
+				if (deps == null) {
+					deps = new HashSet<Resource>();
+					dependents.put(candidate, deps);
+				}
+				deps.add(resource);
+			}
+		}
+
+		/**
+		 * forget a resource and, transitively, the failed resources depending
+		 * on it.
+		 * 
+		 * @param resource
+		 *            the resource.
+		 */
+		synchronized void forget(final Resource resource) {
+			final ArrayList<Resource> queue = new ArrayList<Resource>();
+			queue.add(resource);
+			while (!queue.isEmpty()) {
+				final Resource res = queue.remove(queue.size() - 1);
+				final Set<Resource> deps = dependents.remove(res);
+				if (deps != null) {
+					queue.addAll(deps);
+				}
+
+				final Failure failure = failed.remove(res);
+				if (failure == null) {
+					continue;
+				}
+				for (final Requirement requirement : failure.requirements) {
+					final Set<Requirement> reqs = requirements.get(requirement
+							.getNamespace());
+					if (reqs != null && reqs.remove(requirement)
+							&& reqs.isEmpty()) {
+						requirements.remove(requirement.getNamespace());
+					}
+				}
+				for (final Resource candidate : failure.candidates) {
+					final Set<Resource> others = dependents.get(candidate);
+					if (others != null && others.remove(res)
+							&& others.isEmpty()) {
+						dependents.remove(candidate);
+					}
+				}
+			}
+		}
+
+		/**
+		 * forget the failed resources with an unresolved requirement that a
+		 * new capability matches.
+		 * 
+		 * @param cap
+		 *            the capability.
+		 */
+		synchronized void publish(final Capability cap) {
+			final Set<Requirement> reqs = requirements.get(cap.getNamespace());
+			if (reqs == null) {
+				return;
+			}
+
+			final ArrayList<Resource> matched = new ArrayList<Resource>();
+			for (final Requirement requirement : reqs) {
+				if (matches(requirement, cap)) {
+					matched.add(requirement.getResource());
+				}
+			}
+			for (final Resource resource : matched) {
+				forget(resource);
+			}
+		}
+
+		private static final class Failure {
+
+			final List<Requirement> requirements;
+
+			final List<Resource> candidates;
+
+			Failure(final List<Requirement> requirements,
+					final List<Resource> candidates) {
+				this.requirements = requirements;
+				this.candidates = candidates;
+			}
+
+		}
 
 	}
 
-	String[] getLibraryName(final String libname) {
-		if (libraryExtensions == null) {
-			return new String[] { System.mapLibraryName(libname) };
+	/**
+	 * The package exports of the bundle wirings, by package name. The exports
+	 * of a package are kept in VERSION_ORDER and the array is replaced on
+	 * every change, so that lookups do not lock and only touch the exports of
+	 * the requested package.
+	 */
+	static final class PackageExports implements ExportIndex {
+
+		private static final Export[] NO_EXPORTS = new Export[0];
+
+		/**
+		 * package name -> exports.
+		 */
+		private final ConcurrentHashMap<String, Export[]> exports = new ConcurrentHashMap<String, Export[]>();
+
+		/**
+		 * wiring -> the exports indexed for it.
+		 */
+		private final HashMap<BundleWiring, Export[]> byWiring = new HashMap<BundleWiring, Export[]>();
+
+		/**
+		 * index the package exports of a wiring.
+		 * 
+		 * @param wiring
+		 *            the wiring.
+		 */
+		synchronized void add(final BundleWiring wiring) {
+			remove(wiring);
+
+			final List<BundleCapability> caps = wiring
+					.getCapabilities(PackageNamespace.PACKAGE_NAMESPACE);
+			if (caps == null || caps.isEmpty()) {
+				return;
+			}
+
+			final ArrayList<Export> added = new ArrayList<Export>(caps.size());
+			for (final BundleCapability cap : caps) {
+				final Object pkg = cap.getAttributes().get(
+						PackageNamespace.PACKAGE_NAMESPACE);
+				if (!(pkg instanceof String)) {
+					continue;
+				}
+				final Export export = new Export((String) pkg, cap, wiring);
+				final Export[] old = exports.get(export.pkg);
+				if (old == null) {
+					exports.put(export.pkg, new Export[] { export });
+				} else {
+					// insert behind all exports that are not ordered after it
+					int low = 0;
+					int high = old.length;
+					while (low < high) {
+						final int mid = (low + high) >>> 1;
+						if (VERSION_ORDER.compare(old[mid].cap, cap) > 0) {
+							high = mid;
+						} else {
+							low = mid + 1;
+						}
+					}
+					final Export[] updated = new Export[old.length + 1];
+					System.arraycopy(old, 0, updated, 0, low);
+					updated[low] = export;
+					System.arraycopy(old, low, updated, low + 1, old.length
+							- low);
+					exports.put(export.pkg, updated);
+				}
+				added.add(export);
+			}
+			byWiring.put(wiring, added.toArray(new Export[added.size()]));
 		}
-		final String[] result = new String[libraryExtensions.length + 1];
-		result[0] = System.mapLibraryName(libname);
-		for (int i = 0; i < libraryExtensions.length; i++) {
-			result[i + 1] = libname + "." + libraryExtensions[i];
+
+		/**
+		 * remove the package exports of a wiring.
+		 * 
+		 * @param wiring
+		 *            the wiring.
+		 */
+		synchronized void remove(final BundleWiring wiring) {
+			final Export[] removed = byWiring.remove(wiring);
+			if (removed == null) {
+				return;
+			}
+
+			for (final Export export : removed) {
+				final Export[] old = exports.get(export.pkg);
+				if (old == null) {
+					continue;
+				}
+				int pos = -1;
+				for (int i = 0; i < old.length; i++) {
+					if (old[i] == export) {
+						pos = i;
+						break;
+					}
+				}
+				if (pos < 0) {
+					continue;
+				}
+				if (old.length == 1) {
+					exports.remove(export.pkg);
+				} else {
+					final Export[] updated = new Export[old.length - 1];
+					System.arraycopy(old, 0, updated, 0, pos);
+					System.arraycopy(old, pos + 1, updated, pos, updated.length
+							- pos);
+					exports.put(export.pkg, updated);
+				}
+			}
 		}
-		return result;
+
+		/**
+		 * @see org.eclipse.concierge.wiring.ExportIndex#getExports(java.lang.String)
+		 */
+		public List<BundleCapability> getExports(final String pkg) {
+			final ArrayList<BundleCapability> result = new ArrayList<BundleCapability>();
+			if (pkg == null) {
+				for (final Export[] list : exports.values()) {
+					addInUse(list, result);
+				}
+				return result;
+			}
+
+			final Export[] list = exports.get(pkg);
+			addInUse(list == null ? NO_EXPORTS : list, result);
+			sortExports(result);
+			return result;
+		}
+
+		private static void addInUse(final Export[] list,
+				final List<BundleCapability> result) {
+			for (final Export export : list) {
+				// stale wirings stay indexed until they are refreshed
+				if (export.wiring.isInUse()) {
+					result.add(export.cap);
+				}
+			}
+		}
+
+		private static final class Export {
+
+			final String pkg;
+
+			final BundleCapability cap;
+
+			final BundleWiring wiring;
+
+			Export(final String pkg, final BundleCapability cap,
+					final BundleWiring wiring) {
+				this.pkg = pkg;
+				this.cap = cap;
+				this.wiring = wiring;
+			}
+
+		}
+
 	}
 
-	void execPermission(final File libfile) {
-		if (execPermission == null) {
-			return;
+	/**
+	 * The org.osgi.framework.bootdelegation patterns, compiled into a trie of
+	 * package name segments. A lookup walks the segments of the package name
+	 * once, independent of the number of patterns, and the results are cached
+	 * per package.
+	 */
+	static final class BootDelegation {
+
+		/**
+		 * the maximum number of cached results.
+		 */
+		private static final int CACHE_SIZE = 1024;
+
+		/**
+		 * the root of the trie.
+		 */
+		private final Node root = new Node();
+
+		/**
+		 * package name -> result.
+		 */
+		private final ConcurrentHashMap<String, Boolean> cache = new ConcurrentHashMap<String, Boolean>();
+
+		/**
+		 * compile the patterns.
+		 * 
+		 * @param patterns
+		 *            the patterns, either a package name or a prefix followed
+		 *            by a trailing wildcard.
+		 * @throws IllegalArgumentException
+		 *             if a pattern has a wildcard that is not trailing.
+		 */
+		BootDelegation(final String[] patterns) {
+			for (int i = 0; i < patterns.length; i++) {
+				final String pattern = patterns[i];
+				final int pos = pattern.indexOf('*');
+				if (pos > -1 && pos < pattern.length() - 1) {
+					throw new IllegalArgumentException(
+							"Framework bootdelegation " + pattern
+									+ " is not supported");
+				}
+				final String prefix = pos < 0 ? pattern : pattern.substring(0,
+						pos);
+				// java.* is the fast path of the class loader
+				if ("java.".equals(prefix)) {
+					continue;
+				}
+
+				Node node = root;
+				int start = 0;
+				int end;
+				while ((end = prefix.indexOf('.', start)) > -1) {
+					node = node.child(prefix.substring(start, end));
+					start = end + 1;
+				}
+				final String last = prefix.substring(start);
+				if (pos < 0) {
+					node.child(last).exact = true;
+				} else {
+					node.addPartial(last);
+				}
+			}
 		}
-		final String cmd = execPermissionPattern
-				.matcher(execPermission)
-				.replaceAll(Matcher.quoteReplacement(libfile.getAbsolutePath()));
-		try {
-			Runtime.getRuntime().exec(cmd).waitFor();
-		} catch (final Throwable t) {
-			t.printStackTrace();
+
+		/**
+		 * check if a package is delegated to the parent class loader.
+		 * 
+		 * @param pkg
+		 *            the package name.
+		 * @return true if the package matches one of the patterns.
+		 */
+		boolean matches(final String pkg) {
+			final Boolean cached = cache.get(pkg);
+			if (cached != null) {
+				return cached.booleanValue();
+			}
+			final boolean result = lookup(pkg);
+			if (cache.size() < CACHE_SIZE) {
+				cache.put(pkg, Boolean.valueOf(result));
+			}
+			return result;
+		}
+
+		/**
+		 * match a package against the trie, without the cache.
+		 * 
+		 * @param pkg
+		 *            the package name.
+		 * @return true if the package matches one of the patterns.
+		 */
+		boolean lookup(final String pkg) {
+			Node node = root;
+			int start = 0;
+			while (true) {
+				final int end = pkg.indexOf('.', start);
+				final String segment = end < 0 ? pkg.substring(start) : pkg
+						.substring(start, end);
+				if (node.matchesPartial(segment)) {
+					return true;
+				}
+				node = node.children == null ? null : node.children
+						.get(segment);
+				if (node == null) {
+					return false;
+				}
+				if (end < 0) {
+					return node.exact;
+				}
+				start = end + 1;
+			}
+		}
+
+		/**
+		 * a package name segment of the trie.
+		 */
+		private static final class Node {
+
+			/**
+			 * segment -> node, null if there are no children.
+			 */
+			private HashMap<String, Node> children;
+
+			/**
+			 * the prefixes of the next segment that match everything below
+			 * this node, null if there are none.
+			 */
+			private String[] partials;
+
+			/**
+			 * true if the package name that ends at this node matches.
+			 */
+			private boolean exact;
+
+			Node child(final String segment) {
+				if (children == null) {
+					children = new HashMap<String, Node>();
+				}
+				Node node = children.get(segment);
+				if (node == null) {
+					node = new Node();
+					children.put(segment, node);
+				}
+				return node;
+			}
+
+			void addPartial(final String partial) {
+				if (partials == null) {
+					partials = new String[] { partial };
+				} else {
+					final String[] newPartials = new String[partials.length + 1];
+					System.arraycopy(partials, 0, newPartials, 0,
+							partials.length);
+					newPartials[partials.length] = partial;
+					partials = newPartials;
+				}
+			}
+
+			boolean matchesPartial(final String segment) {
+				if (partials == null) {
+					return false;
+				}
+				for (int i = 0; i < partials.length; i++) {
+					if (segment.startsWith(partials[i])) {
+						return true;
+					}
+				}
+				return false;
+			}
+
 		}
+
 	}
 
 }
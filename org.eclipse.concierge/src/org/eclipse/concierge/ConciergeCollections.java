@@ -421,4 +421,112 @@ public interface ConciergeCollections {
 
 	}
 
+
+	/**
+	 * A map with primitive long keys and open addressing. Modifications
+	 * replace the table, so that lookups neither lock nor allocate.
+	 */
+	static class LongMap<V> {
+
+		/**
+		 * the current table, replaced on every modification.
+		 */
+		private volatile Table table = new Table(0);
+
+		public V get(final long key) {
+			final Table t = table;
+			final int mask = t.keys.length - 1;
+			for (int i = hash(key) & mask;; i = (i + 1) & mask) {
+				final Object value = t.values[i];
+				if (value == null) {
+					return null;
+				}
+				if (t.keys[i] == key) {
+					@SuppressWarnings("unchecked")
+					final V result = (V) value;
+					return result;
+				}
+			}
+		}
+
+		public synchronized V put(final long key, final V value) {
+			if (value == null) {
+				throw new IllegalArgumentException("Value must not be null");
+			}
+			final V old = get(key);
+			final Table t = copy(key, old == null ? table.size + 1
+					: table.size);
+			t.insert(key, value);
+			table = t;
+			return old;
+		}
+
+		public synchronized V remove(final long key) {
+			final V old = get(key);
+			if (old != null) {
+				table = copy(key, table.size - 1);
+			}
+			return old;
+		}
+
+		public synchronized void clear() {
+			table = new Table(0);
+		}
+
+		public int size() {
+			return table.size;
+		}
+
+		/**
+		 * copy the current table without the given key.
+		 */
+		private Table copy(final long skip, final int expected) {
+			final Table old = table;
+			final Table t = new Table(expected);
+			for (int i = 0; i < old.keys.length; i++) {
+				if (old.values[i] != null && old.keys[i] != skip) {
+					t.insert(old.keys[i], old.values[i]);
+				}
+			}
+			return t;
+		}
+
+		static int hash(final long key) {
+			final int h = (int) (key ^ (key >>> 32)) * 0x9E3779B9;
+			return h ^ (h >>> 16);
+		}
+
+		private static final class Table {
+
+			final long[] keys;
+
+			final Object[] values;
+
+			int size;
+
+			Table(final int expected) {
+				// keep the load factor at or below 0.5
+				int capacity = 2;
+				while (capacity < expected * 2) {
+					capacity <<= 1;
+				}
+				keys = new long[capacity];
+				values = new Object[capacity];
+			}
+
+			void insert(final long key, final Object value) {
+				final int mask = keys.length - 1;
+				int i = hash(key) & mask;
+				while (values[i] != null) {
+					i = (i + 1) & mask;
+				}
+				keys[i] = key;
+				values[i] = value;
+				size++;
+			}
+
+		}
+
+	}
+
 }
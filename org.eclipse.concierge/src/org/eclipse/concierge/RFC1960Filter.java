@@ -11,6 +11,8 @@
 
 package org.eclipse.concierge;
 
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
 import java.lang.reflect.Array;
 import java.lang.reflect.Constructor;
 import java.util.ArrayList;
@@ -21,14 +23,19 @@ import java.util.EmptyStackException;
 import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Stack;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.osgi.framework.Filter;
 import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.framework.ServiceReference;
+import org.osgi.framework.Version;
+import org.osgi.framework.namespace.PackageNamespace;
 import org.osgi.resource.Capability;
 import org.osgi.resource.Requirement;
 
@@ -105,6 +112,19 @@ final class RFC1960Filter implements Filter {
 		}
 	};
 
+	/**
+	 * the cache of compiled filters, shared by all framework instances of
+	 * the VM. The capacity is read once from the system property
+	 * org.eclipse.concierge.filters.cachesize.
+	 */
+	static final FilterCache CACHE = new FilterCache(Integer.getInteger(
+			"org.eclipse.concierge.filters.cachesize", 512).intValue()) {
+		protected Filter create(final String str)
+				throws InvalidSyntaxException {
+			return compile(fromString(str));
+		}
+	};
+
 	// fields
 
 	/**
@@ -327,6 +347,23 @@ final class RFC1960Filter implements Filter {
 		}
 	}
 
+	/**
+	 * compile a parsed filter. The compiled filter evaluates to the same
+	 * results but does not parse its literals again for every match.
+	 * 
+	 * @param filter
+	 *            the filter.
+	 * @return the compiled filter, or the filter itself if it cannot be
+	 *         compiled.
+	 */
+	static Filter compile(final Filter filter) {
+		if (filter instanceof RFC1960Filter
+				|| filter instanceof RFC1960SimpleFilter) {
+			return new CompiledFilter(filter);
+		}
+		return filter;
+	}
+
 	/**
 	 * check if the filter matches a service reference.
 	 * 
@@ -546,6 +583,56 @@ final class RFC1960Filter implements Filter {
 		return l1 == min ? -1 : 1;
 	}
 
+	/**
+	 * get the values that an attribute must be equal to for the filter to
+	 * match. Keys are compared case insensitive, as in
+	 * {@link #match(Dictionary)}.
+	 * 
+	 * @param filter
+	 *            the filter.
+	 * @param key
+	 *            the attribute key.
+	 * @return the values, or <code>null</code> if a match does not require
+	 *         the attribute to be equal to one of a known set of values.
+	 */
+	static Set<String> getEqualityValues(final Filter filter, final String key) {
+		if (filter instanceof CompiledFilter) {
+			return getEqualityValues(((CompiledFilter) filter).source, key);
+		} else if (filter instanceof RFC1960Filter) {
+			final RFC1960Filter f = (RFC1960Filter) filter;
+			if (f.operator == AND_OPERATOR) {
+				// any of the operands is sufficient
+				for (final Filter operand : f.operands) {
+					final Set<String> values = getEqualityValues(operand, key);
+					if (values != null) {
+						return values;
+					}
+				}
+				return null;
+			} else if (f.operator == OR_OPERATOR) {
+				// all of the operands are required
+				final Set<String> result = new HashSet<String>();
+				for (final Filter operand : f.operands) {
+					final Set<String> values = getEqualityValues(operand, key);
+					if (values == null) {
+						return null;
+					}
+					result.addAll(values);
+				}
+				return result;
+			}
+			return null;
+		} else if (filter instanceof RFC1960SimpleFilter) {
+			final RFC1960SimpleFilter f = (RFC1960SimpleFilter) filter;
+			if (f.comparator == EQUALS && key.equalsIgnoreCase(f.id)
+					&& f.value.length() > 0 && f.value.indexOf('*') == -1
+					&& f.value.indexOf('\\') == -1) {
+				return Collections.singleton(f.value);
+			}
+		}
+		return null;
+	}
+
 	/**
 	 * A simple filter. That is a filter of the form <tt>key operand value</tt>.
 	 * A general filter consists of one or more simple filter literals connected
@@ -649,13 +736,22 @@ final class RFC1960Filter implements Filter {
 				return false;
 			}
 
+			return matchValue(temp);
+		}
+
+		/**
+		 * check if the filter matches an attribute value.
+		 * 
+		 * @param attr
+		 *            the attribute value, not null.
+		 * @return true if the filter matches, false otherwise.
+		 */
+		boolean matchValue(final Object attr) {
 			// are we just checking for presence ? Then we are done ...
 			if (comparator == PRESENT) {
 				return true;
 			}
 
-			final Object attr = temp;
-
 			try {
 				if (attr instanceof String) {
 					return compareString(value, comparator, (String) attr);
@@ -741,13 +837,23 @@ final class RFC1960Filter implements Filter {
 				return false;
 			}
 
+			return matchValueCase(temp);
+		}
+
+		/**
+		 * check if the filter matches an attribute value. This method is case
+		 * sensitive.
+		 * 
+		 * @param attr
+		 *            the attribute value, not null.
+		 * @return true if the filter matches, false otherwise.
+		 */
+		boolean matchValueCase(final Object attr) {
 			// are we just checking for presence ? Then we are done ...
 			if (comparator == PRESENT) {
 				return true;
 			}
 
-			final Object attr = temp;
-
 			try {
 				if (attr instanceof String) {
 					return compareStringCase(value, comparator, (String) attr);
@@ -1137,45 +1243,811 @@ final class RFC1960Filter implements Filter {
 		}
 	}
 
-	private static short INSUFFICIENT = 0;
-	private static short NECESSARY = 1;
-	private static short REQUIRED = 3;
+	/**
+	 * A compiled filter. The operand tree of a parsed filter is flattened
+	 * into arrays in prefix order, the literals are converted into their
+	 * typed representations once, and every distinct attribute key is bound
+	 * to a slot so that it is looked up at most once per evaluation.
+	 */
+	static final class CompiledFilter implements Filter {
 
-	static List<Capability> filterWithIndex(final Requirement requirement,
-			final String filterStr,
-			final Concierge.CapabilityRegistry capabilityIndex)
-			throws InvalidSyntaxException {
-		final Set<String> values = new HashSet<String>();
+		/**
+		 * marker for a literal node.
+		 */
+		private static final int LITERAL = 0;
 
-		final String namespace = requirement.getNamespace();
+		/**
+		 * marker for an attribute that is not present.
+		 */
+		private static final Object ABSENT = new Object();
+
+		/**
+		 * the filter this one was compiled from.
+		 */
+		final Filter source;
+
+		/**
+		 * the node types in prefix order, either an operator or LITERAL.
+		 */
+		private final int[] nodes;
 
-		final Filter filter = fromString(filterStr);
+		/**
+		 * the index of the next sibling of each node.
+		 */
+		private final int[] next;
+
+		/**
+		 * the literals, indexed by node.
+		 */
+		private final CompiledLiteral[] literals;
 
-		final int prefilterResult = prefilter(namespace, filter,
-				capabilityIndex, INSUFFICIENT, false, values);
+		/**
+		 * the attribute keys, indexed by slot.
+		 */
+		private final String[] keys;
 
-		final List<Capability> candidates;
+		/**
+		 * the lower case attribute keys, indexed by slot.
+		 */
+		private final String[] lowerKeys;
+
+		/**
+		 * create a new compiled filter.
+		 * 
+		 * @param source
+		 *            the parsed filter.
+		 */
+		CompiledFilter(final Filter source) {
+			this.source = source;
+			final int count = count(source);
+			nodes = new int[count];
+			next = new int[count];
+			literals = new CompiledLiteral[count];
+			final List<String> slots = new ArrayList<String>();
+			flatten(source, 0, slots);
+			keys = slots.toArray(new String[slots.size()]);
+			lowerKeys = new String[keys.length];
+			for (int i = 0; i < keys.length; i++) {
+				lowerKeys[i] = keys[i].toLowerCase();
+			}
+		}
 
-		if (prefilterResult == REQUIRED) {
-			if (values.size() != 1) {
-				return Collections.emptyList();
+		/**
+		 * count the nodes of a filter tree.
+		 */
+		private static int count(final Filter filter) {
+			if (filter instanceof RFC1960Filter) {
+				int c = 1;
+				for (final Filter operand : ((RFC1960Filter) filter).operands) {
+					c += count(operand);
+				}
+				return c;
 			}
-			return capabilityIndex.getByValue(namespace, values.iterator()
-					.next());
-		} else if (prefilterResult == NECESSARY) {
-			// FIXME: check
-			if (values.size() != 1) {
-				candidates = capabilityIndex.getAll(namespace);
+			return 1;
+		}
+
+		/**
+		 * flatten a filter tree into the node arrays.
+		 * 
+		 * @return the index of the next sibling.
+		 */
+		private int flatten(final Filter filter, final int pos,
+				final List<String> slots) {
+			if (filter instanceof RFC1960Filter) {
+				final RFC1960Filter f = (RFC1960Filter) filter;
+				nodes[pos] = f.operator;
+				int child = pos + 1;
+				for (final Filter operand : f.operands) {
+					child = flatten(operand, child, slots);
+				}
+				next[pos] = child;
 			} else {
-				candidates = capabilityIndex.getByKey(namespace, values
-						.iterator().next());
+				final RFC1960SimpleFilter f = (RFC1960SimpleFilter) filter;
+				int slot = slots.indexOf(f.id);
+				if (slot == -1) {
+					slot = slots.size();
+					slots.add(f.id);
+				}
+				nodes[pos] = LITERAL;
+				literals[pos] = new CompiledLiteral(f, slot);
+				next[pos] = pos + 1;
 			}
-		} else {
-			candidates = capabilityIndex.getAll(namespace);
+			return next[pos];
+		}
+
+		/**
+		 * @see org.osgi.framework.Filter#match(org.osgi.framework.ServiceReference)
+		 * @category Filter
+		 */
+		public boolean match(final ServiceReference<?> reference) {
+			if (reference instanceof ServiceReferenceImpl) {
+				return match(((ServiceReferenceImpl<?>) reference).properties);
+			}
+			final Dictionary<String, Object> dict = new Hashtable<String, Object>();
+			final String[] propertyKeys = reference.getPropertyKeys();
+			for (int i = 0; i < propertyKeys.length; i++) {
+				dict.put(propertyKeys[i],
+						reference.getProperty(propertyKeys[i]));
+			}
+			return match(dict);
+		}
+
+		/**
+		 * @see org.osgi.framework.Filter#match(java.util.Dictionary)
+		 * @category Filter
+		 */
+		public boolean match(final Dictionary<String, ?> dictionary) {
+			return eval(0, dictionary, null, new Object[keys.length], false);
+		}
+
+		/**
+		 * @see org.osgi.framework.Filter#matchCase(java.util.Dictionary)
+		 * @category Filter
+		 */
+		public boolean matchCase(final Dictionary<String, ?> dictionary) {
+			return eval(0, dictionary, null, new Object[keys.length], true);
+		}
+
+		/**
+		 * @see org.osgi.framework.Filter#matches(java.util.Map)
+		 * @category Filter
+		 */
+		public boolean matches(final Map<String, ?> map) {
+			return eval(0, null, map, new Object[keys.length], false);
+		}
+
+		/**
+		 * evaluate a node.
+		 * 
+		 * @param node
+		 *            the node index.
+		 * @param dict
+		 *            the attributes as dictionary or null.
+		 * @param map
+		 *            the attributes as map or null.
+		 * @param values
+		 *            the attribute values resolved so far, indexed by slot.
+		 * @param caseSensitive
+		 *            true if the keys are to be matched case sensitive.
+		 * @return true if the node matches.
+		 */
+		private boolean eval(final int node, final Dictionary<String, ?> dict,
+				final Map<String, ?> map, final Object[] values,
+				final boolean caseSensitive) {
+			switch (nodes[node]) {
+			case AND_OPERATOR:
+				for (int i = node + 1; i < next[node]; i = next[i]) {
+					if (!eval(i, dict, map, values, caseSensitive)) {
+						return false;
+					}
+				}
+				return true;
+			case OR_OPERATOR:
+				for (int i = node + 1; i < next[node]; i = next[i]) {
+					if (eval(i, dict, map, values, caseSensitive)) {
+						return true;
+					}
+				}
+				return false;
+			case NOT_OPERATOR:
+				return !eval(node + 1, dict, map, values, caseSensitive);
+			default:
+				final CompiledLiteral literal = literals[node];
+				Object attr = values[literal.slot];
+				if (attr == null) {
+					attr = lookup(literal.slot, dict, map, caseSensitive);
+					if (attr == null) {
+						attr = ABSENT;
+					}
+					values[literal.slot] = attr;
+				}
+				return attr != ABSENT && literal.match(attr, caseSensitive);
+			}
+		}
+
+		/**
+		 * look up the value of a slot.
+		 */
+		private Object lookup(final int slot, final Dictionary<String, ?> dict,
+				final Map<String, ?> map, final boolean caseSensitive) {
+			final String key = keys[slot];
+			if (dict != null) {
+				Object value = dict.get(key);
+				if (value != null || caseSensitive) {
+					return value;
+				}
+				if (lowerKeys[slot] != key) {
+					value = dict.get(lowerKeys[slot]);
+					if (value != null) {
+						return value;
+					}
+				}
+				for (final Enumeration<String> e = dict.keys(); e
+						.hasMoreElements();) {
+					final String k = e.nextElement();
+					if (k.equalsIgnoreCase(key)) {
+						return dict.get(k);
+					}
+				}
+			} else if (map != null) {
+				Object value = map.get(key);
+				if (value != null) {
+					return value;
+				}
+				if (lowerKeys[slot] != key) {
+					value = map.get(lowerKeys[slot]);
+					if (value != null) {
+						return value;
+					}
+				}
+				for (final Map.Entry<String, ?> entry : map.entrySet()) {
+					if (key.equalsIgnoreCase(entry.getKey())) {
+						return entry.getValue();
+					}
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * get a string representation of the filter.
+		 * 
+		 * @return the string.
+		 * @category Object
+		 */
+		public String toString() {
+			return source.toString();
+		}
+
+		/**
+		 * check if the filter equals another object.
+		 * 
+		 * @param obj
+		 *            the other object.
+		 * @return true if the object is a filter equal to the source filter.
+		 * @category Object
+		 */
+		public boolean equals(final Object obj) {
+			if (obj instanceof CompiledFilter) {
+				return source.equals(((CompiledFilter) obj).source);
+			}
+			return source.equals(obj);
+		}
+
+		/**
+		 * get the hash code.
+		 * 
+		 * @return the hash code.
+		 * @category Object
+		 */
+		public int hashCode() {
+			return source.hashCode();
+		}
+	}
+
+	/**
+	 * A compiled literal. Holds the value of a simple filter in all
+	 * representations that the comparison might need, so that it is not
+	 * parsed again for every attribute.
+	 */
+	private static final class CompiledLiteral {
+
+		/**
+		 * the simple filter, used for the rare attribute types.
+		 */
+		private final RFC1960SimpleFilter filter;
+
+		/**
+		 * the slot of the attribute key.
+		 */
+		final int slot;
+
+		/**
+		 * the comparator.
+		 */
+		private final int comparator;
+
+		/**
+		 * the value.
+		 */
+		private final String value;
+
+		/**
+		 * the trimmed value.
+		 */
+		private final String trimmed;
+
+		/**
+		 * true if the value contains no wildcards or escapes.
+		 */
+		private final boolean plain;
+
+		/**
+		 * the value as chars.
+		 */
+		private final char[] chars;
+
+		/**
+		 * the value as chars for approximate matching.
+		 */
+		private final char[] approxChars;
+
+		/**
+		 * the value as chars for case sensitive approximate matching.
+		 */
+		private final char[] approxCaseChars;
+
+		/**
+		 * the trimmed value as long, if it is one.
+		 */
+		private long longValue;
+
+		private boolean isLong;
+
+		/**
+		 * the trimmed value as double, if it is one.
+		 */
+		private double doubleValue;
+
+		private boolean isDouble;
+
+		/**
+		 * the trimmed value as float, if it is one.
+		 */
+		private float floatValue;
+
+		private boolean isFloat;
+
+		/**
+		 * the value as boolean.
+		 */
+		private final Boolean booleanValue;
+
+		/**
+		 * the value as boolean, case sensitive matching.
+		 */
+		private final Boolean booleanValueCase;
+
+		/**
+		 * the last reflectively created value: the class, the string it was
+		 * created from, and the typed value or null if it could not be
+		 * created.
+		 */
+		private volatile Object[] typedValue;
+
+		/**
+		 * create a new compiled literal.
+		 * 
+		 * @param filter
+		 *            the simple filter.
+		 * @param slot
+		 *            the slot of the attribute key.
+		 */
+		CompiledLiteral(final RFC1960SimpleFilter filter, final int slot) {
+			this.filter = filter;
+			this.slot = slot;
+			this.comparator = filter.comparator;
+			this.value = filter.value;
+			if (value == null) {
+				// PRESENT
+				trimmed = null;
+				plain = false;
+				chars = approxChars = approxCaseChars = null;
+				booleanValue = booleanValueCase = null;
+				return;
+			}
+			trimmed = value.trim();
+			plain = value.length() > 0 && value.indexOf('*') == -1
+					&& value.indexOf('\\') == -1;
+			chars = value.toCharArray();
+			final String stripped = RFC1960SimpleFilter
+					.stripWhitespaces(value);
+			approxCaseChars = stripped.toCharArray();
+			approxChars = stripped.toLowerCase().toCharArray();
+			booleanValue = Boolean.valueOf(trimmed);
+			booleanValueCase = Boolean.valueOf(value);
+			try {
+				longValue = Long.parseLong(trimmed);
+				isLong = true;
+			} catch (final NumberFormatException nfe) {
+				// not a long
+			}
+			try {
+				doubleValue = Double.parseDouble(trimmed);
+				isDouble = true;
+			} catch (final NumberFormatException nfe) {
+				// not a double
+			}
+			try {
+				floatValue = Float.parseFloat(trimmed);
+				isFloat = true;
+			} catch (final NumberFormatException nfe) {
+				// not a float
+			}
+		}
+
+		/**
+		 * check if the literal matches an attribute value.
+		 * 
+		 * @param attr
+		 *            the attribute value, not null.
+		 * @param caseSensitive
+		 *            true for case sensitive matching.
+		 * @return true, iff matches.
+		 */
+		boolean match(final Object attr, final boolean caseSensitive) {
+			if (comparator == PRESENT) {
+				return true;
+			}
+
+			try {
+				if (attr instanceof String) {
+					return compareString((String) attr, caseSensitive);
+				} else if (attr instanceof Number) {
+					return compareNumber((Number) attr);
+				} else if (attr instanceof String[]) {
+					final String[] array = (String[]) attr;
+					for (int i = 0; i < array.length; i++) {
+						if (compareString(array[i], caseSensitive)) {
+							return true;
+						}
+					}
+					return false;
+				} else if (attr instanceof Boolean) {
+					return (comparator == EQUALS || comparator == APPROX)
+							&& attr.equals(caseSensitive ? booleanValueCase
+									: booleanValue);
+				} else if (attr instanceof Character
+						|| attr instanceof Collection
+						|| attr.getClass().isArray()) {
+					return caseSensitive ? filter.matchValueCase(attr)
+							: filter.matchValue(attr);
+				} else {
+					return compareReflective(value, attr);
+				}
+			} catch (final Throwable t) {
+				return false;
+			}
+		}
+
+		/**
+		 * compare a string.
+		 */
+		private boolean compareString(final String attr,
+				final boolean caseSensitive) {
+			switch (comparator) {
+			case EQUALS:
+				if (plain) {
+					return value.equals(attr);
+				}
+				return stringCompare(chars, 0, attr.toCharArray(), 0) == 0;
+			case APPROX:
+				final String stripped = RFC1960SimpleFilter
+						.stripWhitespaces(attr);
+				return caseSensitive ? stringCompare(approxCaseChars, 0,
+						stripped.toCharArray(), 0) == 0 : stringCompare(
+						approxChars, 0, stripped.toLowerCase().toCharArray(),
+						0) == 0;
+			case GREATER:
+				return stringCompare(chars, 0, attr.toCharArray(), 0) <= 0;
+			case LESS:
+				return stringCompare(chars, 0, attr.toCharArray(), 0) >= 0;
+			default:
+				throw new IllegalStateException("Found illegal comparator.");
+			}
+		}
+
+		/**
+		 * compare numbers.
+		 */
+		private boolean compareNumber(final Number attr) {
+			if (attr instanceof Integer) {
+				return isLong && longValue >= Integer.MIN_VALUE
+						&& longValue <= Integer.MAX_VALUE
+						&& compareLong(attr.longValue());
+			} else if (attr instanceof Long) {
+				return isLong && compareLong(attr.longValue());
+			} else if (attr instanceof Byte) {
+				return isLong && longValue >= Byte.MIN_VALUE
+						&& longValue <= Byte.MAX_VALUE
+						&& compareLong(attr.longValue());
+			} else if (attr instanceof Short) {
+				return isLong && longValue >= Short.MIN_VALUE
+						&& longValue <= Short.MAX_VALUE
+						&& compareLong(attr.longValue());
+			} else if (attr instanceof Double) {
+				if (!isDouble) {
+					return false;
+				}
+				final double doubleAttr = attr.doubleValue();
+				switch (comparator) {
+				case GREATER:
+					return doubleAttr >= doubleValue;
+				case LESS:
+					return doubleAttr <= doubleValue;
+				default:
+					return doubleAttr == doubleValue;
+				}
+			} else if (attr instanceof Float) {
+				if (!isFloat) {
+					return false;
+				}
+				final float floatAttr = attr.floatValue();
+				switch (comparator) {
+				case GREATER:
+					return floatAttr >= floatValue;
+				case LESS:
+					return floatAttr <= floatValue;
+				default:
+					return floatAttr == floatValue;
+				}
+			}
+			return compareReflective(trimmed, attr);
 		}
 
+		/**
+		 * compare an integral attribute with the long value.
+		 */
+		private boolean compareLong(final long attr) {
+			switch (comparator) {
+			case GREATER:
+				return attr >= longValue;
+			case LESS:
+				return attr <= longValue;
+			default:
+				return attr == longValue;
+			}
+		}
+
+		/**
+		 * compare by creating a typed value of the attribute's class through
+		 * its string constructor. The typed value is kept for as long as the
+		 * attribute class does not change.
+		 */
+		private boolean compareReflective(final String val, final Object attr) {
+			final Class<?> clazz = attr.getClass();
+			Object[] cached = typedValue;
+			if (cached == null || cached[0] != clazz || cached[1] != val) {
+				Object typedVal;
+				try {
+					typedVal = clazz.getConstructor(String.class).newInstance(
+							new Object[] { val });
+				} catch (final Exception didNotWork) {
+					typedVal = null;
+				}
+				cached = new Object[] { clazz, val, typedVal };
+				typedValue = cached;
+			}
+			final Object typedVal = cached[2];
+			if (typedVal == null) {
+				return false;
+			}
+			if (attr instanceof Comparable) {
+				return RFC1960SimpleFilter.compareTyped(typedVal, comparator,
+						(Comparable<?>) attr);
+			}
+			return typedVal.equals(attr);
+		}
+	}
+
+	/**
+	 * A bounded cache of filters, keyed by the filter string. Filters are
+	 * immutable, so one instance can be shared by all callers. The entries
+	 * are softly referenced and are dropped when memory gets scarce. When the
+	 * cache is full, entries that have not been used since the last sweep
+	 * are evicted first.
+	 */
+	abstract static class FilterCache {
+
+		/**
+		 * the cached filters.
+		 */
+		private final ConcurrentHashMap<String, CacheEntry> filters = new ConcurrentHashMap<String, CacheEntry>();
+
+		/**
+		 * the queue of entries cleared by the garbage collector.
+		 */
+		private final ReferenceQueue<Filter> queue = new ReferenceQueue<Filter>();
+
+		/**
+		 * the cache hits.
+		 */
+		private final AtomicLong hits = new AtomicLong();
+
+		/**
+		 * the cache misses.
+		 */
+		private final AtomicLong misses = new AtomicLong();
+
+		/**
+		 * the maximum number of entries.
+		 */
+		private final int capacity;
+
+		/**
+		 * create a new filter cache.
+		 * 
+		 * @param capacity
+		 *            the maximum number of entries, 0 disables the cache.
+		 */
+		FilterCache(final int capacity) {
+			this.capacity = capacity;
+		}
+
+		/**
+		 * create the filter for a filter string.
+		 * 
+		 * @param str
+		 *            the filter string.
+		 * @return the filter.
+		 * @throws InvalidSyntaxException
+		 *             if the string is invalid.
+		 */
+		protected abstract Filter create(final String str)
+				throws InvalidSyntaxException;
+
+		/**
+		 * get the filter for a filter string.
+		 * 
+		 * @param str
+		 *            the filter string.
+		 * @return the filter.
+		 * @throws InvalidSyntaxException
+		 *             if the string is invalid.
+		 */
+		final Filter get(final String str) throws InvalidSyntaxException {
+			if (str == null) {
+				return create(null);
+			}
+			final CacheEntry entry = filters.get(str);
+			if (entry != null) {
+				final Filter filter = entry.get();
+				if (filter != null) {
+					entry.used = true;
+					hits.incrementAndGet();
+					return filter;
+				}
+			}
+			misses.incrementAndGet();
+
+			final Filter filter = create(str);
+			purge();
+			if (filters.size() >= capacity) {
+				evict();
+			}
+			if (capacity > 0) {
+				filters.put(str, new CacheEntry(str, filter, queue));
+			}
+			return filter;
+		}
+
+		/**
+		 * remove the entries cleared by the garbage collector.
+		 */
+		private void purge() {
+			CacheEntry entry;
+			while ((entry = (CacheEntry) queue.poll()) != null) {
+				filters.remove(entry.key, entry);
+			}
+		}
+
+		/**
+		 * make room for a new entry. Entries used since the last sweep get a
+		 * second chance.
+		 */
+		private void evict() {
+			int budget = 2 * filters.size();
+			for (final Iterator<CacheEntry> iter = filters.values().iterator(); iter
+					.hasNext() && budget-- > 0;) {
+				final CacheEntry entry = iter.next();
+				if (entry.used) {
+					entry.used = false;
+				} else {
+					iter.remove();
+					if (filters.size() < capacity) {
+						return;
+					}
+				}
+			}
+			// all entries were used, drop arbitrary ones
+			for (final Iterator<CacheEntry> iter = filters.values().iterator(); iter
+					.hasNext() && filters.size() >= capacity;) {
+				iter.next();
+				iter.remove();
+			}
+		}
+
+		/**
+		 * remove all entries and reset the counters.
+		 */
+		void clear() {
+			filters.clear();
+			hits.set(0);
+			misses.set(0);
+		}
+
+		/**
+		 * get the number of cache hits.
+		 * 
+		 * @return the hits.
+		 */
+		long getHits() {
+			return hits.get();
+		}
+
+		/**
+		 * get the number of cache misses.
+		 * 
+		 * @return the misses.
+		 */
+		long getMisses() {
+			return misses.get();
+		}
+
+		/**
+		 * get the maximum number of entries.
+		 * 
+		 * @return the capacity.
+		 */
+		int getCapacity() {
+			return capacity;
+		}
+
+		/**
+		 * get the number of cached filters.
+		 * 
+		 * @return the size.
+		 */
+		int size() {
+			return filters.size();
+		}
+
+		/**
+		 * get a string representation of the cache statistics.
+		 * 
+		 * @return the string.
+		 * @category Object
+		 */
+		public String toString() {
+			return "hits=" + hits.get() + ", misses=" + misses.get()
+					+ ", size=" + filters.size() + "/" + capacity;
+		}
+
+		/**
+		 * a cache entry.
+		 */
+		private static final class CacheEntry extends SoftReference<Filter> {
+
+			/**
+			 * the filter string.
+			 */
+			final String key;
+
+			/**
+			 * used since the last sweep.
+			 */
+			volatile boolean used;
+
+			CacheEntry(final String key, final Filter filter,
+					final ReferenceQueue<Filter> queue) {
+				super(filter, queue);
+				this.key = key;
+			}
+		}
+	}
+
+	static List<Capability> filterWithIndex(final Requirement requirement,
+			final String filterStr,
+			final Concierge.CapabilityRegistry capabilityIndex)
+			throws InvalidSyntaxException {
+		final String namespace = requirement.getNamespace();
+
+		final Filter filter = CACHE.get(filterStr);
+
+		List<Capability> candidates = prefilter(namespace, filter,
+				capabilityIndex);
 		if (candidates == null) {
-			return Collections.emptyList();
+			candidates = capabilityIndex.getAll(namespace);
 		}
 
 		final ArrayList<Capability> matches = new ArrayList<Capability>();
@@ -1188,55 +2060,161 @@ final class RFC1960Filter implements Filter {
 			}
 		}
 
+		capabilityIndex.countCandidates(namespace, candidates.size(),
+				matches.size());
+
 		return matches;
 	}
 
-	private static int prefilter(final String namespace, final Filter filter,
-			final Concierge.CapabilityRegistry capabilities, final int state,
-			final boolean inNegation, final Set<String> values) {
-		int newState = state;
-		if (filter instanceof RFC1960Filter) {
+	/**
+	 * narrow the candidates of a filter through the attribute index of the
+	 * capability registry.
+	 * 
+	 * @param namespace
+	 *            the namespace.
+	 * @param filter
+	 *            the filter.
+	 * @param capabilities
+	 *            the capability registry.
+	 * @return the candidates, a superset of the matching capabilities, or
+	 *         <code>null</code> if the index does not narrow them.
+	 */
+	private static List<Capability> prefilter(final String namespace,
+			final Filter filter,
+			final Concierge.CapabilityRegistry capabilities) {
+		if (filter instanceof CompiledFilter) {
+			return prefilter(namespace, ((CompiledFilter) filter).source,
+					capabilities);
+		} else if (filter instanceof RFC1960Filter) {
 			final RFC1960Filter f = (RFC1960Filter) filter;
-			final int operator = f.operator;
-			if (f.operands.size() == 1) {
-				return prefilter(namespace, f.operands.get(0), capabilities,
-						state, operator == NOT_OPERATOR ? !inNegation
-								: inNegation, values);
-			}
-
-			for (final Filter next : f.operands) {
-				final int childState = prefilter(namespace, next, capabilities,
-						state, inNegation, values);
-				if (f.operator == AND_OPERATOR) {
-					newState |= childState;
-				} else { // if (f.operator == OR_OPERATOR)
-					newState &= childState;
+			if (f.operator == AND_OPERATOR) {
+				if (PackageNamespace.PACKAGE_NAMESPACE.equals(namespace)) {
+					final List<Capability> range = prefilterVersionRange(f,
+							capabilities);
+					if (range != null) {
+						return range;
+					}
+				}
+				// any of the operands is sufficient, take the smallest
+				List<Capability> result = null;
+				for (final Filter operand : f.operands) {
+					final List<Capability> candidates = prefilter(namespace,
+							operand, capabilities);
+					if (candidates != null
+							&& (result == null || candidates.size() < result
+									.size())) {
+						result = candidates;
+					}
 				}
-				if (newState == INSUFFICIENT) {
-					// early termination
-					return INSUFFICIENT;
+				return result;
+			} else if (f.operator == OR_OPERATOR) {
+				// all of the operands are required
+				final Set<Capability> union = new HashSet<Capability>();
+				for (final Filter operand : f.operands) {
+					final List<Capability> candidates = prefilter(namespace,
+							operand, capabilities);
+					if (candidates == null) {
+						return null;
+					}
+					union.addAll(candidates);
 				}
-				// as soon as we have more than one clause, REQUIRED degrades to
-				// NECESSARY
-				newState ^= 2;
+				return capabilities.getAll(namespace, union);
 			}
-			return newState == 3 ? NECESSARY : newState;
+			return null;
 		} else if (filter instanceof RFC1960SimpleFilter) {
 			final RFC1960SimpleFilter f = (RFC1960SimpleFilter) filter;
-			if (namespace.equals(f.id)) {
-				if (f.comparator == EQUALS) {
-					values.add(f.value);
-					return REQUIRED;
-				} else if (f.comparator == PRESENT && inNegation) {
-					return INSUFFICIENT;
-				} else {
-					return NECESSARY;
+			if (f.comparator == EQUALS && f.value.length() > 0
+					&& f.value.indexOf('*') == -1
+					&& f.value.indexOf('\\') == -1) {
+				return capabilities.getByAttribute(namespace, f.id, f.value);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * narrow the candidates of a package import through the version index,
+	 * for filters of the form
+	 * <tt>(&amp;(osgi.wiring.package=name)(version&gt;=low)(!(version&gt;=high)))</tt>
+	 * as created from the version ranges of the manifest.
+	 * 
+	 * @param filter
+	 *            the conjunction.
+	 * @param capabilities
+	 *            the capability registry.
+	 * @return the candidates in VERSION_ORDER, or <code>null</code> if the
+	 *         filter does not name the package.
+	 */
+	private static List<Capability> prefilterVersionRange(
+			final RFC1960Filter filter,
+			final Concierge.CapabilityRegistry capabilities) {
+		String pkg = null;
+		Version low = null;
+		boolean lowInclusive = true;
+		Version high = null;
+		boolean highInclusive = true;
+
+		for (final Filter operand : filter.operands) {
+			boolean negated = false;
+			Filter literal = operand;
+			if (literal instanceof RFC1960Filter
+					&& ((RFC1960Filter) literal).operator == NOT_OPERATOR) {
+				negated = true;
+				literal = ((RFC1960Filter) literal).operands.get(0);
+			}
+			if (!(literal instanceof RFC1960SimpleFilter)) {
+				continue;
+			}
+			final RFC1960SimpleFilter f = (RFC1960SimpleFilter) literal;
+			if (f.value == null || f.value.indexOf('*') > -1
+					|| f.value.indexOf('\\') > -1) {
+				continue;
+			}
+
+			if (!negated && f.comparator == EQUALS
+					&& PackageNamespace.PACKAGE_NAMESPACE.equalsIgnoreCase(f.id)) {
+				pkg = f.value;
+				continue;
+			}
+			if (!PackageNamespace.CAPABILITY_VERSION_ATTRIBUTE
+					.equalsIgnoreCase(f.id)) {
+				continue;
+			}
+
+			final Version version;
+			try {
+				version = Version.parseVersion(f.value);
+			} catch (final IllegalArgumentException iae) {
+				continue;
+			}
+
+			// keep the tightest bounds
+			final boolean isLow = f.comparator == GREATER && !negated
+					|| f.comparator == LESS && negated;
+			final boolean isHigh = f.comparator == LESS && !negated
+					|| f.comparator == GREATER && negated;
+			if (isLow || f.comparator == EQUALS && !negated) {
+				final boolean inclusive = !negated;
+				final int cmp = low == null ? 1 : version.compareTo(low);
+				if (cmp > 0 || cmp == 0 && !inclusive) {
+					low = version;
+					lowInclusive = inclusive;
 				}
-			} else {
-				return INSUFFICIENT;
 			}
-		} else {
-			return INSUFFICIENT;
+			if (isHigh || f.comparator == EQUALS && !negated) {
+				final boolean inclusive = !negated;
+				final int cmp = high == null ? -1 : version.compareTo(high);
+				if (cmp < 0 || cmp == 0 && !inclusive) {
+					high = version;
+					highInclusive = inclusive;
+				}
+			}
+		}
+
+		if (pkg == null) {
+			return null;
 		}
+		return capabilities.getPackages(pkg, low, lowInclusive, high,
+				highInclusive);
 	}
 }
\ No newline at end of file
@@ -10,6 +10,9 @@
  *******************************************************************************/
 package org.eclipse.concierge;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -57,6 +60,108 @@ public class Resources {
 		return null;
 	}
 
+	private static final byte STRING_VALUE = 0;
+	private static final byte VERSION_VALUE = 1;
+	private static final byte LONG_VALUE = 2;
+	private static final byte DOUBLE_VALUE = 3;
+	private static final byte LIST_VALUE = 4;
+
+	static void writeValue(final DataOutput out, final Object value)
+			throws IOException {
+		if (value instanceof String) {
+			out.writeByte(STRING_VALUE);
+			out.writeUTF((String) value);
+		} else if (value instanceof Version) {
+			out.writeByte(VERSION_VALUE);
+			out.writeUTF(value.toString());
+		} else if (value instanceof Long) {
+			out.writeByte(LONG_VALUE);
+			out.writeLong(((Long) value).longValue());
+		} else if (value instanceof Double) {
+			out.writeByte(DOUBLE_VALUE);
+			out.writeDouble(((Double) value).doubleValue());
+		} else if (value instanceof List) {
+			final List<?> list = (List<?>) value;
+			out.writeByte(LIST_VALUE);
+			out.writeInt(list.size());
+			for (final Object element : list) {
+				writeValue(out, element);
+			}
+		} else {
+			throw new IOException("Cannot store attribute value " + value);
+		}
+	}
+
+	static Object readValue(final DataInput in) throws IOException {
+		final byte type = in.readByte();
+		switch (type) {
+		case STRING_VALUE:
+			return in.readUTF();
+		case VERSION_VALUE:
+			return new Version(in.readUTF());
+		case LONG_VALUE:
+			return new Long(in.readLong());
+		case DOUBLE_VALUE:
+			return new Double(in.readDouble());
+		case LIST_VALUE:
+			final int size = in.readInt();
+			final List<Object> list = new ArrayList<Object>(size);
+			for (int i = 0; i < size; i++) {
+				list.add(readValue(in));
+			}
+			return list;
+		}
+		throw new IOException("Invalid attribute type " + type);
+	}
+
+	static HashMap<String, String> readDirectives(final DataInput in)
+			throws IOException {
+		final int size = in.readInt();
+		final HashMap<String, String> directives = new HashMap<String, String>();
+		for (int i = 0; i < size; i++) {
+			directives.put(in.readUTF(), in.readUTF());
+		}
+		return directives;
+	}
+
+	static HashMap<String, Object> readAttributes(final DataInput in)
+			throws IOException {
+		final int size = in.readInt();
+		final HashMap<String, Object> attributes = new HashMap<String, Object>();
+		for (int i = 0; i < size; i++) {
+			attributes.put(in.readUTF(), readValue(in));
+		}
+		return attributes;
+	}
+
+	static void writeStrings(final DataOutput out, final String[] strings)
+			throws IOException {
+		out.writeInt(strings.length);
+		for (int i = 0; i < strings.length; i++) {
+			out.writeUTF(strings[i]);
+		}
+	}
+
+	static String[] readStrings(final DataInput in) throws IOException {
+		final String[] strings = new String[in.readInt()];
+		for (int i = 0; i < strings.length; i++) {
+			strings[i] = in.readUTF();
+		}
+		return strings;
+	}
+
+	static void writeNullable(final DataOutput out, final String str)
+			throws IOException {
+		out.writeBoolean(str != null);
+		if (str != null) {
+			out.writeUTF(str);
+		}
+	}
+
+	static String readNullable(final DataInput in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
 	static abstract class GenericReqCap implements Requirement, Capability {
 
 		private final String namespace;
@@ -90,6 +195,27 @@ public class Resources {
 					.unmodifiableMap(attributes);
 		}
 
+		protected GenericReqCap(final DataInput in) throws IOException {
+			this(in.readUTF(), readDirectives(in), readAttributes(in));
+		}
+
+		/**
+		 * write the namespace, directives, and attributes to a snapshot.
+		 */
+		void write(final DataOutput out) throws IOException {
+			out.writeUTF(namespace);
+			out.writeInt(directives.size());
+			for (final Map.Entry<String, String> entry : directives.entrySet()) {
+				out.writeUTF(entry.getKey());
+				out.writeUTF(entry.getValue());
+			}
+			out.writeInt(attributes.size());
+			for (final Map.Entry<String, Object> entry : attributes.entrySet()) {
+				out.writeUTF(entry.getKey());
+				writeValue(out, entry.getValue());
+			}
+		}
+
 		public final String getNamespace() {
 			return namespace;
 		}
@@ -196,6 +322,26 @@ public class Resources {
 			}
 		}
 
+		// restore from a snapshot
+		BundleCapabilityImpl(final BundleRevision revision, final DataInput in)
+				throws IOException {
+			super(in);
+			this.revision = revision;
+			this.prettyPrint = readNullable(in);
+			this.includes = readStrings(in);
+			this.excludes = readStrings(in);
+			this.hasExcludes = in.readBoolean();
+		}
+
+		@Override
+		void write(final DataOutput out) throws IOException {
+			super.write(out);
+			writeNullable(out, prettyPrint);
+			writeStrings(out, includes);
+			writeStrings(out, excludes);
+			out.writeBoolean(hasExcludes);
+		}
+
 		public BundleRevision getRevision() {
 			return revision;
 		}
@@ -263,6 +409,20 @@ public class Resources {
 			this.prettyPrint = "BundleRequirement{" + prettyPrint + "}";
 		}
 
+		// restore from a snapshot
+		BundleRequirementImpl(final BundleRevision revision, final DataInput in)
+				throws IOException {
+			super(in);
+			this.revision = revision;
+			this.prettyPrint = readNullable(in);
+		}
+
+		@Override
+		void write(final DataOutput out) throws IOException {
+			super.write(out);
+			writeNullable(out, prettyPrint);
+		}
+
 		public BundleRevision getRevision() {
 			return revision;
 		}
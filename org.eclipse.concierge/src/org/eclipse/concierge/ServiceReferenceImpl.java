@@ -119,13 +119,20 @@ final class ServiceReferenceImpl<S> implements ServiceReference<S> {
 		}
 		properties.put(Constants.OBJECTCLASS, clazzes);
 		properties.put(Constants.SERVICE_ID, new Long(++nextServiceID));
-		final Integer ranking = props == null ? null : (Integer) props
-				.get(Constants.SERVICE_RANKING);
-		properties.put(Constants.SERVICE_RANKING,
-				ranking == null ? new Integer(0) : ranking);
+		properties.put(Constants.SERVICE_RANKING, getRanking(props == null ? null
+				: props.get(Constants.SERVICE_RANKING)));
 		this.registration = new ServiceRegistrationImpl();
 	}
 
+	/**
+	 * get the ranking from the value of the service.ranking property, a
+	 * value that is not an Integer counts as 0.
+	 */
+	private static Integer getRanking(final Object ranking) {
+		return ranking instanceof Integer ? (Integer) ranking
+				: new Integer(0);
+	}
+
 	private void checkService(final Object service, final String[] clazzes)
 			throws IllegalArgumentException {
 		if (service == null) {
@@ -518,6 +525,17 @@ final class ServiceReferenceImpl<S> implements ServiceReference<S> {
 				}
 			}
 
+			properties.put(Constants.SERVICE_RANKING,
+					getRanking(properties.get(Constants.SERVICE_RANKING)));
+
+			// a new ranking changes the position in the sorted registry
+			final Object oldRanking = oldProps.get(Constants.SERVICE_RANKING);
+			if (oldRanking == null ? properties
+					.get(Constants.SERVICE_RANKING) != null : !oldRanking
+					.equals(properties.get(Constants.SERVICE_RANKING))) {
+				framework.serviceRegistry.modified(ServiceReferenceImpl.this);
+			}
+
 			framework.notifyServiceListeners(ServiceEvent.MODIFIED,
 					ServiceReferenceImpl.this, oldProps);
 		}
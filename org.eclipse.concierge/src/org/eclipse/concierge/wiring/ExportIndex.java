@@ -0,0 +1,35 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Jan S. Rellermeyer, IBM Research - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.concierge.wiring;
+
+import java.util.List;
+
+import org.osgi.framework.wiring.BundleCapability;
+
+/**
+ * The package exports of the bundle wirings in use. The index is maintained
+ * by the framework when bundles are resolved, refreshed or uninstalled and
+ * can be obtained by adapting the system bundle to this type.
+ */
+public interface ExportIndex {
+
+	/**
+	 * get the exports of a package. The exports are sorted by the preference
+	 * of the framework: highest version first, then lowest bundle id.
+	 * 
+	 * @param pkg
+	 *            the package name or <code>null</code> for the exports of all
+	 *            packages.
+	 * @return the package capabilities, never <code>null</code>.
+	 */
+	List<BundleCapability> getExports(final String pkg);
+
+}
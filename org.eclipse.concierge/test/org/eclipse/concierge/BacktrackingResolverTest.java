@@ -0,0 +1,198 @@
+package org.eclipse.concierge;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.concierge.test.util.AbstractConciergeTestCase;
+import org.eclipse.concierge.test.util.SyntheticBundleBuilder;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.namespace.PackageNamespace;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+/**
+ * Tests the backtracking strategy of the resolver.
+ */
+public class BacktrackingResolverTest extends AbstractConciergeTestCase {
+
+	@After
+	public void tearDown() throws Exception {
+		if (framework != null) {
+			stopFramework();
+		}
+	}
+
+	private void start(final String strategy, final String timeout)
+			throws Exception {
+		final Map<String, String> launchArgs = new HashMap<String, String>();
+		launchArgs.put("org.eclipse.concierge.resolver.strategy", strategy);
+		if (timeout != null) {
+			launchArgs.put("org.eclipse.concierge.resolver.timeout", timeout);
+		}
+		startFrameworkClean(launchArgs);
+	}
+
+	private Bundle install(final String name, final String exports,
+			final String imports) throws Exception {
+		final SyntheticBundleBuilder builder = SyntheticBundleBuilder
+				.newBuilder();
+		builder.bundleSymbolicName(name);
+		if (exports != null) {
+			builder.addManifestHeader("Export-Package", exports);
+		}
+		if (imports != null) {
+			builder.addManifestHeader("Import-Package", imports);
+		}
+		return installBundle(builder);
+	}
+
+	private static Bundle getProvider(final Bundle bundle, final String pkg) {
+		final List<BundleWire> wires = bundle.adapt(BundleWiring.class)
+				.getRequiredWires(PackageNamespace.PACKAGE_NAMESPACE);
+		for (final BundleWire wire : wires) {
+			if (pkg.equals(wire.getCapability().getAttributes()
+					.get(PackageNamespace.PACKAGE_NAMESPACE))) {
+				return wire.getProviderWiring().getBundle();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * c imports p and q, q uses p and its exporter b can only import p 1.x.
+	 * Taking the highest version of p for c violates the uses constraint.
+	 */
+	private Bundle[] installUsesConflict() throws Exception {
+		final Bundle a1 = install("a1", "p;version=1.0", null);
+		final Bundle a2 = install("a2", "p;version=2.0", null);
+		final Bundle b = install("b", "q;uses:=p", "p;version=\"[1.0,2.0)\"");
+		final Bundle c = install("c", null, "p,q");
+		return new Bundle[] { a1, a2, b, c };
+	}
+
+	@Test
+	public void testUsesConstraint() throws Exception {
+		start("backtracking", null);
+		final Bundle[] bundles = installUsesConflict();
+
+		Assert.assertTrue(framework.adapt(FrameworkWiring.class)
+				.resolveBundles(Arrays.asList(bundles[3])));
+		Assert.assertSame(bundles[2], getProvider(bundles[3], "q"));
+		Assert.assertSame(bundles[0], getProvider(bundles[2], "p"));
+		Assert.assertSame(bundles[0], getProvider(bundles[3], "p"));
+	}
+
+	@Test
+	public void testOptionalImportIsDropped() throws Exception {
+		start("backtracking", null);
+		install("a1", "p;version=1.0", null);
+		final Bundle a2 = install("a2", "p;version=2.0", null);
+		final Bundle b = install("b", "q;uses:=p", "p;version=\"[1.0,2.0)\"");
+		final Bundle c = install("c", null,
+				"p;version=\"[2.0,3.0)\";resolution:=optional,q");
+		Assert.assertNotNull(a2);
+
+		Assert.assertTrue(framework.adapt(FrameworkWiring.class)
+				.resolveBundles(Arrays.asList(c)));
+		Assert.assertSame(b, getProvider(c, "q"));
+		Assert.assertNull(getProvider(c, "p"));
+	}
+
+	@Test
+	public void testTimeBudget() throws Exception {
+		start("backtracking", "0");
+		final Bundle[] bundles = installUsesConflict();
+
+		// falls back to the greedy order
+		Assert.assertTrue(framework.adapt(FrameworkWiring.class)
+				.resolveBundles(Arrays.asList(bundles[3])));
+		assertBundleResolved(bundles[3]);
+	}
+
+	/**
+	 * layers of bundles that import three packages of the layer below and
+	 * use them in their exports. Every package is exported in two versions,
+	 * the higher one only by bundles that cannot resolve.
+	 */
+	private void installLayers(final int layers, final int width)
+			throws Exception {
+		for (int l = 0; l < layers; l++) {
+			for (int i = 0; i < width; i++) {
+				final StringBuffer imports = new StringBuffer();
+				final StringBuffer uses = new StringBuffer();
+				for (int j = 0; l > 0 && j < 3; j++) {
+					final String pkg = "l" + (l - 1) + ".p" + (i + j) % width;
+					if (j > 0) {
+						imports.append(',');
+						uses.append(',');
+					}
+					imports.append(pkg);
+					uses.append(pkg);
+				}
+				final String pkg = "l" + l + ".p" + i;
+				install(pkg + ".v1", pkg + ";version=1.0"
+						+ (l > 0 ? ";uses:=\"" + uses + "\"" : ""),
+						l > 0 ? imports.toString() : null);
+				install(pkg + ".v2", pkg + ";version=2.0", "missing." + pkg);
+			}
+		}
+	}
+
+	/**
+	 * many copies of the uses conflict.
+	 */
+	private void installConflicts(final int count) throws Exception {
+		for (int i = 0; i < count; i++) {
+			install("a1." + i, "p" + i + ";version=1.0", null);
+			install("a2." + i, "p" + i + ";version=2.0", null);
+			install("b." + i, "q" + i + ";uses:=p" + i, "p" + i
+					+ ";version=\"[1.0,2.0)\"");
+			install("c." + i, null, "p" + i + ",q" + i);
+		}
+	}
+
+	private long time(final String strategy, final boolean layers)
+			throws Exception {
+		start(strategy, "60000");
+		if (layers) {
+			installLayers(10, 20);
+		} else {
+			installConflicts(100);
+		}
+		final long time = System.currentTimeMillis();
+		framework.adapt(FrameworkWiring.class).resolveBundles(null);
+		final long result = System.currentTimeMillis() - time;
+		stopFramework();
+		framework = null;
+		return result;
+	}
+
+	@Test
+	@Ignore("Move to performance tests")
+	public void testPerformance() throws Exception {
+		for (final boolean layers : new boolean[] { true, false }) {
+			// warm up
+			time("greedy", layers);
+			time("backtracking", layers);
+
+			final long time1 = time("greedy", layers);
+			final long time2 = time("backtracking", layers);
+
+			System.out.println(layers ? "layered graph" : "uses conflicts");
+			System.out.println("greedy: " + time1);
+			System.out.println("backtracking: " + time2);
+
+			System.out.println("difference (abs): " + (time2 - time1));
+			System.out.println("difference (%): " + (time2 - time1)
+					/ (float) Math.max(time1, time2) * 100);
+		}
+	}
+
+}
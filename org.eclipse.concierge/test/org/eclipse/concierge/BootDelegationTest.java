@@ -0,0 +1,110 @@
+package org.eclipse.concierge;
+
+import org.eclipse.concierge.Concierge.BootDelegation;
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+
+/**
+ * Tests the matching of the org.osgi.framework.bootdelegation patterns.
+ */
+public class BootDelegationTest {
+
+	@Test
+	public void testExact() {
+		final BootDelegation bd = new BootDelegation(new String[] {
+				"sun.misc", "javax.imageio" });
+		Assert.assertTrue(bd.matches("sun.misc"));
+		Assert.assertTrue(bd.matches("javax.imageio"));
+		Assert.assertFalse(bd.matches("sun"));
+		Assert.assertFalse(bd.matches("sun.misc.foo"));
+		Assert.assertFalse(bd.matches("sun.mis"));
+		Assert.assertFalse(bd.matches("javax.imageio2"));
+	}
+
+	@Test
+	public void testWildcard() {
+		final BootDelegation bd = new BootDelegation(new String[] { "sun.*",
+				"com.sun.fo*" });
+		Assert.assertTrue(bd.matches("sun.misc"));
+		Assert.assertTrue(bd.matches("sun.misc.foo"));
+		Assert.assertFalse(bd.matches("sun"));
+		Assert.assertFalse(bd.matches("sunny.misc"));
+		Assert.assertTrue(bd.matches("com.sun.fo"));
+		Assert.assertTrue(bd.matches("com.sun.foo"));
+		Assert.assertTrue(bd.matches("com.sun.foo.bar"));
+		Assert.assertFalse(bd.matches("com.sun.f"));
+		Assert.assertFalse(bd.matches("com.sun"));
+	}
+
+	@Test
+	public void testAll() {
+		final BootDelegation bd = new BootDelegation(new String[] { "*" });
+		Assert.assertTrue(bd.matches("a"));
+		Assert.assertTrue(bd.matches("a.b.c"));
+		Assert.assertTrue(bd.matches(""));
+	}
+
+	@Test
+	public void testNone() {
+		final BootDelegation bd = new BootDelegation(new String[0]);
+		Assert.assertFalse(bd.matches("sun.misc"));
+		Assert.assertFalse(bd.matches(""));
+	}
+
+	@Test
+	public void testCachedResult() {
+		final BootDelegation bd = new BootDelegation(new String[] { "sun.*" });
+		for (int i = 0; i < 2; i++) {
+			Assert.assertTrue(bd.matches("sun.misc"));
+			Assert.assertFalse(bd.matches("org.foo"));
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnsupportedWildcard() {
+		new BootDelegation(new String[] { "sun.*.misc" });
+	}
+
+	private static String[] patterns(final int count) {
+		final String[] patterns = new String[count];
+		for (int i = 0; i < count; i++) {
+			patterns[i] = (i % 2 == 0 ? "com.vendor" + i + ".*" : "org.vendor"
+					+ i + ".impl");
+		}
+		return patterns;
+	}
+
+	private static long time(final BootDelegation bd, final String[] pkgs) {
+		final long time = System.nanoTime();
+		for (int i = 0; i < 100000; i++) {
+			for (int j = 0; j < pkgs.length; j++) {
+				bd.lookup(pkgs[j]);
+			}
+		}
+		return System.nanoTime() - time;
+	}
+
+	@Test
+	@Ignore("Move to performance tests")
+	public void testPerformance() {
+		final String[] pkgs = new String[] { "org.eclipse.concierge",
+				"com.vendor4.impl", "org.vendor7.impl", "org.osgi.framework" };
+		final BootDelegation bd1 = new BootDelegation(patterns(4));
+		final BootDelegation bd2 = new BootDelegation(patterns(400));
+		// warm up
+		time(bd1, pkgs);
+		time(bd2, pkgs);
+
+		final long time1 = time(bd1, pkgs);
+		final long time2 = time(bd2, pkgs);
+
+		System.out.println("4 patterns: " + time1);
+		System.out.println("400 patterns: " + time2);
+
+		System.out.println("difference (abs): " + (time2 - time1));
+		System.out.println("difference (%): " + (time2 - time1)
+				/ (float) Math.max(time1, time2) * 100);
+	}
+
+}
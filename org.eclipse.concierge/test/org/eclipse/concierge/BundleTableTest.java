@@ -0,0 +1,94 @@
+package org.eclipse.concierge;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.eclipse.concierge.ConciergeCollections.LongMap;
+import org.eclipse.concierge.test.util.AbstractConciergeTestCase;
+import org.eclipse.concierge.test.util.SyntheticBundleBuilder;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+/**
+ * Tests the tables of installed bundles.
+ */
+public class BundleTableTest extends AbstractConciergeTestCase {
+
+	@After
+	public void tearDown() throws Exception {
+		if (framework != null) {
+			stopFramework();
+		}
+	}
+
+	@Test
+	public void testLongMap() {
+		final LongMap<String> map = new LongMap<String>();
+		Assert.assertNull(map.get(0));
+		for (long i = 0; i < 1000; i++) {
+			Assert.assertNull(map.put(i * 31, "v" + i));
+		}
+		Assert.assertEquals(1000, map.size());
+		Assert.assertEquals("v1", map.put(31, "w1"));
+		Assert.assertEquals(1000, map.size());
+		Assert.assertEquals("w1", map.get(31));
+		Assert.assertNull(map.get(32));
+
+		for (long i = 0; i < 1000; i += 2) {
+			Assert.assertNotNull(map.remove(i * 31));
+		}
+		Assert.assertNull(map.remove(0));
+		Assert.assertEquals(500, map.size());
+		for (long i = 2; i < 1000; i++) {
+			Assert.assertEquals(i % 2 == 0 ? null : "v" + i, map.get(i * 31));
+		}
+
+		Assert.assertNull(map.put(Long.MIN_VALUE, "min"));
+		Assert.assertNull(map.put(-1, "minus"));
+		Assert.assertEquals("min", map.get(Long.MIN_VALUE));
+		Assert.assertEquals("minus", map.get(-1));
+
+		map.clear();
+		Assert.assertEquals(0, map.size());
+		Assert.assertNull(map.get(31));
+	}
+
+	@Test
+	public void testGetBundle() throws Exception {
+		startFramework();
+		final SyntheticBundleBuilder builder = SyntheticBundleBuilder
+				.newBuilder();
+		builder.bundleSymbolicName("table");
+		final Bundle bundle = installBundle(builder);
+
+		Assert.assertSame(framework, bundleContext.getBundle(0));
+		Assert.assertSame(bundle, bundleContext.getBundle(bundle.getBundleId()));
+		Assert.assertSame(bundle,
+				bundleContext.getBundle(bundle.getLocation()));
+		Assert.assertNull(bundleContext.getBundle(bundle.getBundleId() + 1));
+
+		final Bundle[] bundles = bundleContext.getBundles();
+		Assert.assertSame(framework, bundles[0]);
+		Assert.assertTrue(Arrays.asList(bundles).contains(bundle));
+		// the caller owns the returned array
+		bundles[0] = null;
+		Assert.assertSame(framework, bundleContext.getBundles()[0]);
+
+		bundle.uninstall();
+		Assert.assertNull(bundleContext.getBundle(bundle.getLocation()));
+		framework.adapt(FrameworkWiring.class).refreshBundles(
+				Collections.singleton(bundle));
+		// refresh is asynchronous
+		for (int i = 0; i < 100
+				&& bundleContext.getBundle(bundle.getBundleId()) != null; i++) {
+			Thread.sleep(50);
+		}
+		Assert.assertNull(bundleContext.getBundle(bundle.getBundleId()));
+		Assert.assertFalse(Arrays.asList(bundleContext.getBundles()).contains(
+				bundle));
+	}
+
+}
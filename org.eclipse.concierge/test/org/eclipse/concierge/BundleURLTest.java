@@ -0,0 +1,97 @@
+package org.eclipse.concierge;
+
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+
+import org.eclipse.concierge.test.util.AbstractConciergeTestCase;
+import org.eclipse.concierge.test.util.SyntheticBundleBuilder;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+
+/**
+ * Tests the connections of bundle URLs.
+ */
+public class BundleURLTest extends AbstractConciergeTestCase {
+
+	private static final String CONTENT = "<html>static</html>";
+
+	private Bundle bundle;
+
+	@Before
+	public void setUp() throws Exception {
+		startFramework();
+		final SyntheticBundleBuilder builder = SyntheticBundleBuilder
+				.newBuilder();
+		builder.bundleSymbolicName("web");
+		builder.addFile("static/index.html", CONTENT);
+		bundle = installBundle(builder);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		stopFramework();
+	}
+
+	@Test
+	public void testConnection() throws Exception {
+		final URL url = bundle.getEntry("static/index.html");
+		Assert.assertEquals("bundle", url.getProtocol());
+
+		final URLConnection connection = url.openConnection();
+		Assert.assertEquals(CONTENT.length(), connection.getContentLength());
+		Assert.assertEquals(CONTENT.length(),
+				connection.getContentLengthLong());
+		Assert.assertEquals("text/html", connection.getContentType());
+		Assert.assertEquals(bundle.getLastModified(),
+				connection.getLastModified());
+
+		final InputStream in = connection.getInputStream();
+		final byte[] buffer = new byte[CONTENT.length()];
+		int read = 0;
+		int r;
+		while (read < buffer.length
+				&& (r = in.read(buffer, read, buffer.length - read)) > -1) {
+			read += r;
+		}
+		in.close();
+		Assert.assertEquals(CONTENT, new String(buffer, 0, read, "UTF-8"));
+	}
+
+	@Test
+	public void testContentTypeOfEmbeddedEntry() throws Exception {
+		final URL url = bundle.getEntry("static/index.html");
+		// the entry of an embedded jar is the fragment of the URL
+		Assert.assertEquals("text/html", new URL(url,
+				"/lib/embedded.jar#static/index.html").openConnection()
+				.getContentType());
+	}
+
+	@Test
+	public void testSameHostTwice() throws Exception {
+		for (int i = 0; i < 2; i++) {
+			final URLConnection connection = bundle.getEntry(
+					"static/index.html").openConnection();
+			Assert.assertEquals(CONTENT.length(),
+					connection.getContentLength());
+		}
+	}
+
+	@Test(expected = FileNotFoundException.class)
+	public void testMissingEntry() throws Exception {
+		final URL url = bundle.getEntry("static/index.html");
+		new URL(url, "/static/missing.html").openStream();
+	}
+
+	@Test
+	public void testMissingEntryLength() throws Exception {
+		final URL url = bundle.getEntry("static/index.html");
+		Assert.assertEquals(-1, new URL(url, "/static/missing.html")
+				.openConnection().getContentLength());
+	}
+
+}
@@ -0,0 +1,170 @@
+package org.eclipse.concierge;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.concierge.Concierge.CapabilityRegistry;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.resource.Capability;
+import org.osgi.resource.Requirement;
+import org.osgi.resource.Resource;
+
+/**
+ * Tests the attribute index of the capability registry.
+ */
+public class CapabilityIndexTest {
+
+	private static final String NS = "osgi.extender";
+
+	private CapabilityRegistry registry;
+
+	private Capability http;
+
+	private Capability jpa;
+
+	private Capability list;
+
+	@Before
+	public void setUp() {
+		registry = new CapabilityRegistry();
+		http = capability(NS, "osgi.http", "vendor", "a");
+		jpa = capability(NS, "osgi.jpa", "vendor", "b");
+		list = capability(NS, "osgi.cdi", "tags",
+				Arrays.asList("x", "y"));
+		registry.add(http);
+		registry.add(jpa);
+		registry.add(list);
+	}
+
+	private List<Capability> find(final String filter) throws Exception {
+		final Map<String, String> directives = new HashMap<String, String>();
+		directives.put("filter", filter);
+		return RFC1960Filter.filterWithIndex(new Requirement() {
+			public String getNamespace() {
+				return NS;
+			}
+
+			public Map<String, String> getDirectives() {
+				return directives;
+			}
+
+			public Map<String, Object> getAttributes() {
+				return Collections.emptyMap();
+			}
+
+			public Resource getResource() {
+				return null;
+			}
+		}, filter, registry);
+	}
+
+	private static Capability capability(final String namespace,
+			final String value, final String key, final Object attr) {
+		final Map<String, Object> attributes = new HashMap<String, Object>();
+		attributes.put(namespace, value);
+		attributes.put(key, attr);
+		return new Capability() {
+			public String getNamespace() {
+				return namespace;
+			}
+
+			public Map<String, String> getDirectives() {
+				return Collections.emptyMap();
+			}
+
+			public Map<String, Object> getAttributes() {
+				return attributes;
+			}
+
+			public Resource getResource() {
+				return null;
+			}
+
+			public String toString() {
+				return value;
+			}
+		};
+	}
+
+	@Test
+	public void testNonDefaultAttribute() throws Exception {
+		Assert.assertEquals(Collections.singletonList(jpa),
+				registry.getByAttribute(NS, "VENDOR", "b"));
+		Assert.assertEquals(Collections.singletonList(list),
+				registry.getByAttribute(NS, "tags", "y"));
+		Assert.assertTrue(registry.getByAttribute(NS, "vendor", "c")
+				.isEmpty());
+		Assert.assertTrue(registry.getByAttribute(NS, "missing", "c")
+				.isEmpty());
+
+		Assert.assertEquals(Collections.singletonList(jpa),
+				find("(&(vendor=b)(osgi.extender=*))"));
+		final CapabilityRegistry.CandidateCount count = registry
+				.getCandidateCounts().get(NS);
+		Assert.assertEquals(1, count.lookups);
+		Assert.assertEquals(1, count.candidates);
+		Assert.assertEquals(1, count.matches);
+	}
+
+	@Test
+	public void testOrKeepsOrder() throws Exception {
+		Assert.assertEquals(Arrays.asList(http, list),
+				find("(|(tags=x)(osgi.extender=osgi.http))"));
+		Assert.assertEquals(2, registry.getCandidateCounts().get(NS).candidates);
+	}
+
+	@Test
+	public void testNotIsNotNarrowed() throws Exception {
+		Assert.assertEquals(Arrays.asList(http, list),
+				find("(!(vendor=b))"));
+		Assert.assertEquals(3, registry.getCandidateCounts().get(NS).candidates);
+	}
+
+	@Test
+	public void testUnindexedValues() throws Exception {
+		final Capability numeric = capability(NS, "osgi.numeric", "vendor",
+				Long.valueOf(7));
+		registry.add(numeric);
+		// a number cannot be looked up by its string value
+		Assert.assertNull(registry.getByAttribute(NS, "vendor", "7"));
+		Assert.assertEquals(Collections.singletonList(numeric),
+				find("(vendor=7)"));
+
+		registry.remove(numeric);
+		Assert.assertEquals(Collections.singletonList(jpa),
+				registry.getByAttribute(NS, "vendor", "b"));
+	}
+
+	@Test
+	public void testRemove() throws Exception {
+		registry.remove(jpa);
+		Assert.assertTrue(registry.getByAttribute(NS, "vendor", "b")
+				.isEmpty());
+		Assert.assertTrue(find("(vendor=b)").isEmpty());
+		Assert.assertEquals(Arrays.asList(http, list), registry.getAll(NS));
+		Assert.assertEquals(Collections.singletonList(http),
+				registry.getByValue(NS, "osgi.http"));
+	}
+
+	@Test
+	public void testRemoveUnknown() throws Exception {
+		final Capability unknown = capability(NS, "osgi.jpa", "vendor",
+				Long.valueOf(7));
+		Assert.assertFalse(registry.remove(unknown));
+		Assert.assertEquals(Collections.singletonList(jpa),
+				registry.getByKey(NS, "osgi.jpa"));
+		Assert.assertEquals(Collections.singletonList(jpa),
+				registry.getByAttribute(NS, "vendor", "b"));
+
+		// the index of vendor is kept as long as http has the attribute
+		registry.remove(jpa);
+		Assert.assertEquals(Collections.singletonList(http),
+				registry.getByAttribute(NS, "vendor", "a"));
+	}
+
+}
@@ -0,0 +1,88 @@
+package org.eclipse.concierge;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.Arrays;
+
+import org.eclipse.concierge.test.util.AbstractConciergeTestCase;
+import org.eclipse.concierge.test.util.SyntheticBundleBuilder;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.wiring.BundleRevision;
+
+/**
+ * Tests the reading of class bytes.
+ */
+public class ClassBytesTest extends AbstractConciergeTestCase {
+
+	private static final String CLASS = "org.eclipse.concierge.ZipFilePoolTest";
+
+	private File inner;
+
+	@After
+	public void tearDown() throws Exception {
+		stopFramework();
+		if (inner != null) {
+			inner.delete();
+		}
+	}
+
+	private static File classFile() throws Exception {
+		return new File(ZipFilePoolTest.class.getResource(
+				"ZipFilePoolTest.class").toURI());
+	}
+
+	@Test
+	public void testReadBytes() throws Exception {
+		final byte[] data = new byte[10000];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) i;
+		}
+		Assert.assertTrue(Arrays.equals(data, BundleImpl.readBytes(
+				new ByteArrayInputStream(data), data.length)));
+		Assert.assertTrue(Arrays.equals(data, BundleImpl.readBytes(
+				new ByteArrayInputStream(data), -1)));
+		Assert.assertTrue(Arrays.equals(data, BundleImpl.readBytes(
+				new ByteArrayInputStream(data), data.length + 10)));
+		Assert.assertEquals(0,
+				BundleImpl.readBytes(new ByteArrayInputStream(data), 0).length);
+	}
+
+	@Test
+	public void testLoadClass() throws Exception {
+		startFramework();
+		inner = File.createTempFile("inner", ".jar");
+		final SyntheticBundleBuilder innerBuilder = SyntheticBundleBuilder
+				.newBuilder();
+		innerBuilder.bundleSymbolicName("inner");
+		innerBuilder.addFile("org/eclipse/concierge/ZipFilePoolTest.class",
+				classFile());
+		innerBuilder.asFile(inner.getAbsolutePath());
+
+		final SyntheticBundleBuilder rootBuilder = SyntheticBundleBuilder
+				.newBuilder();
+		rootBuilder.bundleSymbolicName("root");
+		rootBuilder.addFile("org/eclipse/concierge/ZipFilePoolTest.class",
+				classFile());
+		final Bundle root = installBundle(rootBuilder);
+
+		final SyntheticBundleBuilder embeddedBuilder = SyntheticBundleBuilder
+				.newBuilder();
+		embeddedBuilder.bundleSymbolicName("embedded");
+		embeddedBuilder.addManifestHeader("Bundle-ClassPath",
+				".,lib/inner.jar");
+		embeddedBuilder.addFile("lib/inner.jar", inner);
+		final Bundle embedded = installBundle(embeddedBuilder);
+
+		for (final Bundle bundle : new Bundle[] { root, embedded }) {
+			final Class<?> clazz = bundle.loadClass(CLASS);
+			Assert.assertEquals(CLASS, clazz.getName());
+			Assert.assertSame(((BundleImpl.Revision) bundle
+					.adapt(BundleRevision.class)).classloader,
+					clazz.getClassLoader());
+		}
+	}
+
+}
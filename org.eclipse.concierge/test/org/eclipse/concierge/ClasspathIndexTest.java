@@ -0,0 +1,70 @@
+package org.eclipse.concierge;
+
+import java.io.File;
+
+import org.eclipse.concierge.test.util.AbstractConciergeTestCase;
+import org.eclipse.concierge.test.util.SyntheticBundleBuilder;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.wiring.BundleRevision;
+
+/**
+ * Tests the lookup of resources through the directory index of the bundle
+ * classpath.
+ */
+public class ClasspathIndexTest extends AbstractConciergeTestCase {
+
+	private File inner;
+
+	@Before
+	public void setUp() throws Exception {
+		startFramework();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		stopFramework();
+		if (inner != null) {
+			inner.delete();
+		}
+	}
+
+	@Test
+	public void testLookupInClasspathEntries() throws Exception {
+		inner = File.createTempFile("inner", ".jar");
+		final SyntheticBundleBuilder innerBuilder = SyntheticBundleBuilder
+				.newBuilder();
+		innerBuilder.bundleSymbolicName("inner");
+		innerBuilder.addFile("b/c/inner.txt", "inner");
+		innerBuilder.asFile(inner.getAbsolutePath());
+
+		final SyntheticBundleBuilder builder = SyntheticBundleBuilder
+				.newBuilder();
+		builder.bundleSymbolicName("outer");
+		builder.addManifestHeader("Bundle-ClassPath", ".,lib/inner.jar");
+		builder.addFile("a/outer.txt", "outer");
+		builder.addFile("lib/inner.jar", inner);
+		final Bundle bundle = installBundle(builder);
+
+		Assert.assertNotNull(bundle.getResource("a/outer.txt"));
+		Assert.assertNotNull(bundle.getResource("b/c/inner.txt"));
+		Assert.assertNull(bundle.getResource("b/c/missing.txt"));
+		Assert.assertNull(bundle.getResource("x/y/missing.txt"));
+		assertBundleResolved(bundle);
+
+		final BundleImpl.Revision revision = (BundleImpl.Revision) bundle
+				.adapt(BundleRevision.class);
+		Assert.assertTrue(revision.mayContain(".", "a/outer.txt"));
+		Assert.assertTrue(revision.mayContain(".", "/a/other.txt"));
+		Assert.assertFalse(revision.mayContain(".", "b/c/inner.txt"));
+		Assert.assertTrue(revision.mayContain("lib/inner.jar", "b/c/x.txt"));
+		Assert.assertTrue(revision.mayContain("lib/inner.jar", "b/c/"));
+		Assert.assertTrue(revision.mayContain("lib/inner.jar", "b/x.txt"));
+		Assert.assertFalse(revision.mayContain("lib/inner.jar", "a/outer.txt"));
+		Assert.assertFalse(revision.mayContain("lib/missing.jar", "a/x.txt"));
+	}
+
+}
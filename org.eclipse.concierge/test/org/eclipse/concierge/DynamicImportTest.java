@@ -0,0 +1,140 @@
+package org.eclipse.concierge;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.concierge.BundleImpl.DynamicImportMatcher;
+import org.eclipse.concierge.test.util.AbstractConciergeTestCase;
+import org.eclipse.concierge.test.util.SyntheticBundleBuilder;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.namespace.PackageNamespace;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRequirement;
+import org.osgi.framework.wiring.BundleRevision;
+
+/**
+ * Tests the matching and the resolution of dynamic imports.
+ */
+public class DynamicImportTest extends AbstractConciergeTestCase {
+
+	@After
+	public void tearDown() throws Exception {
+		if (framework != null) {
+			stopFramework();
+		}
+	}
+
+	private static BundleRequirement dynamicImport(final String pattern) {
+		final Map<String, String> directives = new HashMap<String, String>();
+		directives.put(Concierge.DIR_INTERNAL, pattern);
+		return new BundleRequirement() {
+			public String getNamespace() {
+				return PackageNamespace.PACKAGE_NAMESPACE;
+			}
+
+			public Map<String, String> getDirectives() {
+				return directives;
+			}
+
+			public Map<String, Object> getAttributes() {
+				return Collections.emptyMap();
+			}
+
+			public BundleRevision getRevision() {
+				return null;
+			}
+
+			public BundleRevision getResource() {
+				return null;
+			}
+
+			public boolean matches(final BundleCapability capability) {
+				return false;
+			}
+
+			public String toString() {
+				return pattern;
+			}
+		};
+	}
+
+	@Test
+	public void testMatcher() {
+		final BundleRequirement exact = dynamicImport("p.q");
+		final BundleRequirement prefix = dynamicImport("p.*");
+		final BundleRequirement glob = dynamicImport("p.*.impl");
+		final BundleRequirement all = dynamicImport("*");
+		final List<BundleRequirement> imports = new ArrayList<BundleRequirement>(
+				Arrays.asList(exact, prefix, glob, all));
+		final DynamicImportMatcher matcher = new DynamicImportMatcher(imports);
+
+		Assert.assertEquals(Arrays.asList(exact, prefix, all),
+				matcher.match("p.q"));
+		Assert.assertEquals(Arrays.asList(prefix, glob, all),
+				matcher.match("p.r.impl"));
+		Assert.assertEquals(Arrays.asList(all), matcher.match("p"));
+		Assert.assertEquals(Arrays.asList(all), matcher.match("org.foo"));
+
+		Assert.assertTrue(matcher.isCurrent(imports));
+		imports.remove(exact);
+		Assert.assertFalse(matcher.isCurrent(imports));
+		Assert.assertTrue(new DynamicImportMatcher(imports).match("x")
+				.contains(all));
+	}
+
+	@Test
+	public void testMissingPackageBecomesAvailable() throws Exception {
+		startFramework();
+		final SyntheticBundleBuilder consumerBuilder = SyntheticBundleBuilder
+				.newBuilder();
+		consumerBuilder.bundleSymbolicName("consumer");
+		consumerBuilder.addManifestHeader("DynamicImport-Package", "*");
+		final Bundle consumer = installBundle(consumerBuilder);
+		enforceResolveBundle(consumer);
+		assertBundleResolved(consumer);
+
+		for (int i = 0; i < 2; i++) {
+			Assert.assertNull(consumer.getResource("p/dyn/res.txt"));
+		}
+
+		final SyntheticBundleBuilder providerBuilder = SyntheticBundleBuilder
+				.newBuilder();
+		providerBuilder.bundleSymbolicName("provider");
+		providerBuilder.addManifestHeader("Export-Package",
+				"p.dyn;version=2.0");
+		providerBuilder.addFile("p/dyn/res.txt", "res");
+		installBundle(providerBuilder);
+
+		Assert.assertNotNull(consumer.getResource("p/dyn/res.txt"));
+	}
+
+	@Test
+	public void testVersionOfWildcardImport() throws Exception {
+		startFramework();
+		final SyntheticBundleBuilder providerBuilder = SyntheticBundleBuilder
+				.newBuilder();
+		providerBuilder.bundleSymbolicName("provider");
+		providerBuilder.addManifestHeader("Export-Package",
+				"p.dyn;version=1.0");
+		providerBuilder.addFile("p/dyn/res.txt", "res");
+		installBundle(providerBuilder);
+
+		final SyntheticBundleBuilder consumerBuilder = SyntheticBundleBuilder
+				.newBuilder();
+		consumerBuilder.bundleSymbolicName("consumer");
+		consumerBuilder.addManifestHeader("DynamicImport-Package",
+				"p.*;version=2.0");
+		final Bundle consumer = installBundle(consumerBuilder);
+		enforceResolveBundle(consumer);
+
+		Assert.assertNull(consumer.getResource("p/dyn/res.txt"));
+	}
+
+}
@@ -0,0 +1,111 @@
+package org.eclipse.concierge;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.concierge.test.util.AbstractConciergeTestCase;
+import org.eclipse.concierge.test.util.SyntheticBundleBuilder;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+
+/**
+ * Tests the lookup of resources in jars embedded in packed bundles.
+ */
+public class EmbeddedJarTest extends AbstractConciergeTestCase {
+
+	private File inner;
+
+	@After
+	public void tearDown() throws Exception {
+		stopFramework();
+		if (inner != null) {
+			inner.delete();
+		}
+	}
+
+	private Bundle install(final boolean extract) throws Exception {
+		final Map<String, String> launchArgs = new HashMap<String, String>();
+		launchArgs.put("org.eclipse.concierge.decompressEmbedded", "false");
+		launchArgs.put("org.eclipse.concierge.extractEmbedded",
+				String.valueOf(extract));
+		startFrameworkClean(launchArgs);
+
+		inner = File.createTempFile("inner", ".jar");
+		final SyntheticBundleBuilder innerBuilder = SyntheticBundleBuilder
+				.newBuilder();
+		innerBuilder.bundleSymbolicName("inner");
+		innerBuilder.addFile("b/inner.txt", "inner");
+		innerBuilder.asFile(inner.getAbsolutePath());
+
+		final SyntheticBundleBuilder builder = SyntheticBundleBuilder
+				.newBuilder();
+		builder.bundleSymbolicName("packed");
+		builder.addManifestHeader("Bundle-ClassPath",
+				".,lib/inner.jar,classes");
+		builder.addFile("lib/inner.jar", inner);
+		builder.addFile("classes/", "");
+		builder.addFile("classes/c/dir.txt", "dir");
+		return installBundle(builder);
+	}
+
+	private static String read(final URL url) throws Exception {
+		final BufferedReader reader = new BufferedReader(
+				new InputStreamReader(url.openStream(), "UTF-8"));
+		try {
+			return reader.readLine();
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static boolean isExtracted() {
+		final String[] files = new File("storage/default/1").list();
+		for (int i = 0; i < files.length; i++) {
+			if (files[i].startsWith("embedded")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Test
+	public void testPackedLookup() throws Exception {
+		final Bundle bundle = install(false);
+		Assert.assertEquals("inner", read(bundle.getResource("b/inner.txt")));
+		Assert.assertNull(bundle.getResource("b/missing.txt"));
+		Assert.assertFalse(isExtracted());
+	}
+
+	@Test
+	public void testExtractedLookup() throws Exception {
+		final Bundle bundle = install(true);
+		final URL url = bundle.getResource("b/inner.txt");
+		Assert.assertEquals("inner", read(url));
+		Assert.assertNull(bundle.getResource("b/missing.txt"));
+		Assert.assertTrue(isExtracted());
+		// same URL as without extraction
+		Assert.assertEquals("/lib/inner.jar", url.getPath());
+		Assert.assertEquals("b/inner.txt", url.getRef());
+	}
+
+	@Test
+	public void testDirectoryOnClasspath() throws Exception {
+		for (int i = 0; i < 2; i++) {
+			final Bundle bundle = install(i == 1);
+			Assert.assertEquals("dir", read(bundle.getResource("c/dir.txt")));
+			Assert.assertEquals("inner",
+					read(bundle.getResource("b/inner.txt")));
+			Assert.assertNull(bundle.getResource("c/missing.txt"));
+			stopFramework();
+			inner.delete();
+		}
+		startFramework();
+	}
+
+}
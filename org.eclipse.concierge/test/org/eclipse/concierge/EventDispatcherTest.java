@@ -0,0 +1,175 @@
+package org.eclipse.concierge;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.concierge.Concierge.EventDispatcher;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EventDispatcherTest {
+
+	private EventDispatcher dispatcher;
+
+	@Before
+	public void setUp() throws Exception {
+		dispatcher = new EventDispatcher(4, 16);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		dispatcher.shutdown(5000);
+	}
+
+	@Test
+	public void testOrderPerListener() throws Exception {
+		final Object[] listeners = { new Object(), new Object(), new Object() };
+		final List<List<Integer>> received = new ArrayList<List<Integer>>();
+		for (int i = 0; i < listeners.length; i++) {
+			received.add(Collections.synchronizedList(new ArrayList<Integer>()));
+		}
+
+		for (int n = 0; n < 500; n++) {
+			for (int i = 0; i < listeners.length; i++) {
+				final List<Integer> list = received.get(i);
+				final Integer value = new Integer(n);
+				dispatcher.deliver(listeners[i], new Runnable() {
+					public void run() {
+						list.add(value);
+					}
+				});
+			}
+		}
+		dispatcher.shutdown(5000);
+
+		for (int i = 0; i < listeners.length; i++) {
+			final List<Integer> list = received.get(i);
+			assertEquals(500, list.size());
+			for (int n = 0; n < 500; n++) {
+				assertEquals(n, list.get(n).intValue());
+			}
+		}
+		assertEquals(1500, dispatcher.getStatistics()[0]);
+		assertEquals(0, dispatcher.getDepth());
+		assertTrue(dispatcher.getStatistics()[1] <= 16);
+	}
+
+	@Test
+	public void testSlowListenerDoesNotBlockOthers() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch fast = new CountDownLatch(1);
+
+		dispatcher.deliver(new Object(), new Runnable() {
+			public void run() {
+				try {
+					release.await(10, TimeUnit.SECONDS);
+				} catch (final InterruptedException ie) {
+					// ignore
+				}
+			}
+		});
+		dispatcher.deliver(new Object(), new Runnable() {
+			public void run() {
+				fast.countDown();
+			}
+		});
+
+		assertTrue(fast.await(5, TimeUnit.SECONDS));
+		release.countDown();
+	}
+
+	@Test
+	public void testDeliveryThread() throws Exception {
+		final Thread[] thread = new Thread[1];
+		final CountDownLatch done = new CountDownLatch(1);
+		dispatcher.deliver(this, new Runnable() {
+			public void run() {
+				thread[0] = Thread.currentThread();
+				done.countDown();
+			}
+		});
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertTrue(thread[0] != Thread.currentThread());
+		assertTrue(thread[0].isDaemon());
+	}
+
+	@Test
+	public void testSynchronousDelivery() throws Exception {
+		final EventDispatcher sync = new EventDispatcher(0, 16);
+		final Thread[] thread = new Thread[1];
+		sync.deliver(this, new Runnable() {
+			public void run() {
+				thread[0] = Thread.currentThread();
+			}
+		});
+		assertSame(Thread.currentThread(), thread[0]);
+	}
+
+	@Test
+	public void testSynchronousAfterShutdown() throws Exception {
+		dispatcher.shutdown(5000);
+		final Thread[] thread = new Thread[1];
+		dispatcher.deliver(this, new Runnable() {
+			public void run() {
+				thread[0] = Thread.currentThread();
+			}
+		});
+		assertSame(Thread.currentThread(), thread[0]);
+
+		dispatcher.open();
+		final CountDownLatch done = new CountDownLatch(1);
+		dispatcher.deliver(this, new Runnable() {
+			public void run() {
+				thread[0] = Thread.currentThread();
+				done.countDown();
+			}
+		});
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertTrue(thread[0] != Thread.currentThread());
+	}
+
+	@Test
+	public void testFullQueueDoesNotBlock() throws Exception {
+		final EventDispatcher small = new EventDispatcher(1, 1);
+		final Object lock = new Object();
+		final List<Integer> received = Collections
+				.synchronizedList(new ArrayList<Integer>());
+		final Object slow = new Object();
+		final Thread[] thread = new Thread[1];
+		try {
+			synchronized (lock) {
+				// the listener waits for a lock of the firing thread
+				for (int n = 0; n < 2; n++) {
+					final Integer value = new Integer(n);
+					small.deliver(slow, new Runnable() {
+						public void run() {
+							synchronized (lock) {
+								received.add(value);
+							}
+						}
+					});
+				}
+				small.deliver(this, new Runnable() {
+					public void run() {
+						thread[0] = Thread.currentThread();
+					}
+				});
+				assertSame(Thread.currentThread(), thread[0]);
+			}
+		} finally {
+			small.shutdown(5000);
+		}
+		assertEquals(2, received.size());
+		assertEquals(0, received.get(0).intValue());
+		assertEquals(1, received.get(1).intValue());
+	}
+
+}
@@ -0,0 +1,98 @@
+package org.eclipse.concierge;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.eclipse.concierge.test.util.AbstractConciergeTestCase;
+import org.eclipse.concierge.test.util.SyntheticBundleBuilder;
+import org.eclipse.concierge.wiring.ExportIndex;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+/**
+ * Tests the export index of the framework.
+ */
+public class ExportIndexTest extends AbstractConciergeTestCase {
+
+	@After
+	public void tearDown() throws Exception {
+		if (framework != null) {
+			stopFramework();
+		}
+	}
+
+	private Bundle exporter(final String name, final String version)
+			throws Exception {
+		final SyntheticBundleBuilder builder = SyntheticBundleBuilder
+				.newBuilder();
+		builder.bundleSymbolicName(name);
+		builder.addManifestHeader("Export-Package", "p;version=" + version);
+		final Bundle bundle = installBundle(builder);
+		enforceResolveBundle(bundle);
+		assertBundleResolved(bundle);
+		return bundle;
+	}
+
+	private static BundleCapability export(final Bundle bundle) {
+		return bundle.adapt(BundleRevision.class)
+				.getDeclaredCapabilities("osgi.wiring.package").get(0);
+	}
+
+	@Test
+	public void testOrderAndRefresh() throws Exception {
+		startFramework();
+		final ExportIndex index = framework.adapt(ExportIndex.class);
+		Assert.assertNotNull(index);
+		Assert.assertTrue(index.getExports("p").isEmpty());
+		Assert.assertSame(framework, index.getExports("org.osgi.framework")
+				.get(0).getRevision().getBundle());
+
+		final Bundle a = exporter("a", "1.0.0");
+		final Bundle b = exporter("b", "2.0.0");
+		final Bundle c = exporter("c", "2.0.0");
+		Assert.assertEquals(Arrays.asList(export(b), export(c), export(a)),
+				index.getExports("p"));
+		Assert.assertTrue(index.getExports(null).containsAll(
+				index.getExports("p")));
+
+		// an unresolved exporter is not indexed
+		final SyntheticBundleBuilder builder = SyntheticBundleBuilder
+				.newBuilder();
+		builder.bundleSymbolicName("unresolved");
+		builder.addManifestHeader("Export-Package", "p;version=3.0.0");
+		builder.addManifestHeader("Import-Package", "missing");
+		installBundle(builder);
+		Assert.assertEquals(3, index.getExports("p").size());
+
+		final SyntheticBundleBuilder importerBuilder = SyntheticBundleBuilder
+				.newBuilder();
+		importerBuilder.bundleSymbolicName("importer");
+		importerBuilder.addManifestHeader("Import-Package", "p");
+		final Bundle importer = installBundle(importerBuilder);
+		enforceResolveBundle(importer);
+		assertBundleResolved(importer);
+
+		// the export stays until the importer is refreshed
+		final BundleCapability removed = export(b);
+		b.uninstall();
+		Assert.assertEquals(Arrays.asList(removed, export(c), export(a)),
+				index.getExports("p"));
+
+		framework.adapt(FrameworkWiring.class).refreshBundles(
+				Collections.singleton(b));
+		// refresh is asynchronous
+		List<BundleCapability> exports = index.getExports("p");
+		for (int i = 0; i < 100 && exports.contains(removed); i++) {
+			Thread.sleep(50);
+			exports = index.getExports("p");
+		}
+		Assert.assertEquals(Arrays.asList(export(c), export(a)), exports);
+	}
+
+}
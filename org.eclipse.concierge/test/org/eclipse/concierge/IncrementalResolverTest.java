@@ -0,0 +1,136 @@
+package org.eclipse.concierge;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.concierge.test.util.AbstractConciergeTestCase;
+import org.eclipse.concierge.test.util.SyntheticBundleBuilder;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWiring;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+/**
+ * Tests the incremental mode of the resolver.
+ */
+public class IncrementalResolverTest extends AbstractConciergeTestCase {
+
+	private FrameworkWiring frameworkWiring;
+
+	@Before
+	public void setUp() throws Exception {
+		final Map<String, String> launchArgs = new HashMap<String, String>();
+		launchArgs.put("org.eclipse.concierge.resolver.incremental", "true");
+		startFrameworkClean(launchArgs);
+		frameworkWiring = framework.adapt(FrameworkWiring.class);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		stopFramework();
+	}
+
+	private Bundle install(final String name, final String exports,
+			final String imports) throws Exception {
+		final SyntheticBundleBuilder builder = SyntheticBundleBuilder
+				.newBuilder();
+		builder.bundleSymbolicName(name);
+		if (exports != null) {
+			builder.addManifestHeader("Export-Package", exports);
+		}
+		if (imports != null) {
+			builder.addManifestHeader("Import-Package", imports);
+		}
+		return installBundle(builder);
+	}
+
+	private int touched() {
+		return ((Concierge) framework).resolver.touched.size();
+	}
+
+	@Test
+	public void testOnlyAffectedResourcesAreResolved() throws Exception {
+		final Bundle a = install("a", "p", null);
+		final Bundle c = install("c", null, "p");
+		final Bundle x = install("x", "q", "missing");
+		final Bundle y = install("y", null, "q");
+		final Bundle z = install("z", null, "other");
+
+		Assert.assertFalse(frameworkWiring.resolveBundles(null));
+		Assert.assertEquals(5, touched());
+		assertBundleResolved(a);
+		assertBundleResolved(c);
+		final ResolutionGraphView graph = new ResolutionGraphView();
+		Assert.assertTrue(graph.isFailed(x));
+		Assert.assertTrue(graph.isFailed(y));
+		Assert.assertTrue(graph.isFailed(z));
+
+		// nothing changed
+		Assert.assertFalse(frameworkWiring.resolveBundles(null));
+		Assert.assertEquals(0, touched());
+		Assert.assertEquals(1, c.adapt(BundleWiring.class)
+				.getRequiredWires(null).size());
+
+		// a new candidate for z
+		install("e", "other", null);
+		Assert.assertFalse(graph.isFailed(z));
+		Assert.assertTrue(graph.isFailed(x));
+		Assert.assertFalse(frameworkWiring.resolveBundles(null));
+		Assert.assertEquals(2, touched());
+		assertBundleResolved(z);
+
+		// starting a bundle still reports the failure
+		try {
+			x.start();
+			Assert.fail("x should not resolve");
+		} catch (final BundleException e) {
+			// expected
+		}
+
+		// a new candidate for x, y depends on x
+		install("m", "missing", null);
+		Assert.assertFalse(graph.isFailed(x));
+		Assert.assertFalse(graph.isFailed(y));
+		Assert.assertTrue(frameworkWiring.resolveBundles(null));
+		Assert.assertEquals(3, touched());
+		assertBundleResolved(y);
+		Assert.assertEquals(0, graph.size());
+	}
+
+	@Test
+	public void testUninstalledCandidate() throws Exception {
+		final Bundle x = install("x", "q", "missing");
+		final Bundle y = install("y", null, "q");
+		Assert.assertFalse(frameworkWiring.resolveBundles(null));
+		final ResolutionGraphView graph = new ResolutionGraphView();
+		Assert.assertTrue(graph.isFailed(y));
+
+		x.uninstall();
+		Assert.assertFalse(graph.isFailed(y));
+		install("x2", "q", null);
+		Assert.assertTrue(frameworkWiring.resolveBundles(Collections
+				.singleton(y)));
+		assertBundleResolved(y);
+	}
+
+	private class ResolutionGraphView {
+
+		private final Concierge.ResolutionGraph graph = ((Concierge) framework).resolution;
+
+		boolean isFailed(final Bundle bundle) {
+			return graph.isFailed(bundle.adapt(BundleRevision.class));
+		}
+
+		int size() {
+			return graph.size();
+		}
+
+	}
+
+}
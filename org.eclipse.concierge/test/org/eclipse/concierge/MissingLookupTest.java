@@ -0,0 +1,91 @@
+package org.eclipse.concierge;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.concierge.test.util.AbstractConciergeTestCase;
+import org.eclipse.concierge.test.util.SyntheticBundleBuilder;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.wiring.BundleRevision;
+
+/**
+ * Tests the classes and resources remembered as missing by the bundle class
+ * loaders.
+ */
+public class MissingLookupTest extends AbstractConciergeTestCase {
+
+	@After
+	public void tearDown() throws Exception {
+		stopFramework();
+	}
+
+	private BundleImpl.Revision.BundleClassLoader installConsumer()
+			throws Exception {
+		final SyntheticBundleBuilder builder = SyntheticBundleBuilder
+				.newBuilder();
+		builder.bundleSymbolicName("consumer");
+		builder.addManifestHeader("DynamicImport-Package", "p.dyn");
+		final Bundle bundle = installBundle(builder);
+		final BundleImpl.Revision.BundleClassLoader loader = ((BundleImpl.Revision) bundle
+				.adapt(BundleRevision.class)).classloader;
+		Assert.assertNull(loader.getResource("p/dyn/res.txt"));
+		assertBundleResolved(bundle);
+		return loader;
+	}
+
+	private static void assertClassMissing(
+			final BundleImpl.Revision.BundleClassLoader loader) {
+		try {
+			loader.loadClass("p.dyn.Missing");
+			Assert.fail("class must not be found");
+		} catch (final ClassNotFoundException cnfe) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testMissesAreRemembered() throws Exception {
+		startFramework();
+		final BundleImpl.Revision.BundleClassLoader loader = installConsumer();
+
+		assertClassMissing(loader);
+		Assert.assertNull(loader.getResource("p/dyn/res.txt"));
+		final long hits = loader.getMissHits();
+		assertClassMissing(loader);
+		Assert.assertNull(loader.getResource("p/dyn/res.txt"));
+		Assert.assertEquals(hits + 2, loader.getMissHits());
+	}
+
+	@Test
+	public void testNewExportInvalidatesMisses() throws Exception {
+		startFramework();
+		final BundleImpl.Revision.BundleClassLoader loader = installConsumer();
+		Assert.assertNull(loader.getResource("p/dyn/res.txt"));
+
+		final SyntheticBundleBuilder builder = SyntheticBundleBuilder
+				.newBuilder();
+		builder.bundleSymbolicName("provider");
+		builder.addManifestHeader("Export-Package", "p.dyn");
+		builder.addFile("p/dyn/res.txt", "res");
+		installBundle(builder);
+
+		Assert.assertNotNull(loader.getResource("p/dyn/res.txt"));
+	}
+
+	@Test
+	public void testDisabled() throws Exception {
+		final Map<String, String> launchArgs = new HashMap<String, String>();
+		launchArgs.put("org.eclipse.concierge.classloader.misses", "0");
+		startFrameworkClean(launchArgs);
+		final BundleImpl.Revision.BundleClassLoader loader = installConsumer();
+
+		assertClassMissing(loader);
+		assertClassMissing(loader);
+		Assert.assertEquals(0, loader.getMissHits());
+		Assert.assertEquals(0, loader.getMissLookups());
+	}
+
+}
@@ -0,0 +1,199 @@
+package org.eclipse.concierge;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.concierge.Concierge.CapabilityRegistry;
+import org.eclipse.concierge.test.util.AbstractConciergeTestCase;
+import org.eclipse.concierge.test.util.SyntheticBundleBuilder;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Version;
+import org.osgi.framework.namespace.PackageNamespace;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+import org.osgi.resource.Capability;
+import org.osgi.resource.Requirement;
+import org.osgi.resource.Resource;
+
+/**
+ * Tests the version index of the package capabilities.
+ */
+public class PackageVersionIndexTest extends AbstractConciergeTestCase {
+
+	@After
+	public void tearDown() throws Exception {
+		if (framework != null) {
+			stopFramework();
+		}
+	}
+
+	private static Capability export(final String pkg, final String version) {
+		final Map<String, Object> attributes = new HashMap<String, Object>();
+		attributes.put(PackageNamespace.PACKAGE_NAMESPACE, pkg);
+		attributes.put(PackageNamespace.CAPABILITY_VERSION_ATTRIBUTE,
+				Version.parseVersion(version));
+		return new Capability() {
+			public String getNamespace() {
+				return PackageNamespace.PACKAGE_NAMESPACE;
+			}
+
+			public Map<String, String> getDirectives() {
+				return Collections.emptyMap();
+			}
+
+			public Map<String, Object> getAttributes() {
+				return attributes;
+			}
+
+			public Resource getResource() {
+				return null;
+			}
+
+			public String toString() {
+				return pkg + ";" + version;
+			}
+		};
+	}
+
+	private static List<Capability> find(final CapabilityRegistry registry,
+			final String filter) throws Exception {
+		final Map<String, String> directives = new HashMap<String, String>();
+		directives.put("filter", filter);
+		return RFC1960Filter.filterWithIndex(new Requirement() {
+			public String getNamespace() {
+				return PackageNamespace.PACKAGE_NAMESPACE;
+			}
+
+			public Map<String, String> getDirectives() {
+				return directives;
+			}
+
+			public Map<String, Object> getAttributes() {
+				return Collections.emptyMap();
+			}
+
+			public Resource getResource() {
+				return null;
+			}
+		}, filter, registry);
+	}
+
+	@Test
+	public void testRangeLookup() throws Exception {
+		final CapabilityRegistry registry = new CapabilityRegistry();
+		final Capability[] caps = new Capability[] { export("p", "2.0.0"),
+				export("p", "1.0.0"), export("p", "3.5.0"),
+				export("p", "4.0.0"), export("p", "3.0.0"),
+				export("q", "3.0.0") };
+		for (final Capability cap : caps) {
+			registry.add(cap);
+		}
+
+		// highest version first
+		Assert.assertEquals(
+				Arrays.asList(caps[3], caps[2], caps[4], caps[0], caps[1]),
+				registry.getPackages("p", null, true, null, true));
+		Assert.assertEquals(Arrays.asList(caps[2], caps[4], caps[0]),
+				registry.getPackages("p", new Version(2, 0, 0), true,
+						new Version(4, 0, 0), false));
+		Assert.assertEquals(Arrays.asList(caps[3], caps[2], caps[4]),
+				registry.getPackages("p", new Version(2, 0, 0), false,
+						new Version(4, 0, 0), true));
+		Assert.assertTrue(registry.getPackages("p", new Version(5, 0, 0),
+				true, null, true).isEmpty());
+
+		Assert.assertEquals(Arrays.asList(caps[2], caps[4], caps[0]),
+				find(registry, "(&(osgi.wiring.package=p)(version>=2.0.0)"
+						+ "(!(version>=4.0.0)))"));
+		Assert.assertEquals(3, registry.getCandidateCounts().get(
+				PackageNamespace.PACKAGE_NAMESPACE).candidates);
+		Assert.assertEquals(Arrays.asList(caps[4]), find(registry,
+				"(&(osgi.wiring.package=p)(!(version<=2.0.0))"
+						+ "(version<=3.0.0))"));
+
+		registry.remove(caps[2]);
+		Assert.assertEquals(Arrays.asList(caps[3], caps[4], caps[0]),
+				registry.getPackages("p", new Version(2, 0, 0), true, null,
+						true));
+	}
+
+	@Test
+	public void testHighestVersionInRangeIsWired() throws Exception {
+		startFramework();
+		for (final String version : new String[] { "1.0.0", "2.0.0",
+				"2.5.0", "3.0.0", "4.0.0" }) {
+			final SyntheticBundleBuilder builder = SyntheticBundleBuilder
+					.newBuilder();
+			builder.bundleSymbolicName("exporter" + version);
+			builder.addManifestHeader("Export-Package", "p;version="
+					+ version);
+			installBundle(builder);
+		}
+		final SyntheticBundleBuilder builder = SyntheticBundleBuilder
+				.newBuilder();
+		builder.bundleSymbolicName("importer");
+		builder.addManifestHeader("Import-Package",
+				"p;version=\"[2.0,3.0)\"");
+		final Bundle importer = installBundle(builder);
+		enforceResolveBundle(importer);
+		assertBundleResolved(importer);
+
+		final List<BundleWire> wires = importer.adapt(BundleWiring.class)
+				.getRequiredWires(PackageNamespace.PACKAGE_NAMESPACE);
+		Assert.assertEquals(1, wires.size());
+		Assert.assertEquals(new Version(2, 5, 0), wires.get(0)
+				.getCapability().getAttributes()
+				.get(PackageNamespace.CAPABILITY_VERSION_ATTRIBUTE));
+	}
+
+	@Test
+	public void testUninstallFragmentWithCapabilities() throws Exception {
+		startFramework();
+		// fragments that do not extend the framework are supported
+		// regardless of the class loader of the framework
+		final boolean extensions = Concierge.SUPPORTS_EXTENSIONS;
+		Concierge.SUPPORTS_EXTENSIONS = true;
+		try {
+			final SyntheticBundleBuilder hostBuilder = SyntheticBundleBuilder
+					.newBuilder();
+			hostBuilder.bundleSymbolicName("host");
+			hostBuilder.addManifestHeader("Provide-Capability",
+					"test.ns;test.ns=a");
+			final Bundle host = installBundle(hostBuilder);
+
+			// the capabilities of the fragment are never published
+			final SyntheticBundleBuilder fragmentBuilder = SyntheticBundleBuilder
+					.newBuilder();
+			fragmentBuilder.bundleSymbolicName("fragment");
+			fragmentBuilder.addManifestHeader("Fragment-Host", "host");
+			fragmentBuilder.addManifestHeader("Provide-Capability",
+					"test.ns;test.ns=b");
+			fragmentBuilder.addManifestHeader("Export-Package", "q");
+			installBundle(fragmentBuilder).uninstall();
+
+			final SyntheticBundleBuilder builder = SyntheticBundleBuilder
+					.newBuilder();
+			builder.bundleSymbolicName("requirer");
+			builder.addManifestHeader("Require-Capability",
+					"test.ns;filter:=\"(test.ns=a)\"");
+			final Bundle requirer = installBundle(builder);
+			enforceResolveBundle(requirer);
+			assertBundleResolved(requirer);
+
+			final List<BundleWire> wires = requirer.adapt(BundleWiring.class)
+					.getRequiredWires("test.ns");
+			Assert.assertEquals(1, wires.size());
+			Assert.assertSame(host, wires.get(0).getProviderWiring()
+					.getBundle());
+		} finally {
+			Concierge.SUPPORTS_EXTENSIONS = extensions;
+		}
+	}
+
+}
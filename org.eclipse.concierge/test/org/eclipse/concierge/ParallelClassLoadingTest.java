@@ -0,0 +1,171 @@
+package org.eclipse.concierge;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.eclipse.concierge.test.util.AbstractConciergeTestCase;
+import org.eclipse.concierge.test.util.SyntheticBundleBuilder;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.wiring.BundleRevision;
+
+/**
+ * Tests the loading of classes from a bundle by concurrent threads.
+ */
+public class ParallelClassLoadingTest extends AbstractConciergeTestCase {
+
+	private static final int THREADS = 8;
+
+	private List<String> classes;
+
+	@Before
+	public void setUp() throws Exception {
+		startFramework();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		stopFramework();
+	}
+
+	/**
+	 * install a bundle with the test classes that only extend or implement
+	 * java.* types, so that they can be defined without further classes.
+	 */
+	private Bundle installClasses(final String bsn) throws Exception {
+		final File dir = new File(ZipFilePoolTest.class.getResource(
+				"ZipFilePoolTest.class").toURI()).getParentFile();
+		final SyntheticBundleBuilder builder = SyntheticBundleBuilder
+				.newBuilder();
+		builder.bundleSymbolicName(bsn);
+		classes = new ArrayList<String>();
+		for (final File file : dir.listFiles()) {
+			final String name = file.getName();
+			if (!name.endsWith(".class")) {
+				continue;
+			}
+			final String classname = "org.eclipse.concierge."
+					+ name.substring(0, name.length() - 6);
+			final Class<?> clazz = Class.forName(classname, false, getClass()
+					.getClassLoader());
+			if (isJavaType(clazz.getSuperclass())
+					&& isJavaType(clazz.getInterfaces())) {
+				builder.addFile("org/eclipse/concierge/" + name, file);
+				classes.add(classname);
+			}
+		}
+		Assert.assertFalse(classes.isEmpty());
+		final Bundle bundle = installBundle(builder);
+		// concurrent resolve calls are not supported
+		enforceResolveBundle(bundle);
+		assertBundleResolved(bundle);
+		return bundle;
+	}
+
+	private static boolean isJavaType(final Class<?>... types) {
+		for (final Class<?> type : types) {
+			if (type == null || !type.getName().startsWith("java.")) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private long loadConcurrently(final Bundle bundle, final int threads)
+			throws Exception {
+		final ConcurrentHashMap<String, Class<?>> loaded = new ConcurrentHashMap<String, Class<?>>();
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		for (int i = 0; i < threads; i++) {
+			final List<String> names = new ArrayList<String>(classes);
+			Collections.shuffle(names);
+			new Thread() {
+				public void run() {
+					try {
+						start.await();
+						for (final String name : names) {
+							final Class<?> clazz = bundle.loadClass(name);
+							final Class<?> previous = loaded.putIfAbsent(name,
+									clazz);
+							if (previous != null && previous != clazz) {
+								throw new AssertionError("defined twice: "
+										+ name);
+							}
+						}
+					} catch (final Throwable t) {
+						failure.compareAndSet(null, t);
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		final long time = System.nanoTime();
+		start.countDown();
+		done.await();
+		final long duration = System.nanoTime() - time;
+
+		if (failure.get() != null) {
+			throw new AssertionError(failure.get());
+		}
+		Assert.assertEquals(classes.size(), loaded.size());
+		final ClassLoader loader = ((BundleImpl.Revision) bundle
+				.adapt(BundleRevision.class)).classloader;
+		for (final Class<?> clazz : loaded.values()) {
+			Assert.assertSame(loader, clazz.getClassLoader());
+		}
+		return duration;
+	}
+
+	@Test
+	public void testRegisteredAsParallelCapable() throws Exception {
+		final ClassLoader loader = ((BundleImpl.Revision) installClasses(
+				"parallel").adapt(BundleRevision.class)).classloader;
+		final Method isParallel;
+		try {
+			// Java 9 and later
+			isParallel = ClassLoader.class
+					.getMethod("isRegisteredAsParallelCapable");
+		} catch (final NoSuchMethodException e) {
+			return;
+		}
+		Assert.assertEquals(Boolean.TRUE, isParallel.invoke(loader));
+	}
+
+	@Test
+	public void testConcurrentLoading() throws Exception {
+		for (int i = 0; i < 3; i++) {
+			loadConcurrently(installClasses("concurrent" + i), THREADS);
+		}
+	}
+
+	@Test
+	@Ignore("Move to performance tests")
+	public void testPerformance() throws Exception {
+		long time1 = 0;
+		long time2 = 0;
+		for (int i = 0; i < 20; i++) {
+			time1 += loadConcurrently(installClasses("single" + i), 1);
+			time2 += loadConcurrently(installClasses("multi" + i), THREADS);
+		}
+
+		System.out.println("1 thread: " + time1);
+		System.out.println(THREADS + " threads: " + time2);
+
+		System.out.println("difference (abs): " + (time2 - time1));
+		System.out.println("difference (%): " + (time2 - time1)
+				/ (float) Math.max(time1, time2) * 100);
+	}
+
+}
@@ -0,0 +1,162 @@
+package org.eclipse.concierge;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.concierge.test.util.AbstractConciergeTestCase;
+import org.eclipse.concierge.test.util.SyntheticBundleBuilder;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.SynchronousBundleListener;
+import org.osgi.framework.startlevel.BundleStartLevel;
+import org.osgi.framework.startlevel.FrameworkStartLevel;
+
+/**
+ * Tests the concurrent activation of the bundles of a start level.
+ */
+public class ParallelStartLevelTest extends AbstractConciergeTestCase {
+
+	@Before
+	public void setUp() throws Exception {
+		final Map<String, String> launchArgs = new HashMap<String, String>();
+		launchArgs.put("org.eclipse.concierge.startlevel.threads", "4");
+		startFrameworkClean(launchArgs);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		stopFramework();
+	}
+
+	private Bundle install(final String bsn, final String header,
+			final String value, final int level) throws Exception {
+		final SyntheticBundleBuilder builder = SyntheticBundleBuilder
+				.newBuilder();
+		builder.bundleSymbolicName(bsn);
+		if (header != null) {
+			builder.addManifestHeader(header, value);
+		}
+		final Bundle bundle = installBundle(builder);
+		bundle.adapt(BundleStartLevel.class).setStartLevel(level);
+		bundle.start();
+		return bundle;
+	}
+
+	@Test
+	public void testProvidersStartBeforeRequirers() throws Exception {
+		final List<Bundle> started = Collections
+				.synchronizedList(new ArrayList<Bundle>());
+		bundleContext.addBundleListener(new SynchronousBundleListener() {
+			public void bundleChanged(final BundleEvent event) {
+				if (event.getType() == BundleEvent.STARTED) {
+					started.add(event.getBundle());
+				}
+			}
+		});
+		final List<Bundle> timed = Collections
+				.synchronizedList(new ArrayList<Bundle>());
+		bundleContext.addFrameworkListener(new FrameworkListener() {
+			public void frameworkEvent(final FrameworkEvent event) {
+				if (event.getType() == FrameworkEvent.INFO
+						&& event.getThrowable() instanceof Concierge.ActivationTime) {
+					timed.add(event.getBundle());
+				}
+			}
+		});
+
+		final Bundle consumer = install("consumer", "Import-Package",
+				"p.api", 5);
+		final Bundle provider = install("provider", "Export-Package",
+				"p.api", 5);
+		final Bundle other = install("other", null, null, 5);
+		final Bundle later = install("later", "Import-Package", "p.api", 6);
+
+		final CountDownLatch changed = new CountDownLatch(1);
+		framework.adapt(FrameworkStartLevel.class).setStartLevel(6,
+				new FrameworkListener() {
+					public void frameworkEvent(final FrameworkEvent event) {
+						changed.countDown();
+					}
+				});
+		Assert.assertTrue(changed.await(10, TimeUnit.SECONDS));
+
+		assertBundleActive(consumer);
+		assertBundleActive(provider);
+		assertBundleActive(other);
+		assertBundleActive(later);
+
+		Assert.assertEquals(4, started.size());
+		Assert.assertTrue(started.indexOf(provider) < started
+				.indexOf(consumer));
+		// barrier between the levels
+		Assert.assertEquals(later, started.get(3));
+
+		// the timing events are delivered asynchronously
+		for (int i = 0; i < 50 && timed.size() < 3; i++) {
+			Thread.sleep(100);
+		}
+		Assert.assertTrue(timed.contains(consumer));
+		Assert.assertTrue(timed.contains(provider));
+		Assert.assertTrue(timed.contains(other));
+	}
+
+	@Test
+	public void testUnresolvedBundlesReportTheResolutionError()
+			throws Exception {
+		final List<Throwable> errors = Collections
+				.synchronizedList(new ArrayList<Throwable>());
+		bundleContext.addFrameworkListener(new FrameworkListener() {
+			public void frameworkEvent(final FrameworkEvent event) {
+				if (event.getType() == FrameworkEvent.ERROR) {
+					errors.add(event.getThrowable());
+				}
+			}
+		});
+
+		final Bundle broken1 = install("broken1", "Import-Package",
+				"p.missing", 5);
+		final Bundle provider = install("provider", "Export-Package",
+				"p.api", 5);
+		final Bundle broken2 = install("broken2", "Import-Package",
+				"p.api,p.missing", 5);
+		final Bundle consumer = install("consumer", "Import-Package",
+				"p.api", 5);
+
+		final CountDownLatch changed = new CountDownLatch(1);
+		framework.adapt(FrameworkStartLevel.class).setStartLevel(5,
+				new FrameworkListener() {
+					public void frameworkEvent(final FrameworkEvent event) {
+						changed.countDown();
+					}
+				});
+		Assert.assertTrue(changed.await(10, TimeUnit.SECONDS));
+
+		assertBundleActive(provider);
+		assertBundleActive(consumer);
+		Assert.assertEquals(Bundle.INSTALLED, broken1.getState());
+		Assert.assertEquals(Bundle.INSTALLED, broken2.getState());
+
+		// the errors are delivered asynchronously
+		for (int i = 0; i < 50 && errors.size() < 2; i++) {
+			Thread.sleep(100);
+		}
+		Assert.assertEquals(2, errors.size());
+		for (final Throwable error : errors) {
+			Assert.assertTrue(error.toString(),
+					error instanceof BundleException);
+		}
+	}
+
+}
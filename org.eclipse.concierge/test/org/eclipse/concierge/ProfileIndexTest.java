@@ -0,0 +1,95 @@
+package org.eclipse.concierge;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.HashMap;
+
+import org.eclipse.concierge.test.util.AbstractConciergeTestCase;
+import org.eclipse.concierge.test.util.SyntheticBundleBuilder;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.startlevel.BundleStartLevel;
+
+/**
+ * Tests the restore of the bundles from the framework index.
+ */
+public class ProfileIndexTest extends AbstractConciergeTestCase {
+
+	private static final File INDEX = new File("storage/default/index");
+
+	@After
+	public void tearDown() throws Exception {
+		stopFramework();
+	}
+
+	private void installBundles() throws Exception {
+		installBundles("some value");
+	}
+
+	private void installBundles(final String value) throws Exception {
+		startFramework();
+		final SyntheticBundleBuilder builder = SyntheticBundleBuilder
+				.newBuilder();
+		builder.bundleSymbolicName("indexed");
+		builder.addManifestHeader("X-Indexed", value);
+		final Bundle bundle = installBundle(builder);
+		bundle.adapt(BundleStartLevel.class).setStartLevel(2);
+		bundle.start();
+		assertBundleActive(bundle);
+		stopFramework();
+	}
+
+	private void assertRestored() {
+		assertRestored("some value");
+	}
+
+	private void assertRestored(final String value) {
+		final Bundle[] bundles = bundleContext.getBundles();
+		Assert.assertEquals(2, bundles.length);
+		final Bundle bundle = bundles[1];
+		Assert.assertEquals(value, bundle.getHeaders().get("X-Indexed"));
+		Assert.assertEquals(2, bundle.adapt(BundleStartLevel.class)
+				.getStartLevel());
+		Assert.assertTrue(bundle.adapt(BundleStartLevel.class)
+				.isPersistentlyStarted());
+		assertBundleActive(bundle);
+	}
+
+	@Test
+	public void testRestoreFromIndex() throws Exception {
+		installBundles();
+		Assert.assertTrue(INDEX.exists());
+
+		startFramework(new HashMap<String, String>());
+		Assert.assertFalse(INDEX.exists());
+		assertRestored();
+	}
+
+	@Test
+	public void testCorruptIndexIsIgnored() throws Exception {
+		installBundles();
+		final FileOutputStream out = new FileOutputStream(INDEX);
+		out.write(new byte[] { 0, 0, 0, 2, 0, 0, 0, 7, 1, 2 });
+		out.close();
+
+		startFramework(new HashMap<String, String>());
+		assertRestored();
+	}
+
+	@Test
+	public void testRestoreHeaderOver64K() throws Exception {
+		final StringBuffer value = new StringBuffer();
+		for (int i = 0; i < 7000; i++) {
+			value.append("long value ");
+		}
+		installBundles(value.toString());
+		Assert.assertTrue(INDEX.exists());
+
+		startFramework(new HashMap<String, String>());
+		Assert.assertFalse(INDEX.exists());
+		assertRestored(value.toString());
+	}
+
+}
@@ -0,0 +1,283 @@
+package org.eclipse.concierge;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.Version;
+
+public class RFC1960FilterTest {
+
+	private static final String[] FILTERS = {
+			"(objectClass=org.osgi.service.log.LogService)",
+			"(|(objectClass=org.osgi.service.log.LogService)(objectClass=org.osgi.service.event.EventHandler))",
+			"(&(objectClass=org.osgi.service.*)(service.ranking>=5))",
+			"(&(objectClass=*EventHandler)(!(service.ranking<=0)))",
+			"(OBJECTCLASS=org.osgi.service.log.LogService)",
+			"(service.pid=*)", "(service.pid=com.acme.config)",
+			"(service.pid~=COM.ACME. config)", "(service.pid>=com.acme)",
+			"(service.pid<=com.acme)", "(service.ranking=10)",
+			"(service.ranking= 10 )", "(service.ranking>=99999999999)",
+			"(service.id<=3)", "(weight>=1.5)", "(weight=2.0)",
+			"(ratio<=0.25)", "(enabled=true)", "(enabled=TRUE )",
+			"(version>=1.2)", "(version=1.2.3.qualifier)",
+			"(&(version>=1.0)(!(version>=2.0)))", "(small=7)", "(tiny<=3)",
+			"(tags=b)", "(tags=*c*)", "(numbers>=3)", "(letter=x)",
+			"(missing=foo)", "(!(missing=*))", "(empty=)",
+			"(&(objectClass=org.osgi.service.log.LogService)(service.pid=*))" };
+
+	private static List<Dictionary<String, Object>> properties() {
+		final List<Dictionary<String, Object>> result = new ArrayList<Dictionary<String, Object>>();
+
+		final Hashtable<String, Object> log = new Hashtable<String, Object>();
+		log.put(Constants.OBJECTCLASS,
+				new String[] { "org.osgi.service.log.LogService" });
+		log.put(Constants.SERVICE_ID, new Long(3));
+		log.put(Constants.SERVICE_RANKING, new Integer(10));
+		log.put(Constants.SERVICE_PID, "com.acme.config");
+		log.put("enabled", Boolean.TRUE);
+		log.put("weight", new Double(2.0));
+		log.put("version", new Version(1, 2, 3, "qualifier"));
+		result.add(log);
+
+		final Hashtable<String, Object> handler = new Hashtable<String, Object>();
+		handler.put(Constants.OBJECTCLASS, new String[] {
+				"org.osgi.service.event.EventHandler", "java.lang.Runnable" });
+		handler.put(Constants.SERVICE_ID, new Long(17));
+		handler.put(Constants.SERVICE_RANKING, new Integer(-1));
+		handler.put("ratio", new Float(0.25f));
+		handler.put("small", new Short((short) 7));
+		handler.put("tiny", new Byte((byte) 2));
+		handler.put("tags", Arrays.asList("a", "b", "c"));
+		handler.put("numbers", new int[] { 1, 2, 3 });
+		handler.put("letter", new Character('x'));
+		handler.put("empty", "");
+		handler.put("version", new Version(2, 0, 0));
+		result.add(handler);
+
+		final Hashtable<String, Object> mixed = new Hashtable<String, Object>();
+		mixed.put("ObjectClass",
+				new String[] { "org.osgi.service.log.LogService" });
+		mixed.put("SERVICE.PID", "COM.ACME.CONFIG");
+		mixed.put("enabled", "true");
+		mixed.put("weight", "2.0");
+		mixed.put(Constants.SERVICE_RANKING, new Long(99999999999L));
+		result.add(mixed);
+
+		result.add(new Hashtable<String, Object>());
+		return result;
+	}
+
+	@Test
+	public void testCompiledMatchesTree() throws Exception {
+		final List<Dictionary<String, Object>> props = properties();
+		for (int i = 0; i < FILTERS.length; i++) {
+			final Filter tree = RFC1960Filter.fromString(FILTERS[i]);
+			final Filter compiled = RFC1960Filter.compile(tree);
+			for (final Dictionary<String, Object> dict : props) {
+				final String msg = FILTERS[i] + " " + dict;
+				assertEquals(msg, tree.match(dict), compiled.match(dict));
+				assertEquals(msg, tree.matchCase(dict),
+						compiled.matchCase(dict));
+				final Map<String, Object> map = new HashMap<String, Object>();
+				for (final Enumeration<String> keys = dict.keys(); keys
+						.hasMoreElements();) {
+					final String key = keys.nextElement();
+					map.put(key, dict.get(key));
+				}
+				assertEquals(msg, tree.matches(map), compiled.matches(map));
+			}
+		}
+	}
+
+	@Test
+	public void testCompiledFilterRepeatedlyMatches() throws Exception {
+		final Filter compiled = RFC1960Filter.compile(RFC1960Filter
+				.fromString("(&(version>=1.2)(service.ranking>=5))"));
+		final Dictionary<String, Object> props = properties().get(0);
+		for (int i = 0; i < 3; i++) {
+			assertTrue(compiled.match(props));
+		}
+		props.put("version", "1.0");
+		assertFalse(compiled.match(props));
+		props.put("version", new Version(3, 0, 0));
+		assertTrue(compiled.match(props));
+	}
+
+	@Test
+	public void testCompiledFilterToString() throws Exception {
+		for (int i = 0; i < FILTERS.length; i++) {
+			final Filter tree = RFC1960Filter.fromString(FILTERS[i]);
+			final Filter compiled = RFC1960Filter.compile(tree);
+			assertEquals(tree.toString(), compiled.toString());
+			assertEquals(tree.hashCode(), compiled.hashCode());
+		}
+	}
+
+	@Test
+	public void testEqualityValues() throws Exception {
+		assertEquals(Collections.singleton("a.B"),
+				RFC1960Filter.getEqualityValues(
+						RFC1960Filter.fromString("(objectClass=a.B)"),
+						Constants.OBJECTCLASS));
+		assertEquals(Collections.singleton("a.B"),
+				RFC1960Filter.getEqualityValues(RFC1960Filter.CACHE
+						.get("(&(foo=bar)(OBJECTCLASS=a.B))"),
+						Constants.OBJECTCLASS));
+		assertEquals(
+				new HashSet<String>(Arrays.asList("a.B", "c.D")),
+				RFC1960Filter.getEqualityValues(RFC1960Filter
+						.fromString("(|(objectClass=a.B)(objectClass=c.D))"),
+						Constants.OBJECTCLASS));
+		assertNull(RFC1960Filter.getEqualityValues(
+				RFC1960Filter.fromString("(|(objectClass=a.B)(foo=bar))"),
+				Constants.OBJECTCLASS));
+		assertNull(RFC1960Filter.getEqualityValues(
+				RFC1960Filter.fromString("(!(objectClass=a.B))"),
+				Constants.OBJECTCLASS));
+		assertNull(RFC1960Filter.getEqualityValues(
+				RFC1960Filter.fromString("(objectClass=a.*)"),
+				Constants.OBJECTCLASS));
+		assertNull(RFC1960Filter.getEqualityValues(
+				RFC1960Filter.fromString("(objectClass>=a.B)"),
+				Constants.OBJECTCLASS));
+	}
+
+	private static RFC1960Filter.FilterCache newCache(final int capacity) {
+		return new RFC1960Filter.FilterCache(capacity) {
+			protected Filter create(final String str)
+					throws InvalidSyntaxException {
+				return RFC1960Filter.compile(RFC1960Filter.fromString(str));
+			}
+		};
+	}
+
+	@Test
+	public void testCacheReturnsSameInstance() throws Exception {
+		final RFC1960Filter.FilterCache cache = newCache(16);
+		final Filter filter = cache.get(FILTERS[0]);
+		assertSame(filter, cache.get(FILTERS[0]));
+		assertSame(filter, cache.get(FILTERS[0]));
+		assertEquals(2, cache.getHits());
+		assertEquals(1, cache.getMisses());
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void testCacheIsBounded() throws Exception {
+		final RFC1960Filter.FilterCache cache = newCache(8);
+		for (int i = 0; i < FILTERS.length; i++) {
+			cache.get(FILTERS[i]);
+			assertTrue(cache.size() <= 8);
+		}
+		assertEquals(FILTERS.length, cache.getMisses());
+	}
+
+	@Test
+	public void testCacheKeepsUsedEntries() throws Exception {
+		final RFC1960Filter.FilterCache cache = newCache(4);
+		final Filter hot = cache.get(FILTERS[0]);
+		for (int i = 1; i < FILTERS.length; i++) {
+			assertSame(hot, cache.get(FILTERS[0]));
+			cache.get(FILTERS[i]);
+		}
+		assertEquals(FILTERS.length - 1, cache.getHits());
+	}
+
+	@Test
+	public void testCacheDoesNotStoreInvalidFilters() throws Exception {
+		final RFC1960Filter.FilterCache cache = newCache(16);
+		for (int i = 0; i < 2; i++) {
+			try {
+				cache.get("(foo=bar");
+				fail("Invalid filter was accepted");
+			} catch (final InvalidSyntaxException ise) {
+				// expected
+			}
+		}
+		assertEquals(0, cache.size());
+		assertEquals(2, cache.getMisses());
+	}
+
+	@Test
+	public void testFrameworkDoesNotResizeSharedCaches() throws Exception {
+		final int capacity = RFC1960Filter.CACHE.getCapacity();
+		final int contextCapacity = Concierge.FRAMEWORK_FILTERS.getCapacity();
+		final Map<String, String> props = new HashMap<String, String>();
+		props.put("org.eclipse.concierge.filters.cachesize", "1");
+		props.put("org.eclipse.concierge.filters.contextcachesize", "1");
+		new Concierge(props);
+		assertEquals(capacity, RFC1960Filter.CACHE.getCapacity());
+		assertEquals(contextCapacity,
+				Concierge.FRAMEWORK_FILTERS.getCapacity());
+	}
+
+	@Test
+	@Ignore("Move to performance tests")
+	public void testPerformance() throws Exception {
+		final List<Dictionary<String, Object>> props = properties();
+		final Filter[] tree = new Filter[FILTERS.length];
+		final Filter[] compiled = new Filter[FILTERS.length];
+		for (int i = 0; i < FILTERS.length; i++) {
+			tree[i] = RFC1960Filter.fromString(FILTERS[i]);
+			compiled[i] = RFC1960Filter.compile(tree[i]);
+		}
+
+		for (int run = 0; run < 3; run++) {
+			int compare = 0;
+			int compare2 = 0;
+
+			long time = System.nanoTime();
+			for (int i = 0; i < 20000; i++) {
+				for (int j = 0; j < tree.length; j++) {
+					for (final Dictionary<String, Object> dict : props) {
+						if (tree[j].match(dict)) {
+							compare++;
+						}
+					}
+				}
+			}
+			final long time1 = System.nanoTime() - time;
+
+			System.out.println("tree: " + time1);
+
+			time = System.nanoTime();
+			for (int i = 0; i < 20000; i++) {
+				for (int j = 0; j < compiled.length; j++) {
+					for (final Dictionary<String, Object> dict : props) {
+						if (compiled[j].match(dict)) {
+							compare2++;
+						}
+					}
+				}
+			}
+			final long time2 = System.nanoTime() - time;
+
+			assertEquals(compare, compare2);
+
+			System.out.println("compiled: " + time2);
+			System.out.println("difference (%): " + (time2 - time1)
+					/ (float) Math.max(time1, time2) * 100);
+		}
+	}
+
+}
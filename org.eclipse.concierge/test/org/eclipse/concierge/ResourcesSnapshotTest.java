@@ -0,0 +1,95 @@
+package org.eclipse.concierge;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeMap;
+
+import org.eclipse.concierge.test.util.AbstractConciergeTestCase;
+import org.eclipse.concierge.test.util.SyntheticBundleBuilder;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRequirement;
+import org.osgi.framework.wiring.BundleRevision;
+
+/**
+ * Tests that the stored requirements and capabilities of a revision equal the
+ * parsed ones.
+ */
+public class ResourcesSnapshotTest extends AbstractConciergeTestCase {
+
+	private static final File SNAPSHOT = new File(
+			"storage/default/1/resources0");
+
+	@After
+	public void tearDown() throws Exception {
+		stopFramework();
+	}
+
+	private List<String> install() throws Exception {
+		startFramework();
+		final SyntheticBundleBuilder builder = SyntheticBundleBuilder
+				.newBuilder();
+		builder.bundleSymbolicName("snapshot");
+		builder.bundleVersion("1.2.3");
+		builder.addManifestHeader("Export-Package",
+				"p.api;version=1.1;uses:=\"p.spi\",p.spi");
+		builder.addManifestHeader("Import-Package",
+				"q.api;version=\"[1.0,2.0)\",q.opt;resolution:=optional");
+		builder.addManifestHeader("DynamicImport-Package", "r.*");
+		builder.addManifestHeader("Provide-Capability",
+				"test.cap;name=x;sizes:List<Long>=\"1,2\";ratio:Double=0.5;"
+						+ "version:Version=2.0");
+		builder.addManifestHeader("Require-Capability",
+				"test.req;filter:=\"(name=y)\"");
+		final Bundle bundle = installBundle(builder);
+		Assert.assertTrue(SNAPSHOT.exists());
+		return describe(bundle);
+	}
+
+	private List<String> describe(final Bundle bundle) {
+		final BundleRevision revision = bundle.adapt(BundleRevision.class);
+		final List<String> result = new ArrayList<String>();
+		for (final BundleCapability cap : revision
+				.getDeclaredCapabilities(null)) {
+			result.add(cap.getNamespace() + " "
+					+ new TreeMap<String, String>(cap.getDirectives()) + " "
+					+ new TreeMap<String, Object>(cap.getAttributes()));
+		}
+		for (final BundleRequirement req : revision
+				.getDeclaredRequirements(null)) {
+			result.add(req.getNamespace() + " "
+					+ new TreeMap<String, String>(req.getDirectives()) + " "
+					+ new TreeMap<String, Object>(req.getAttributes()));
+		}
+		return result;
+	}
+
+	private List<String> restart() throws Exception {
+		stopFramework();
+		startFramework(new HashMap<String, String>());
+		return describe(bundleContext.getBundles()[1]);
+	}
+
+	@Test
+	public void testRestoredResourcesEqualParsedResources() throws Exception {
+		final List<String> parsed = install();
+		Assert.assertTrue(parsed.size() > 6);
+		Assert.assertEquals(parsed, restart());
+	}
+
+	@Test
+	public void testCorruptSnapshotIsIgnored() throws Exception {
+		final List<String> parsed = install();
+		final FileOutputStream out = new FileOutputStream(SNAPSHOT);
+		out.write(new byte[] { 0, 0, 0, 1, 1, 2 });
+		out.close();
+		Assert.assertEquals(parsed, restart());
+	}
+
+}
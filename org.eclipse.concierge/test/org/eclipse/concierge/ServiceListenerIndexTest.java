@@ -0,0 +1,134 @@
+package org.eclipse.concierge;
+
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+
+import org.eclipse.concierge.test.util.AbstractConciergeTestCase;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * Tests the dispatch of service events through the listener index.
+ */
+public class ServiceListenerIndexTest extends AbstractConciergeTestCase {
+
+	private static final String RUNNABLE = Runnable.class.getName();
+
+	private static final String COMPARABLE = Comparable.class.getName();
+
+	@Before
+	public void setUp() throws Exception {
+		startFramework();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		stopFramework();
+	}
+
+	private static class RecordingListener implements ServiceListener {
+		final List<Integer> events = new ArrayList<Integer>();
+
+		public void serviceChanged(final ServiceEvent event) {
+			events.add(new Integer(event.getType()));
+		}
+	}
+
+	private RecordingListener addListener(final String filter)
+			throws Exception {
+		final RecordingListener listener = new RecordingListener();
+		bundleContext.addServiceListener(listener, filter);
+		return listener;
+	}
+
+	private ServiceRegistration<?> register(final String[] clazzes,
+			final String color) {
+		final Hashtable<String, Object> props = new Hashtable<String, Object>();
+		props.put("color", color);
+		return bundleContext
+				.registerService(clazzes, new TestService(), props);
+	}
+
+	private static class TestService implements Runnable,
+			Comparable<TestService> {
+		public void run() {
+		}
+
+		public int compareTo(final TestService o) {
+			return 0;
+		}
+	}
+
+	@Test
+	public void testIndexedListenersOnlySeeTheirClasses() throws Exception {
+		final RecordingListener runnable = addListener("(objectClass="
+				+ RUNNABLE + ")");
+		final RecordingListener comparable = addListener("(&(objectClass="
+				+ COMPARABLE + ")(color=red))");
+		final RecordingListener either = addListener("(|(objectClass="
+				+ RUNNABLE + ")(objectClass=" + COMPARABLE + "))");
+		final RecordingListener unindexed = addListener("(color=*)");
+		final RecordingListener all = addListener(null);
+
+		register(new String[] { RUNNABLE }, "red");
+		Assert.assertEquals(1, runnable.events.size());
+		Assert.assertEquals(0, comparable.events.size());
+		Assert.assertEquals(1, either.events.size());
+		Assert.assertEquals(1, unindexed.events.size());
+		Assert.assertEquals(1, all.events.size());
+
+		register(new String[] { RUNNABLE, COMPARABLE }, "red");
+		Assert.assertEquals(2, runnable.events.size());
+		Assert.assertEquals(1, comparable.events.size());
+		// indexed under both classes but notified once
+		Assert.assertEquals(2, either.events.size());
+		Assert.assertEquals(2, unindexed.events.size());
+		Assert.assertEquals(2, all.events.size());
+
+		final long[] stats = ((Concierge) framework).serviceListeners
+				.getStatistics();
+		Assert.assertTrue(stats[1] < stats[2]);
+	}
+
+	@Test
+	public void testModifiedEndmatch() throws Exception {
+		final RecordingListener red = addListener("(&(objectClass="
+				+ RUNNABLE + ")(color=red))");
+		final ServiceRegistration<?> reg = register(new String[] { RUNNABLE },
+				"red");
+		final Hashtable<String, Object> props = new Hashtable<String, Object>();
+		props.put("color", "blue");
+		reg.setProperties(props);
+		Assert.assertEquals(2, red.events.size());
+		Assert.assertEquals(new Integer(ServiceEvent.MODIFIED_ENDMATCH),
+				red.events.get(1));
+	}
+
+	@Test
+	public void testRemovedListenerIsNotNotified() throws Exception {
+		final RecordingListener runnable = addListener("(objectClass="
+				+ RUNNABLE + ")");
+		bundleContext.removeServiceListener(runnable);
+		register(new String[] { RUNNABLE }, "red");
+		Assert.assertEquals(0, runnable.events.size());
+		Assert.assertTrue(((Concierge) framework).serviceListeners.isEmpty());
+	}
+
+	@Test
+	public void testReplacedListenerIsReindexed() throws Exception {
+		final RecordingListener listener = addListener("(objectClass="
+				+ COMPARABLE + ")");
+		bundleContext.addServiceListener(listener, "(objectClass=" + RUNNABLE
+				+ ")");
+		register(new String[] { RUNNABLE }, "red");
+		register(new String[] { COMPARABLE }, "red");
+		Assert.assertEquals(1, listener.events.size());
+	}
+
+}
@@ -0,0 +1,124 @@
+package org.eclipse.concierge;
+
+import java.util.Hashtable;
+
+import org.eclipse.concierge.test.util.AbstractConciergeTestCase;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * Tests the ordering of the service registry.
+ */
+public class ServiceRegistryTest extends AbstractConciergeTestCase {
+
+	private static final String CLAZZ = Runnable.class.getName();
+
+	@Before
+	public void setUp() throws Exception {
+		startFramework();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		stopFramework();
+	}
+
+	private ServiceRegistration<?> register(final int ranking) {
+		final Hashtable<String, Object> props = new Hashtable<String, Object>();
+		props.put(Constants.SERVICE_RANKING, new Integer(ranking));
+		return bundleContext.registerService(CLAZZ, new Runnable() {
+			public void run() {
+			}
+		}, props);
+	}
+
+	@Test
+	public void testHighestRankingWins() throws Exception {
+		final ServiceRegistration<?> low = register(-5);
+		Assert.assertEquals(low.getReference(),
+				bundleContext.getServiceReference(CLAZZ));
+
+		final ServiceRegistration<?> high = register(10);
+		register(3);
+		Assert.assertEquals(high.getReference(),
+				bundleContext.getServiceReference(CLAZZ));
+
+		high.unregister();
+		final ServiceReference<?> best = bundleContext
+				.getServiceReference(CLAZZ);
+		Assert.assertEquals(new Integer(3),
+				best.getProperty(Constants.SERVICE_RANKING));
+	}
+
+	@Test
+	public void testLowestServiceIdWinsOnEqualRanking() throws Exception {
+		final ServiceRegistration<?> first = register(1);
+		register(1);
+		Assert.assertEquals(first.getReference(),
+				bundleContext.getServiceReference(CLAZZ));
+	}
+
+	@Test
+	public void testReferencesAreSorted() throws Exception {
+		register(1);
+		register(7);
+		register(-2);
+		register(7);
+
+		final ServiceReference<?>[] refs = bundleContext.getServiceReferences(
+				CLAZZ, null);
+		Assert.assertEquals(4, refs.length);
+		for (int i = 1; i < refs.length; i++) {
+			Assert.assertTrue(refs[i - 1].compareTo(refs[i]) > 0);
+		}
+	}
+
+	@Test
+	public void testModifiedRankingIsResorted() throws Exception {
+		final ServiceRegistration<?> reg = register(0);
+		final ServiceRegistration<?> other = register(5);
+		Assert.assertEquals(other.getReference(),
+				bundleContext.getServiceReference(CLAZZ));
+
+		final Hashtable<String, Object> props = new Hashtable<String, Object>();
+		props.put(Constants.SERVICE_RANKING, new Integer(100));
+		reg.setProperties(props);
+		Assert.assertEquals(reg.getReference(),
+				bundleContext.getServiceReference(CLAZZ));
+	}
+
+	@Test
+	public void testRankingThatIsNotAnInteger() throws Exception {
+		final Hashtable<String, Object> props = new Hashtable<String, Object>();
+		props.put(Constants.SERVICE_RANKING, "10");
+		final ServiceRegistration<?> reg = bundleContext.registerService(
+				CLAZZ, new Runnable() {
+					public void run() {
+					}
+				}, props);
+		Assert.assertEquals(new Integer(0), reg.getReference().getProperty(
+				Constants.SERVICE_RANKING));
+
+		final ServiceRegistration<?> other = register(5);
+		other.setProperties(props);
+		Assert.assertEquals(new Integer(0), other.getReference()
+				.getProperty(Constants.SERVICE_RANKING));
+		Assert.assertEquals(reg.getReference(),
+				bundleContext.getServiceReference(CLAZZ));
+		Assert.assertEquals(2,
+				bundleContext.getServiceReferences(CLAZZ, null).length);
+	}
+
+	@Test
+	public void testUnknownClass() throws Exception {
+		Assert.assertNull(bundleContext.getServiceReference("no.such.Service"));
+		Assert.assertNull(bundleContext.getServiceReferences(
+				"no.such.Service", null));
+	}
+
+}
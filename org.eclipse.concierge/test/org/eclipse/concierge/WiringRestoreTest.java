@@ -0,0 +1,100 @@
+package org.eclipse.concierge;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+
+import org.eclipse.concierge.test.util.AbstractConciergeTestCase;
+import org.eclipse.concierge.test.util.SyntheticBundleBuilder;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.namespace.PackageNamespace;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+/**
+ * Tests that the wiring is reused when the framework is restarted.
+ */
+public class WiringRestoreTest extends AbstractConciergeTestCase {
+
+	private static final File WIRING = new File("storage/default/wiring");
+
+	@After
+	public void tearDown() throws Exception {
+		stopFramework();
+	}
+
+	private Bundle install(final String bsn, final String header)
+			throws Exception {
+		final SyntheticBundleBuilder builder = SyntheticBundleBuilder
+				.newBuilder();
+		builder.bundleSymbolicName(bsn);
+		builder.addManifestHeader(header, "p.api");
+		return installBundle(builder);
+	}
+
+	private Bundle getBundle(final String bsn) {
+		for (final Bundle bundle : bundleContext.getBundles()) {
+			if (bsn.equals(bundle.adapt(BundleRevision.class)
+					.getSymbolicName())) {
+				return bundle;
+			}
+		}
+		return null;
+	}
+
+	private void restart() throws Exception {
+		stopFramework();
+		startFramework(new HashMap<String, String>());
+	}
+
+	@Test
+	public void testWiringIsRestored() throws Exception {
+		startFramework();
+		install("provider", "Export-Package");
+		install("consumer", "Import-Package");
+		Assert.assertTrue(framework.adapt(FrameworkWiring.class)
+				.resolveBundles(null));
+
+		stopFramework();
+		Assert.assertTrue(WIRING.exists());
+		startFramework(new HashMap<String, String>());
+		Assert.assertFalse(WIRING.exists());
+
+		final Bundle provider = getBundle("provider");
+		final Bundle consumer = getBundle("consumer");
+		Assert.assertEquals(Bundle.RESOLVED, provider.getState());
+		Assert.assertEquals(Bundle.RESOLVED, consumer.getState());
+
+		final List<BundleWire> wires = consumer.adapt(BundleWiring.class)
+				.getRequiredWires(PackageNamespace.PACKAGE_NAMESPACE);
+		Assert.assertEquals(1, wires.size());
+		Assert.assertEquals(provider.adapt(BundleRevision.class), wires.get(0)
+				.getProvider());
+		Assert.assertTrue(provider.adapt(BundleWiring.class)
+				.getProvidedWires(null).contains(wires.get(0)));
+
+		// the restored wiring is stored again
+		restart();
+		Assert.assertEquals(Bundle.RESOLVED, getBundle("consumer").getState());
+	}
+
+	@Test
+	public void testStaleWiringIsNotRestored() throws Exception {
+		startFramework();
+		final Bundle provider = install("provider", "Export-Package");
+		install("consumer", "Import-Package");
+		Assert.assertTrue(framework.adapt(FrameworkWiring.class)
+				.resolveBundles(null));
+		provider.uninstall();
+
+		restart();
+		Assert.assertNull(getBundle("provider"));
+		Assert.assertEquals(Bundle.INSTALLED, getBundle("consumer").getState());
+	}
+
+}
@@ -0,0 +1,115 @@
+package org.eclipse.concierge;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.eclipse.concierge.Concierge.ZipFilePool;
+import org.eclipse.concierge.Concierge.ZipFilePool.Handle;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the pool of open zip files.
+ */
+public class ZipFilePoolTest {
+
+	private final File[] files = new File[3];
+
+	@Before
+	public void setUp() throws Exception {
+		for (int i = 0; i < files.length; i++) {
+			files[i] = File.createTempFile("pool", ".jar");
+			final ZipOutputStream out = new ZipOutputStream(
+					new FileOutputStream(files[i]));
+			out.putNextEntry(new ZipEntry("entry.txt"));
+			out.write(new byte[] { 1, 2, 3 });
+			out.closeEntry();
+			out.close();
+		}
+	}
+
+	@After
+	public void tearDown() {
+		for (int i = 0; i < files.length; i++) {
+			files[i].delete();
+		}
+	}
+
+	private static boolean isOpen(final Handle handle) {
+		try {
+			handle.zipFile.size();
+			return true;
+		} catch (final IllegalStateException ise) {
+			return false;
+		}
+	}
+
+	@Test
+	public void testHandlesAreReused() throws Exception {
+		final ZipFilePool pool = new ZipFilePool(2);
+		final Handle handle = pool.acquire(files[0]);
+		pool.release(handle);
+		Assert.assertSame(handle, pool.acquire(files[0]));
+		pool.release(handle);
+		Assert.assertTrue(isOpen(handle));
+		Assert.assertEquals(1, pool.size());
+	}
+
+	@Test
+	public void testLeastRecentlyUsedIsClosed() throws Exception {
+		final ZipFilePool pool = new ZipFilePool(2);
+		final Handle first = pool.acquire(files[0]);
+		pool.release(first);
+		final Handle second = pool.acquire(files[1]);
+		pool.release(second);
+		// touch the first file
+		pool.release(pool.acquire(files[0]));
+
+		final Handle third = pool.acquire(files[2]);
+		pool.release(third);
+		Assert.assertEquals(2, pool.size());
+		Assert.assertTrue(isOpen(first));
+		Assert.assertFalse(isOpen(second));
+		Assert.assertTrue(isOpen(third));
+	}
+
+	@Test
+	public void testOpenStreamDefersClose() throws Exception {
+		final ZipFilePool pool = new ZipFilePool(1);
+		final Handle handle = pool.acquire(files[0]);
+		final InputStream in = pool.getInputStream(handle,
+				handle.zipFile.getEntry("entry.txt"));
+
+		pool.release(pool.acquire(files[1]));
+		Assert.assertTrue(isOpen(handle));
+		Assert.assertEquals(1, in.read());
+
+		in.close();
+		Assert.assertFalse(isOpen(handle));
+		// closing twice releases once
+		in.close();
+	}
+
+	@Test
+	public void testRemoveAndClear() throws Exception {
+		final ZipFilePool pool = new ZipFilePool(3);
+		final Handle first = pool.acquire(files[0]);
+		pool.release(first);
+		final Handle second = pool.acquire(files[1]);
+
+		pool.remove(files[0]);
+		Assert.assertFalse(isOpen(first));
+
+		pool.clear();
+		Assert.assertEquals(0, pool.size());
+		Assert.assertTrue(isOpen(second));
+		pool.release(second);
+		Assert.assertFalse(isOpen(second));
+	}
+
+}